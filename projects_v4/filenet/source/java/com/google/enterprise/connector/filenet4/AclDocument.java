@@ -28,8 +28,11 @@ import com.google.enterprise.connector.spi.Value;
 
 import com.filenet.api.util.Id;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -52,14 +55,47 @@ class AclDocument implements Document {
           SpiConstants.PROPNAME_ACLINHERITFROM_DOCID
       );
 
+  /**
+   * The principal values of an ACL. Instances are immutable, so ACL
+   * documents with the same permissions can share them.
+   *
+   * @see AclInterner
+   */
+  static final class Principals {
+    private final List<Value> allowUsers;
+    private final List<Value> denyUsers;
+    private final List<Value> allowGroups;
+    private final List<Value> denyGroups;
+
+    Principals(String googleGlobalNamespace, Set<String> allowUsers,
+        Set<String> denyUsers, Set<String> allowGroups,
+        Set<String> denyGroups) {
+      this.allowUsers = toValues(googleGlobalNamespace, allowUsers);
+      this.denyUsers = toValues(googleGlobalNamespace, denyUsers);
+      this.allowGroups = toValues(googleGlobalNamespace, allowGroups);
+      this.denyGroups = toValues(googleGlobalNamespace, denyGroups);
+    }
+
+    /** Gets the total number of principals, allowed and denied. */
+    int size() {
+      return allowUsers.size() + denyUsers.size() + allowGroups.size()
+          + denyGroups.size();
+    }
+
+    private static List<Value> toValues(String googleGlobalNamespace,
+        Set<String> names) {
+      List<Value> list = new ArrayList<Value>(names.size());
+      FileUtil.addPrincipals(list, PrincipalType.UNKNOWN,
+          googleGlobalNamespace, names,
+          CaseSensitivityType.EVERYTHING_CASE_INSENSITIVE);
+      return Collections.unmodifiableList(list);
+    }
+  }
+
   private final String docId;
   private final String parentId;
   private final AclInheritanceType inheritanceType;
-  private final String googleGlobalNamespace;
-  private final Set<String> allowUsers;
-  private final Set<String> denyUsers;
-  private final Set<String> allowGroups;
-  private final Set<String> denyGroups;
+  private final Principals principals;
 
   private Date checkpointLastModified;
   private Id checkpointLastUuid;
@@ -68,14 +104,25 @@ class AclDocument implements Document {
       AclInheritanceType inheritanceType, String googleGlobalNamespace,
       Set<String> allowUsers, Set<String> denyUsers, Set<String> allowGroups,
       Set<String> denyGroups) {
+    this(docId, parentId, inheritanceType, new Principals(
+        googleGlobalNamespace, allowUsers, denyUsers, allowGroups,
+        denyGroups));
+  }
+
+  public AclDocument(String docId, String parentId,
+      AclInheritanceType inheritanceType, Principals principals) {
     this.docId = docId;
     this.parentId = parentId;
     this.inheritanceType = inheritanceType;
-    this.googleGlobalNamespace = googleGlobalNamespace;
-    this.allowUsers = allowUsers;
-    this.denyUsers = denyUsers;
-    this.allowGroups = allowGroups;
-    this.denyGroups = denyGroups;
+    this.principals = principals;
+  }
+
+  /**
+   * Gets the number of principals in this ACL, as an estimate of its
+   * size when it is sent to the search appliance.
+   */
+  public int getPrincipalCount() {
+    return principals.size();
   }
 
   public Date getCheckpointLastModified() {
@@ -119,46 +166,26 @@ class AclDocument implements Document {
       list.add(Value.getStringValue(inheritanceType.toString()));
       return new SimpleProperty(list);
     } else if (SpiConstants.PROPNAME_ACLUSERS.equals(name)) {
-      if (allowUsers.isEmpty()) {
-        return null;
-      } else {
-        FileUtil.addPrincipals(list, PrincipalType.UNKNOWN,
-            googleGlobalNamespace, allowUsers,
-            CaseSensitivityType.EVERYTHING_CASE_INSENSITIVE);
-        return new SimpleProperty(list);
-      }
+      return getPrincipalProperty(principals.allowUsers);
     } else if (SpiConstants.PROPNAME_ACLDENYUSERS.equals(name)) {
-      if (denyUsers.isEmpty()) {
-        return null;
-      } else {
-        FileUtil.addPrincipals(list, PrincipalType.UNKNOWN,
-            googleGlobalNamespace, denyUsers,
-            CaseSensitivityType.EVERYTHING_CASE_INSENSITIVE);
-        return new SimpleProperty(list);
-      }
+      return getPrincipalProperty(principals.denyUsers);
     } else if (SpiConstants.PROPNAME_ACLGROUPS.equals(name)) {
-      if (allowGroups.isEmpty()) {
-        return null;
-      } else {
-        FileUtil.addPrincipals(list, PrincipalType.UNKNOWN,
-            googleGlobalNamespace, allowGroups,
-            CaseSensitivityType.EVERYTHING_CASE_INSENSITIVE);
-        return new SimpleProperty(list);
-      }
+      return getPrincipalProperty(principals.allowGroups);
     } else if (SpiConstants.PROPNAME_ACLDENYGROUPS.equals(name)) {
-      if (denyGroups.isEmpty()) {
-        return null;
-      } else {
-        FileUtil.addPrincipals(list, PrincipalType.UNKNOWN,
-            googleGlobalNamespace, denyGroups,
-            CaseSensitivityType.EVERYTHING_CASE_INSENSITIVE);
-        return new SimpleProperty(list);
-      }
+      return getPrincipalProperty(principals.denyGroups);
     } else {
       return null;
     }
   }
 
+  private Property getPrincipalProperty(List<Value> values) {
+    if (values.isEmpty()) {
+      return null;
+    } else {
+      return new SimpleProperty(values);
+    }
+  }
+
   @Override
   public Set<String> getPropertyNames() throws RepositoryException {
     return propNames;
@@ -0,0 +1,74 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares the principals of ACL documents within a batch. Inherited
+ * permissions are usually the same for many documents, so the ACL
+ * documents for them, which still have distinct document IDs, share
+ * one copy of the principal values for each distinct ACL.
+ * <p>
+ * This class is thread-safe.
+ */
+class AclInterner {
+  private final ConcurrentMap<List<Object>, AclDocument.Principals> acls =
+      new ConcurrentHashMap<List<Object>, AclDocument.Principals>();
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  /**
+   * Gets the shared principals for the given permissions. The order of
+   * the names in each set does not matter.
+   */
+  AclDocument.Principals intern(String googleGlobalNamespace,
+      Set<String> allowUsers, Set<String> denyUsers, Set<String> allowGroups,
+      Set<String> denyGroups) {
+    requests.incrementAndGet();
+    // The namespace may be null, which ImmutableList does not allow.
+    List<Object> key = Arrays.<Object>asList(googleGlobalNamespace,
+        ImmutableSet.copyOf(allowUsers), ImmutableSet.copyOf(denyUsers),
+        ImmutableSet.copyOf(allowGroups), ImmutableSet.copyOf(denyGroups));
+    AclDocument.Principals principals = acls.get(key);
+    if (principals == null) {
+      AclDocument.Principals newPrincipals = new AclDocument.Principals(
+          googleGlobalNamespace, allowUsers, denyUsers, allowGroups,
+          denyGroups);
+      principals = acls.putIfAbsent(key, newPrincipals);
+      if (principals == null) {
+        principals = newPrincipals;
+      }
+    }
+    return principals;
+  }
+
+  /** Gets the number of ACLs requested. */
+  int getRequestCount() {
+    return requests.get();
+  }
+
+  /** Gets the number of distinct ACLs. */
+  int size() {
+    return acls.size();
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adjusts the batch size used by the traversers to the observed
+ * traversal times. Each batch is modeled as a fixed query time plus
+ * a fetch time per document, and the batch size is chosen so that a
+ * batch is expected to take the target time, within the configured
+ * bounds. The estimates are smoothed, and the batch size changes by
+ * at most a factor of two from one batch to the next.
+ * <p>
+ * This class is thread-safe.
+ */
+class AdaptiveBatchSize {
+  private static final Logger LOGGER =
+      Logger.getLogger(AdaptiveBatchSize.class.getName());
+
+  /** The weight of the newest sample in the smoothed estimates. */
+  private static final double WEIGHT = 0.5;
+
+  private final int minimum;
+  private final int maximum;
+  private final long targetNanos;
+
+  /** The current batch size, or zero if no batch has been recorded. */
+  private int batchSize = 0;
+
+  /** The smoothed query time, or a negative number if unknown. */
+  private double queryNanos = -1;
+
+  /** The smoothed fetch time per document, or a negative number. */
+  private double nanosPerDocument = -1;
+
+  /**
+   * Constructs an instance with the given bounds and target time.
+   *
+   * @param minimum the minimum batch size, at least 1
+   * @param maximum the maximum batch size, at least {@code minimum}
+   * @param target the target time for each batch
+   * @param unit the time unit of {@code target}
+   */
+  AdaptiveBatchSize(int minimum, int maximum, long target, TimeUnit unit) {
+    if (minimum < 1 || maximum < minimum) {
+      throw new IllegalArgumentException("Invalid batch size bounds: "
+          + minimum + ", " + maximum);
+    }
+    this.minimum = minimum;
+    this.maximum = maximum;
+    this.targetNanos = unit.toNanos(target);
+  }
+
+  /**
+   * Gets the batch size to use for the next batch.
+   *
+   * @param batchHint the batch hint from the Connector Manager, used
+   *     until the first batch has been recorded
+   */
+  synchronized int getBatchSize(int batchHint) {
+    return (batchSize == 0) ? clamp(batchHint) : batchSize;
+  }
+
+  /**
+   * Records the times for a batch, and adjusts the batch size.
+   *
+   * @param size the batch size used for the batch
+   * @param documents the number of documents returned
+   * @param queryTime the time spent querying the repository, in
+   *     nanoseconds
+   * @param fetchTime the elapsed time from returning the documents
+   *     until they were read or checkpointed, in nanoseconds
+   */
+  synchronized void record(int size, int documents, long queryTime,
+      long fetchTime) {
+    queryNanos = smooth(queryNanos, queryTime);
+    if (documents > 0) {
+      nanosPerDocument =
+          smooth(nanosPerDocument, fetchTime / (double) documents);
+    }
+    if (nanosPerDocument <= 0) {
+      // Nothing is known about the document fetch time yet.
+      return;
+    }
+
+    double ideal = (targetNanos - queryNanos) / nanosPerDocument;
+    long next = Math.max(size / 2, Math.min(2L * size, (long) ideal));
+    int previous = batchSize;
+    batchSize = clamp(next);
+    if (batchSize != previous) {
+      LOGGER.log(Level.FINE, "Adjusting the batch size from {0} to {1} "
+          + "[query: {2} ms, per document: {3} ms]", new Object[] {
+              size, batchSize, queryNanos / 1e6, nanosPerDocument / 1e6});
+    }
+  }
+
+  private double smooth(double estimate, double sample) {
+    return (estimate < 0) ? sample : WEIGHT * sample + (1 - WEIGHT) * estimate;
+  }
+
+  private int clamp(long size) {
+    return (int) Math.max(minimum, Math.min(maximum, size));
+  }
+}
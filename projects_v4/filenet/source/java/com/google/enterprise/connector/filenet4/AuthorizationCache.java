@@ -0,0 +1,251 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import com.filenet.api.util.Id;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches authorization decisions by user and version series. Decisions
+ * expire after a time to live, and are dropped when the traversers see
+ * a change to the version series, or to a security policy or security
+ * folder that could affect any document. The changes are kept for as
+ * many version series as decisions, and all decisions are dropped if a
+ * change is evicted before it expires.
+ * <p>
+ * The permissions of document versions are also cached, by ID and last
+ * modified date, so that their compiled ACLs are shared by the users
+ * authorized for the same document. They expire and are dropped when a
+ * security policy or folder changes, like the decisions, since a change
+ * to an inherited ACL does not change the last modified date.
+ * <p>
+ * Each entry records the time that the authorization started, so a
+ * change that is seen while a document is being authorized invalidates
+ * that entry as well.
+ * <p>
+ * This class is thread-safe.
+ */
+class AuthorizationCache {
+  /** A cached value, with the time the authorization started. */
+  private static class Entry<T> {
+    final T value;
+    final long startTime;
+
+    Entry(T value, long startTime) {
+      this.value = value;
+      this.startTime = startTime;
+    }
+  }
+
+  /** A cache that is always empty, for callers without a session. */
+  static final AuthorizationCache DISABLED =
+      new AuthorizationCache(0, 0, TimeUnit.SECONDS);
+
+  private final boolean isEnabled;
+  private final Cache<List<Object>, Entry<Boolean>> decisions;
+
+  private final boolean isAclsEnabled;
+  private final Cache<List<Object>, Entry<Permissions>> acls;
+
+  /**
+   * The times that version series were last seen to change. Evicting a
+   * change for size invalidates all decisions, since some of them may
+   * predate the change.
+   */
+  private final Cache<Id, Long> changes;
+
+  /** The time that all decisions were last invalidated. */
+  private volatile long clearTime = System.nanoTime();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maximumSize the maximum number of decisions, or zero to
+   *     disable the cache
+   * @param ttl the time to live of each decision
+   */
+  AuthorizationCache(long maximumSize, long ttl, TimeUnit unit) {
+    this(maximumSize, 0, ttl, unit);
+  }
+
+  /**
+   * @param maximumSize the maximum number of decisions, or zero to
+   *     disable caching decisions
+   * @param aclMaximumSize the maximum number of document permissions,
+   *     or zero to disable caching permissions
+   * @param ttl the time to live of each decision and permissions
+   */
+  AuthorizationCache(long maximumSize, long aclMaximumSize, long ttl,
+      TimeUnit unit) {
+    this.isEnabled = maximumSize > 0 && ttl > 0;
+    this.decisions = CacheBuilder.newBuilder()
+        .maximumSize(isEnabled ? maximumSize : 0)
+        .expireAfterWrite(ttl, unit)
+        .recordStats()
+        .build();
+    this.isAclsEnabled = aclMaximumSize > 0 && ttl > 0;
+    this.acls = CacheBuilder.newBuilder()
+        .maximumSize(isAclsEnabled ? aclMaximumSize : 0)
+        .expireAfterWrite(ttl, unit)
+        .build();
+    // Changes only need to be kept as long as the decisions they affect.
+    this.changes = CacheBuilder.newBuilder()
+        .maximumSize(isEnabled ? maximumSize : 0)
+        .expireAfterWrite(ttl, unit)
+        .removalListener(new RemovalListener<Id, Long>() {
+            @Override
+            public void onRemoval(RemovalNotification<Id, Long> removal) {
+              if (removal.getCause() == RemovalCause.SIZE) {
+                invalidateAll();
+              }
+            }
+          })
+        .build();
+  }
+
+  /** Gets the start time to pass to {@link #put}. */
+  long startTime() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Gets a cached decision.
+   *
+   * @return the decision, or {@code null} if there is none
+   */
+  Boolean get(String user, Id versionSeriesId, boolean checkMarkings) {
+    if (!isEnabled) {
+      return null;
+    }
+    List<Object> key = getKey(user, versionSeriesId, checkMarkings);
+    Entry<Boolean> decision = decisions.getIfPresent(key);
+    if (decision != null) {
+      Long changeTime = changes.getIfPresent(versionSeriesId);
+      if (decision.startTime - clearTime < 0
+          || (changeTime != null && decision.startTime - changeTime < 0)) {
+        decisions.invalidate(key);
+        decision = null;
+      }
+    }
+    if (decision == null) {
+      misses.incrementAndGet();
+      return null;
+    } else {
+      hits.incrementAndGet();
+      return decision.value;
+    }
+  }
+
+  /**
+   * Caches a decision.
+   *
+   * @param startTime the value of {@link #startTime} when the
+   *     authorization started, before the document was read
+   */
+  void put(String user, Id versionSeriesId, boolean checkMarkings,
+      boolean isAuthorized, long startTime) {
+    if (isEnabled) {
+      decisions.put(getKey(user, versionSeriesId, checkMarkings),
+          new Entry<Boolean>(isAuthorized, startTime));
+    }
+  }
+
+  /**
+   * Gets the cached permissions of a document version.
+   *
+   * @return the permissions, or {@code null} if there are none
+   */
+  Permissions getPermissions(Id id, Date dateLastModified) {
+    if (!isAclsEnabled || id == null || dateLastModified == null) {
+      return null;
+    }
+    List<Object> key = Arrays.<Object>asList(id, dateLastModified);
+    Entry<Permissions> permissions = acls.getIfPresent(key);
+    if (permissions == null) {
+      return null;
+    } else if (permissions.startTime - clearTime < 0) {
+      acls.invalidate(key);
+      return null;
+    } else {
+      return permissions.value;
+    }
+  }
+
+  /**
+   * Caches the permissions of a document version.
+   *
+   * @param startTime the value of {@link #startTime} when the
+   *     authorization started, before the document was read
+   */
+  void putPermissions(Id id, Date dateLastModified, Permissions permissions,
+      long startTime) {
+    if (isAclsEnabled && id != null && dateLastModified != null) {
+      acls.put(Arrays.<Object>asList(id, dateLastModified),
+          new Entry<Permissions>(permissions, startTime));
+    }
+  }
+
+  /** Invalidates the decisions for a changed version series. */
+  void invalidate(Id versionSeriesId) {
+    if (isEnabled) {
+      changes.put(versionSeriesId, System.nanoTime());
+    }
+  }
+
+  /**
+   * Invalidates all decisions and permissions, after a change that may
+   * affect any.
+   */
+  void invalidateAll() {
+    if (isEnabled || isAclsEnabled) {
+      clearTime = System.nanoTime();
+      decisions.invalidateAll();
+      acls.invalidateAll();
+    }
+  }
+
+  /** Gets the number of requests that returned a cached decision. */
+  long getHitCount() {
+    return hits.get();
+  }
+
+  /** Gets the number of requests that did not find a valid decision. */
+  long getMissCount() {
+    return misses.get();
+  }
+
+  /** Gets the number of decisions evicted by size or time to live. */
+  long getEvictionCount() {
+    return decisions.stats().evictionCount();
+  }
+
+  private static List<Object> getKey(String user, Id versionSeriesId,
+      boolean checkMarkings) {
+    // The user name may be null, which ImmutableList does not allow.
+    return Arrays.<Object>asList(user, versionSeriesId, checkMarkings);
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool shared by the authorization requests of a
+ * session. When the queue is full, tasks are rejected, rather than run
+ * on the requesting thread where they would not be bound by the
+ * request timeout. The time that tasks spend queued and running is
+ * recorded.
+ * <p>
+ * This class is thread-safe.
+ */
+class AuthorizationExecutor {
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicLong completedTasks = new AtomicLong();
+  private final AtomicLong queuedNanos = new AtomicLong();
+  private final AtomicLong runningNanos = new AtomicLong();
+
+  /**
+   * @param threads the maximum number of threads
+   * @param queueSize the maximum number of tasks waiting for a thread
+   */
+  AuthorizationExecutor(int threads, int queueSize) {
+    // Idle threads time out, so the executor is never shut down.
+    executor = new ThreadPoolExecutor(threads, threads, 60L,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("FileAuthorizationManager-authorize-%d").build(),
+        new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Submits a task, recording the time it is queued and running.
+   *
+   * @throws RejectedExecutionException if the queue is full
+   */
+  Future<?> submit(final Runnable task) {
+    final long submitted = System.nanoTime();
+    return executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          long started = System.nanoTime();
+          queuedNanos.addAndGet(started - submitted);
+          try {
+            task.run();
+          } finally {
+            runningNanos.addAndGet(System.nanoTime() - started);
+            completedTasks.incrementAndGet();
+          }
+        }
+      });
+  }
+
+  /** Gets the number of tasks waiting for a thread. */
+  int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /** Gets the number of threads running tasks. */
+  int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /** Gets the number of tasks that have completed. */
+  long getCompletedTaskCount() {
+    return completedTasks.get();
+  }
+
+  /** Gets the total time completed tasks spent waiting for a thread. */
+  long getQueuedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(queuedNanos.get());
+  }
+
+  /** Gets the total time completed tasks spent running. */
+  long getRunningMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(runningNanos.get());
+  }
+}
@@ -18,7 +18,7 @@ import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.RepositoryException;
 
-import com.filenet.api.security.User;
+import java.util.Collection;
 
 interface AuthorizationHandler {
   void pushSubject();
@@ -27,8 +27,21 @@ interface AuthorizationHandler {
 
   boolean hasMarkings();
 
-  User getUser(AuthenticationIdentity identity);
+  /**
+   * Gets the user and its groups, or {@code null} if the user cannot be
+   * found. The caller must have pushed a subject.
+   */
+  UserProfile getUser(AuthenticationIdentity identity);
 
-  AuthorizationResponse authorizeDocid(String docid, User user,
+  AuthorizationResponse authorizeDocid(String docid, UserProfile user,
       boolean checkMarkings) throws RepositoryException;
+
+  /**
+   * Authorizes the user for the given documents in bulk.
+   *
+   * @return a response for each of the given docids, or for the docids
+   *     that were authorized before the thread was interrupted
+   */
+  Collection<AuthorizationResponse> authorizeDocids(Collection<String> docids,
+      UserProfile user, boolean checkMarkings) throws RepositoryException;
 }
@@ -45,7 +45,9 @@ class Checkpoint {
     LAST_DELETION_EVENT_TIME("lastRemoveDate"),
     LAST_CUSTOM_DELETION_TIME("lastModifiedDate"),
     LAST_SECURITY_POLICY_TIME("lastPolicyDate"),
-    LAST_FOLDER_TIME("lastFolderDate");
+    LAST_FOLDER_TIME("lastFolderDate"),
+    FOLDER_PATH("folderPath"),
+    UUID_FOLDER_DOCUMENT("uuidFolderDoc");
 
     private final String fieldName;
 
@@ -125,6 +127,27 @@ class Checkpoint {
     }
   }
 
+  /**
+   * Sets the given field in the checkpoint.
+   *
+   * @param jsonField the field to set
+   * @param value the new value, or {@code null} to remove the field
+   * @throws RepositoryException if the value cannot be set
+   */
+  public void setString(JsonField jsonField, String value)
+      throws RepositoryException {
+    if (value == null) {
+      jo.remove(jsonField.toString());
+      return;
+    }
+    try {
+      jo.put(jsonField.toString(), value);
+    } catch (JSONException e) {
+      throw new RepositoryException(
+          "Failed to set JSON value for field: " + jsonField, e);
+    }
+  }
+
   /** Checks whether the given field exists in the checkpoint. */
   public boolean isNull(JsonField jsonField) {
     return jo.isNull(jsonField.toString());
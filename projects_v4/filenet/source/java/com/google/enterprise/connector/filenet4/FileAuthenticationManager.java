@@ -25,13 +25,8 @@ import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants.CaseSensitivityType;
 import com.google.enterprise.connector.spi.SpiConstants.PrincipalType;
 
-import com.filenet.api.security.Group;
-import com.filenet.api.security.User;
-
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,12 +40,23 @@ public class FileAuthenticationManager implements AuthenticationManager {
   private final IConnection conn;
   private final String globalNamespace;
   private final boolean returnGroups;
+  private final UserCache users;
 
   public FileAuthenticationManager(IConnection conn, String namespace,
         boolean returnGroups) {
+    this(conn, namespace, returnGroups,
+        new UserCache(conn, 0, 0, TimeUnit.SECONDS));
+  }
+
+  /**
+   * @param users the cached users and their groups, shared by the session
+   */
+  FileAuthenticationManager(IConnection conn, String namespace,
+      boolean returnGroups, UserCache users) {
     this.conn = conn;
     this.globalNamespace = namespace;
     this.returnGroups = returnGroups;
+    this.users = users;
   }
 
   /**
@@ -60,25 +66,27 @@ public class FileAuthenticationManager implements AuthenticationManager {
   @Override
   public AuthenticationResponse authenticate(AuthenticationIdentity id)
       throws RepositoryException {
-    IUserContext uc = conn.getUserContext();
     try {
-      User user;
+      UserProfile user;
       if (Strings.isNullOrEmpty(id.getPassword())) {
-        user = uc.lookupUser(id.getUsername());
+        user = users.get(id.getUsername());
       } else {
-        user = uc.authenticate(id.getUsername(), id.getPassword());
+        // The password is always checked, but the groups may be cached.
+        IUserContext uc = conn.getUserContext();
+        user = users.get(id.getUsername(),
+            uc.authenticate(id.getUsername(), id.getPassword()));
       }
       String identityDomain = getDomain(id);
       if (!Strings.isNullOrEmpty(identityDomain)
-          && !matchesDomain(identityDomain, user.get_Email(),
-              user.get_Name(), user.get_DistinguishedName())) {
+          && !matchesDomain(identityDomain, user.getEmail(),
+              user.getName(), user.getDistinguishedName())) {
         logger.log(Level.FINE, "GSA identity {0} does not match {1}.",
             new Object[] {id, user});
         return new AuthenticationResponse(false, "");
       }
       if (returnGroups) {
         List<Principal> principalGroups = FileUtil.getPrincipals(
-            PrincipalType.UNKNOWN, globalNamespace, getGroupNames(user),
+            PrincipalType.UNKNOWN, globalNamespace, user.getGroupNames(),
             CaseSensitivityType.EVERYTHING_CASE_INSENSITIVE);
         principalGroups.add(new Principal(PrincipalType.UNKNOWN,
             globalNamespace, Permissions.AUTHENTICATED_USERS,
@@ -154,14 +162,4 @@ public class FileAuthenticationManager implements AuthenticationManager {
       return domain.substring(0, pos);
     }
   }
-
-  private Set<String> getGroupNames(User user) {
-    Set<String> groups = new HashSet<>();
-    Iterator<?> iter = user.get_MemberOfGroups().iterator();
-    while (iter.hasNext()) {
-      Group group = (Group) iter.next();
-      groups.add(group.get_Name());
-    }
-    return groups;
-  }
 }
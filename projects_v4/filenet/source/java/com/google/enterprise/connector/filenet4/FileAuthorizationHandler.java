@@ -15,30 +15,34 @@
 package com.google.enterprise.connector.filenet4;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.enterprise.connector.filenet4.api.IConnection;
 import com.google.enterprise.connector.filenet4.api.IDocument;
 import com.google.enterprise.connector.filenet4.api.IObjectFactory;
 import com.google.enterprise.connector.filenet4.api.IObjectStore;
-import com.google.enterprise.connector.filenet4.api.IUserContext;
 import com.google.enterprise.connector.filenet4.api.IVersionSeries;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.RepositoryException;
 
-import com.filenet.api.admin.PropertyDefinitionString;
 import com.filenet.api.collection.ActiveMarkingList;
-import com.filenet.api.collection.PropertyDefinitionList;
 import com.filenet.api.constants.ClassNames;
-import com.filenet.api.constants.GuidConstants;
+import com.filenet.api.constants.PropertyNames;
+import com.filenet.api.property.FilterElement;
+import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.security.ActiveMarking;
 import com.filenet.api.security.Marking;
-import com.filenet.api.security.MarkingSet;
-import com.filenet.api.security.User;
+import com.filenet.api.util.Id;
 import com.filenet.api.util.UserContext;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,20 +50,103 @@ public class FileAuthorizationHandler implements AuthorizationHandler {
   private static final Logger logger =
       Logger.getLogger(FileAuthorizationHandler.class.getName());
 
+  /** The maximum number of released versions to fetch in one search. */
+  static final int MAX_FETCH_SIZE = 100;
+
+  /**
+   * The properties of the released version that are needed to authorize
+   * a user. The last modified date is used to look up the cached
+   * permissions. A search only returns the selected properties.
+   */
+  @VisibleForTesting
+  static final List<String> RELEASED_VERSION_SELECT = ImmutableList.of(
+      PropertyNames.DATE_LAST_MODIFIED, PropertyNames.OWNER,
+      PropertyNames.PERMISSIONS);
+
+  /** The released version properties, plus its active markings. */
+  @VisibleForTesting
+  static final List<String> RELEASED_VERSION_MARKINGS_SELECT =
+      ImmutableList.<String>builder().addAll(RELEASED_VERSION_SELECT)
+      .add(PropertyNames.ACTIVE_MARKINGS).build();
+
+  /** The properties of the released version and its permissions. */
+  private static final String RELEASED_VERSION_PROPERTIES =
+      PropertyNames.ID + " " + PropertyNames.DATE_LAST_MODIFIED + " "
+      + PropertyNames.OWNER + " " + PropertyNames.PERMISSIONS + " "
+      + PropertyNames.GRANTEE_NAME + " " + PropertyNames.GRANTEE_TYPE + " "
+      + PropertyNames.ACCESS_TYPE + " " + PropertyNames.ACCESS_MASK;
+
+  /** The properties of the active markings of the released version. */
+  private static final String MARKING_PROPERTIES =
+      PropertyNames.ACTIVE_MARKINGS + " " + PropertyNames.MARKING + " "
+      + PropertyNames.MARKING_VALUE + " " + PropertyNames.CONSTRAINT_MASK;
+
+  /**
+   * Filters the released version to its owner and permissions. The
+   * permissions are dependent objects, which do not count as a level
+   * of recursion. The version series is an unevaluated reference that
+   * holds just its ID.
+   */
+  @VisibleForTesting
+  static final PropertyFilter RELEASED_VERSION_FILTER = new PropertyFilter();
+
+  /**
+   * Filters the released version to its owner, permissions, and active
+   * markings. The markings are a level of recursion.
+   */
+  @VisibleForTesting
+  static final PropertyFilter RELEASED_VERSION_MARKINGS_FILTER =
+      new PropertyFilter();
+
+  static {
+    RELEASED_VERSION_FILTER.setMaxRecursion(0);
+    RELEASED_VERSION_FILTER.addIncludeProperty(new FilterElement(0, null,
+        Boolean.FALSE, PropertyNames.VERSION_SERIES + " "
+        + RELEASED_VERSION_PROPERTIES, null));
+
+    RELEASED_VERSION_MARKINGS_FILTER.setMaxRecursion(1);
+    RELEASED_VERSION_MARKINGS_FILTER.addIncludeProperty(new FilterElement(0,
+        null, Boolean.FALSE, PropertyNames.VERSION_SERIES, null));
+    RELEASED_VERSION_MARKINGS_FILTER.addIncludeProperty(new FilterElement(1,
+        null, Boolean.FALSE,
+        RELEASED_VERSION_PROPERTIES + " " + MARKING_PROPERTIES, null));
+  }
+
   private final IConnection conn;
-  private final IObjectFactory objectFactory;
   private final IObjectStore objectStore;
   private final boolean checkMarkings;
   private final Permissions.Factory permissionsFactory;
+  private final MarkingSetCache markingSets;
+  private final AuthorizationCache authorizations;
+  private final UserCache users;
 
   public FileAuthorizationHandler(IConnection conn,
       IObjectFactory objectFactory, IObjectStore objectStore,
       boolean checkMarkings, Permissions.Factory permissionsFactory) {
+    this(conn, objectStore, checkMarkings, permissionsFactory,
+        new MarkingSetCache(conn, objectFactory, objectStore),
+        AuthorizationCache.DISABLED,
+        new UserCache(conn, 0, 0, TimeUnit.SECONDS));
+  }
+
+  /**
+   * @param markingSets the cached marking sets of the Document class,
+   *     shared by the session
+   * @param authorizations the cached authorization decisions, shared
+   *     by the session
+   * @param users the cached users and their groups, shared by the session
+   */
+  FileAuthorizationHandler(IConnection conn, IObjectStore objectStore,
+      boolean checkMarkings, Permissions.Factory permissionsFactory,
+      MarkingSetCache markingSets, AuthorizationCache authorizations,
+      UserCache users) {
     this.conn = conn;
-    this.objectFactory = objectFactory;
     this.objectStore = objectStore;
     this.checkMarkings = checkMarkings;
     this.permissionsFactory = permissionsFactory;
+    this.markingSets = markingSets;
+    this.authorizations = authorizations;
+    this.users = users;
   }
 
   @Override
@@ -73,11 +160,10 @@ public class FileAuthorizationHandler implements AuthorizationHandler {
   }
 
   @Override
-  public User getUser(AuthenticationIdentity id) {
+  public UserProfile getUser(AuthenticationIdentity id) {
     // Lookup FileNet user and user's groups
-    IUserContext uc = conn.getUserContext();
     try {
-      return uc.lookupUser(id.getUsername());
+      return users.get(id.getUsername());
     } catch (RepositoryException e) {
       logger.log(Level.WARNING, "Failed to lookup user [" + id
           + "] in FileNet", e);
@@ -85,53 +171,22 @@ public class FileAuthorizationHandler implements AuthorizationHandler {
     }
   }
 
-  /*
-   * TODO(jlacey): It looked like there was partial caching when this
-   * code was introduced (on the trunk) in commit 4fab233. Can the answer
-   * vary by user, or should we rather be checking as a privileged user
-   * (view access to an attribute with a marking set might be constrained
-   * by a modification access mask)? If it can't vary, then we should
-   * call this once in the constructor, rather than call this method on
-   * each call to authorizeDocids.
+  /**
+   * Gets whether the Document class has a property with a marking set.
+   * The property definitions are read with the connector credentials,
+   * so the answer does not vary by user, and it is cached by the session.
    */
   @Override
   public boolean hasMarkings() {
     if (checkMarkings) {
-      logger.info("Connector is configured to check marking sets "
+      logger.fine("Connector is configured to check marking sets "
           + "for authorization");
     } else {
-      logger.info("Connector is configured to not check marking sets "
+      logger.fine("Connector is configured to not check marking sets "
           + "for authorization");
       return false;
     }
-
-    // check for the marking sets applied over the document class
-    try {
-      PropertyDefinitionList propertyDefinitions =
-          objectFactory.getPropertyDefinitions(objectStore,
-              GuidConstants.Class_Document, null);
-      Iterator<?> iter = propertyDefinitions.iterator();
-      while (iter.hasNext()) {
-        Object propertyDefinition = iter.next();
-        // Only string properties can have a marking set, and
-        // get_MarkingSet is defined directly on PropertyDefinitionString.
-        if (propertyDefinition instanceof PropertyDefinitionString) {
-          MarkingSet markingSet = ((PropertyDefinitionString) propertyDefinition).get_MarkingSet();
-          if (markingSet != null) {
-            logger.info("Document class has a property with a marking set");
-            return true;
-          }
-        }
-      }
-
-      logger.info("Document class has no properties with a marking set");
-      return false;
-    } catch (Exception ecp) {
-      logger.log(Level.SEVERE, "Failure checking for a marking set", ecp);
-      // This was the existing behavior when an exception was thrown, to
-      // use checkMarkings, and if we're here then checkMarkings is true.
-      return true;
-    }
+    return markingSets.hasMarkings();
   }
 
   @VisibleForTesting
@@ -147,19 +202,158 @@ public class FileAuthorizationHandler implements AuthorizationHandler {
   }
 
   @Override
-  public AuthorizationResponse authorizeDocid(String docId, User user,
+  public AuthorizationResponse authorizeDocid(String docId, UserProfile user,
       boolean authorizeMarkings) throws RepositoryException {
+    Id id = getId(docId);
+    Boolean cached = authorizations.get(user.getName(), id, authorizeMarkings);
+    if (cached != null) {
+      logger.log(Level.FINE, "Using cached authorization for docid {0}",
+          docId);
+      return new AuthorizationResponse(cached, docId);
+    }
+    long startTime = authorizations.startTime();
+    AuthorizationResponse response = authorize(docId,
+        getReleasedVersion(docId), user, authorizeMarkings, startTime);
+    authorizations.put(user.getName(), id, authorizeMarkings,
+        response.isValid(), startTime);
+    return response;
+  }
+
+  private Id getId(String docId) throws RepositoryException {
+    try {
+      return new Id(URLDecoder.decode(docId, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new RepositoryException("UTF-8 encoding not supported.", e);
+    }
+  }
+
+  /**
+   * Authorizes the documents in bulk. The released versions of the
+   * version series are fetched a page at a time, along with their
+   * permissions, owner, and active markings, rather than one document
+   * at a time. If a search fails, each document in that page is authorized
+   * individually. Documents that cannot be authorized are denied.
+   * Cached decisions are used without fetching the version series. If
+   * the thread is interrupted, the remaining pages are not authorized,
+   * and their docids are omitted from the responses.
+   */
+  @Override
+  public Collection<AuthorizationResponse> authorizeDocids(
+      Collection<String> docids, UserProfile user, boolean authorizeMarkings)
+      throws RepositoryException {
+    List<AuthorizationResponse> responses =
+        new ArrayList<AuthorizationResponse>(docids.size());
+    List<String> pageDocids = new ArrayList<String>(MAX_FETCH_SIZE);
+    List<Id> pageIds = new ArrayList<Id>(MAX_FETCH_SIZE);
+    for (String docId : docids) {
+      if (pageIds.isEmpty() && Thread.currentThread().isInterrupted()) {
+        logger.log(Level.FINE, "Authorization was interrupted after {0} of "
+            + "{1} docids", new Object[] {responses.size(), docids.size()});
+        break;
+      }
+      Id id;
+      try {
+        id = getId(docId);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to authorize docid " + docId
+            + " for user " + user.getName(), e);
+        responses.add(new AuthorizationResponse(false, docId));
+        continue;
+      }
+      Boolean cached =
+          authorizations.get(user.getName(), id, authorizeMarkings);
+      if (cached != null) {
+        responses.add(new AuthorizationResponse(cached, docId));
+        continue;
+      }
+      pageDocids.add(docId);
+      pageIds.add(id);
+      if (pageIds.size() == MAX_FETCH_SIZE) {
+        authorizePage(pageDocids, pageIds, user, authorizeMarkings,
+            responses);
+        pageDocids.clear();
+        pageIds.clear();
+      }
+    }
+    if (!pageIds.isEmpty()) {
+      authorizePage(pageDocids, pageIds, user, authorizeMarkings, responses);
+    }
+    logger.log(Level.FINE, "Authorization cache: {0} hits, {1} misses, "
+        + "{2} evictions", new Object[] { authorizations.getHitCount(),
+            authorizations.getMissCount(),
+            authorizations.getEvictionCount() });
+    return responses;
+  }
+
+  /**
+   * Authorizes a page of documents, fetching their released versions in
+   * a single search.
+   */
+  private void authorizePage(List<String> docids, List<Id> ids,
+      UserProfile user, boolean authorizeMarkings,
+      List<AuthorizationResponse> responses) {
+    // Changes seen from here on invalidate the decisions for this page.
+    long startTime = authorizations.startTime();
+    Map<Id, IDocument> releasedVersions;
+    try {
+      releasedVersions = authorizeMarkings
+          ? objectStore.fetchReleasedVersions(ids,
+              RELEASED_VERSION_MARKINGS_SELECT,
+              RELEASED_VERSION_MARKINGS_FILTER)
+          : objectStore.fetchReleasedVersions(ids, RELEASED_VERSION_SELECT,
+              RELEASED_VERSION_FILTER);
+    } catch (RepositoryException e) {
+      logger.log(Level.WARNING, "Unable to fetch " + ids.size()
+          + " released versions in a single search", e);
+      releasedVersions = null;
+    }
+
+    for (int i = 0; i < docids.size(); i++) {
+      String docId = docids.get(i);
+      try {
+        IDocument releasedVersion;
+        if (releasedVersions == null) {
+          releasedVersion = getReleasedVersion(docId);
+        } else {
+          releasedVersion = releasedVersions.get(ids.get(i));
+          if (releasedVersion == null) {
+            logger.log(Level.FINE, "Released version not found for docid "
+                + "{0}", docId);
+            responses.add(new AuthorizationResponse(false, docId));
+            continue;
+          }
+        }
+        AuthorizationResponse response = authorize(docId, releasedVersion,
+            user, authorizeMarkings, startTime);
+        authorizations.put(user.getName(), ids.get(i), authorizeMarkings,
+            response.isValid(), startTime);
+        responses.add(response);
+      } catch (RepositoryException | RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to authorize docid " + docId
+            + " for user " + user.getName(), e);
+        responses.add(new AuthorizationResponse(false, docId));
+      }
+    }
+  }
+
+  /**
+   * Authorizes the given user against a released version.
+   *
+   * @param startTime the value of {@link AuthorizationCache#startTime}
+   *     before the released version was read
+   */
+  private AuthorizationResponse authorize(String docId,
+      IDocument releasedVersion, UserProfile user, boolean authorizeMarkings,
+      long startTime) throws RepositoryException {
     boolean isAuthorized;
     logger.log(Level.FINE, "Authorizing document: {0} for user: {1}",
-        new Object[] { docId, user.get_Name() });
-    IDocument releasedVersion = getReleasedVersion(docId);
-    Permissions permissions = permissionsFactory.getInstance(
-        releasedVersion.get_Permissions(), releasedVersion.get_Owner());
+        new Object[] { docId, user.getName() });
+    Permissions permissions = getPermissions(releasedVersion, startTime);
     if (permissions.authorize(user)) {
       if (authorizeMarkings) {
         logger.log(Level.FINE,
             "Authorizing document: {0} for user: {1} for Marking sets",
-            new Object[] { docId, user.get_Name() });
+            new Object[] { docId, user.getName() });
         ActiveMarkingList activeMarkings = releasedVersion.get_ActiveMarkings();
         if (!activeMarkings.isEmpty()) {
           logger.log(Level.FINE, "Document {0} has an active marking set",
@@ -178,19 +372,41 @@ public class FileAuthorizationHandler implements AuthorizationHandler {
     }
     logger.log(Level.FINE,
         "User {1} is {2}authorized for document DocID {0}",
-        new Object[] { docId, user.get_Name(), isAuthorized ? "" : "NOT " });
+        new Object[] { docId, user.getName(), isAuthorized ? "" : "NOT " });
     return new AuthorizationResponse(isAuthorized, docId);
   }
 
+  /**
+   * Gets the permissions of a released version. The permissions are
+   * cached by the ID and last modified date of the version, so the
+   * compiled ACL is shared by the users authorized for the document.
+   */
+  private Permissions getPermissions(IDocument releasedVersion,
+      long startTime) {
+    Id id = releasedVersion.get_Id();
+    Date lastModified = releasedVersion.get_DateLastModified();
+    Permissions permissions = authorizations.getPermissions(id, lastModified);
+    if (permissions == null) {
+      permissions = permissionsFactory.getInstance(
+          releasedVersion.get_Permissions(), releasedVersion.get_Owner());
+      authorizations.putPermissions(id, lastModified, permissions,
+          startTime);
+    } else {
+      logger.log(Level.FINEST, "Using cached permissions for {0}", id);
+    }
+    return permissions;
+  }
+
   /** Authorizes the given user against the ACLs of the active markings. */
   @VisibleForTesting
-  boolean authorizeMarking(User user, ActiveMarkingList activeMarkings) {
+  boolean authorizeMarking(UserProfile user,
+      ActiveMarkingList activeMarkings) {
     for (Object activeMarking : activeMarkings) {
       Marking marking = ((ActiveMarking) activeMarking).get_Marking();
 
       logger.log(Level.FINEST,
           "Authorizing user: {0} [Marking: {1}, Constraint Mask: {2}]",
-          new Object[] {user.get_Name(), marking.get_MarkingValue(),
+          new Object[] {user.getName(), marking.get_MarkingValue(),
                         marking.get_ConstraintMask()});
 
       Permissions perms =
@@ -198,7 +414,7 @@ public class FileAuthorizationHandler implements AuthorizationHandler {
       if (!perms.authorizeMarking(user, marking.get_ConstraintMask())) {
         logger.log(Level.FINER,
             "User {0} is not authorized for Marking value: {1}",
-            new Object[] {user.get_Name(), marking.get_MarkingValue()});
+            new Object[] {user.getName(), marking.get_MarkingValue()});
         return false;
       }
     }
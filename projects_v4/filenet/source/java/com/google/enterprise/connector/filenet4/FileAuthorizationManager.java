@@ -14,35 +14,65 @@
 
 package com.google.enterprise.connector.filenet4;
 
+import com.google.common.collect.Lists;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthorizationManager;
 import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.RepositoryException;
 
-import com.filenet.api.security.User;
-
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class FileAuthorizationManager implements AuthorizationManager {
   private static final Logger logger =
       Logger.getLogger(FileAuthorizationManager.class.getName());
-  private static final int MAX_RESPONSE_MINS = 1;
+  private static final int DEFAULT_TIMEOUT_MILLIS = 60000;
   private static final int AVG_DOCS_PER_THREAD = 16;
+  private static final int PAGE_SIZE = FileAuthorizationHandler.MAX_FETCH_SIZE;
   private static final int AVAILABLE_PROCESSORS =
       Runtime.getRuntime().availableProcessors();
 
+  /** The number of queued tasks per thread in the shared executor. */
+  private static final int QUEUED_TASKS_PER_THREAD = 16;
+
+  /**
+   * Creates an executor for the authorization requests of a session,
+   * with one thread per processor.
+   */
+  static AuthorizationExecutor newExecutor() {
+    return new AuthorizationExecutor(AVAILABLE_PROCESSORS,
+        AVAILABLE_PROCESSORS * QUEUED_TASKS_PER_THREAD);
+  }
+
   private final AuthorizationHandler handler;
+  private final AuthorizationExecutor executor;
+  private final long timeoutMillis;
 
   public FileAuthorizationManager(AuthorizationHandler handler) {
+    this(handler, newExecutor(), DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param handler the handler that authorizes the documents
+   * @param executor the executor shared by the session
+   * @param timeoutMillis the time allowed for each request, after which
+   *     the remaining documents are indeterminate
+   */
+  FileAuthorizationManager(AuthorizationHandler handler,
+      AuthorizationExecutor executor, long timeoutMillis) {
     this.handler = handler;
+    this.executor = executor;
+    this.timeoutMillis = timeoutMillis;
   }
 
   /**
@@ -74,100 +104,159 @@ public class FileAuthorizationManager implements AuthorizationManager {
     // popSubject
     handler.pushSubject();
 
-    User user = handler.getUser(identity);
-    if (user == null) {
+    // The names of the user and its groups are read once, rather than
+    // for each permission of each document.
+    UserProfile profile = handler.getUser(identity);
+    if (profile == null) {
       handler.popSubject();
       return null;
     }
-
     boolean authorizeMarkings = handler.hasMarkings();
     handler.popSubject();
 
-    // Compute thread pool size
+    // Compute the number of partitions
     int poolSize = docids.size() / AVG_DOCS_PER_THREAD;
     if (poolSize > AVAILABLE_PROCESSORS) {
       poolSize = AVAILABLE_PROCESSORS;
     } else if (poolSize == 0) {
       poolSize = 1;
     }
-    ExecutorService threadPool = Executors.newFixedThreadPool(poolSize);
 
     // Use a concurrent map to collect responses from multiple threads without
     // synchronization.
     Map<String, AuthorizationResponse> responses =
         new ConcurrentHashMap<String, AuthorizationResponse>(docids.size());
 
-    // Iterate through the DocId list and authorize the search user. Add the
-    // authorization result to a map of responses.
-    Iterator<String> iterator = docids.iterator();
-    for (int i = 0; i < poolSize; i++) {
+    // Partition the DocId list up front, and authorize each partition in
+    // bulk on the shared executor. Add the authorization results to a map
+    // of responses.
+    List<String> docidList = new ArrayList<String>(docids);
+    int partitionSize = (docidList.size() + poolSize - 1) / poolSize;
+    List<Future<?>> futures = new ArrayList<Future<?>>(poolSize);
+    for (List<String> partition
+        : Lists.partition(docidList, Math.max(partitionSize, 1))) {
       AuthorizationTask task = new AuthorizationTask(handler,
-          authorizeMarkings, iterator, user, responses);
-      threadPool.execute(task);
+          authorizeMarkings, partition, profile, responses);
+      try {
+        futures.add(executor.submit(task));
+      } catch (RejectedExecutionException e) {
+        // The executor is saturated, so these docids are indeterminate.
+        logger.log(Level.WARNING, "Authorization queue is full; skipped {0} "
+            + "docids for user {1}", new Object[] {partition.size(),
+            profile.getName()});
+      }
     }
-    threadPool.shutdown();
+
+    long deadline = timeStart + timeoutMillis;
     try {
-      if (threadPool.awaitTermination(MAX_RESPONSE_MINS, TimeUnit.MINUTES)) {
-        threadPool.shutdownNow();
+      for (Future<?> future : futures) {
+        try {
+          future.get(Math.max(deadline - System.currentTimeMillis(), 0L),
+              TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+          logger.log(Level.WARNING, "Failed to authorize documents for user "
+              + profile.getName(), e.getCause());
+        }
       }
+    } catch (TimeoutException e) {
+      logger.log(Level.FINEST,
+          "Authorization exceeds {0}ms, cancel pending tasks", timeoutMillis);
     } catch (InterruptedException e) {
       logger.log(Level.FINEST,
-          "Authorization exceeds response threadshold, terminate thread pool",
-          e);
+          "Authorization was interrupted, cancel pending tasks", e);
+      Thread.currentThread().interrupt();
+    } finally {
+      // Interrupt the tasks that have started. The handler stops between
+      // pages of docids, and any late responses are not returned.
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
     }
 
-    logger.log(Level.FINEST, "Authorization: {0} documents, {1} threads, {2}ms",
-        new Object[] {docids.size(), poolSize,
+    logger.log(Level.FINEST, "Authorization: {0} documents, {1} tasks, {2}ms",
+        new Object[] {docids.size(), futures.size(),
         (System.currentTimeMillis() - timeStart)});
-    return responses.values();
+    logger.log(Level.FINE, "Authorization executor: {0} queued tasks, "
+        + "{1} active threads, {2} completed tasks, {3}ms queued, "
+        + "{4}ms running", new Object[] {executor.getQueueDepth(),
+        executor.getActiveCount(), executor.getCompletedTaskCount(),
+        executor.getQueuedMillis(), executor.getRunningMillis()});
+    // Report the documents without a response as indeterminate, rather
+    // than omitting them, so that the caller can decide them promptly.
+    List<AuthorizationResponse> results =
+        new ArrayList<AuthorizationResponse>(docidList.size());
+    int indeterminate = 0;
+    for (String docId : docidList) {
+      AuthorizationResponse response = responses.get(docId);
+      if (response == null) {
+        response = new AuthorizationResponse(
+            AuthorizationResponse.Status.INDETERMINATE, docId);
+        indeterminate++;
+      }
+      results.add(response);
+    }
+    if (indeterminate > 0) {
+      logger.log(Level.WARNING, "Authorization was not completed within "
+          + "{0}ms: {1} of {2} documents are indeterminate for user {3}",
+          new Object[] {timeoutMillis, indeterminate, docidList.size(),
+          profile.getName()});
+    }
+    return results;
   }
 
+  /**
+   * Authorizes a partition of docids a page at a time, so that the
+   * responses for each page are available as soon as it is done, even
+   * if a later page is not done before the timeout.
+   */
   private static class AuthorizationTask implements Runnable {
     private final AuthorizationHandler handler;
     private final boolean authorizeMarkings;
-    // Iterator instance is shared among worker threads.
-    private final Iterator<String> iterator;
-    private final User user;
+    private final List<String> docids;
+    private final UserProfile user;
     private final Map<String, AuthorizationResponse> responses;
 
     public AuthorizationTask(AuthorizationHandler handler,
-        boolean authorizeMarkings, Iterator<String> docidsIterator, User user,
+        boolean authorizeMarkings, List<String> docids, UserProfile user,
         Map<String, AuthorizationResponse> responses) {
       this.handler = handler;
       this.authorizeMarkings = authorizeMarkings;
-      this.iterator = docidsIterator;
+      this.docids = docids;
       this.user = user;
       this.responses = responses;
     }
 
-    private AuthorizationResponse getResponse(String docId)
-        throws RepositoryException {
-      return handler.authorizeDocid(docId, user, authorizeMarkings);
-    }
-
-    private String pollIterator() {
-      synchronized (iterator) {
-        return iterator.hasNext() ? iterator.next() : null;
-      }
-    }
-
     @Override
     public void run() {
       handler.pushSubject();
       try {
-        String docId;
-        while ((docId = pollIterator()) != null) {
-          try {
-            responses.put(docId, getResponse(docId));
-          } catch (RepositoryException e) {
-            logger.log(Level.WARNING, "Failed to authorize docid " + docId
-                + " for user " + user.get_Name(), e);
-            responses.put(docId, new AuthorizationResponse(false, docId));
+        for (List<String> page
+            : Lists.partition(docids, PAGE_SIZE)) {
+          if (Thread.currentThread().isInterrupted()) {
+            break;
           }
+          authorizePage(page);
         }
       } finally {
         handler.popSubject();
       }
     }
+
+    private void authorizePage(List<String> page) {
+      try {
+        for (AuthorizationResponse response
+            : handler.authorizeDocids(page, user, authorizeMarkings)) {
+          responses.put(response.getDocid(), response);
+        }
+      } catch (RepositoryException e) {
+        logger.log(Level.WARNING, "Failed to authorize " + page.size()
+            + " docids for user " + user.getName(), e);
+        for (String docId : page) {
+          if (!responses.containsKey(docId)) {
+            responses.put(docId, new AuthorizationResponse(false, docId));
+          }
+        }
+      }
+    }
   }
 }
@@ -20,6 +20,8 @@ import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.RepositoryLoginException;
 import com.google.enterprise.connector.spi.Session;
 
+import com.filenet.api.property.PropertyFilter;
+
 import java.net.URL;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -42,6 +44,21 @@ public class FileConnector implements Connector {
   private String check_marking = "off";
   private String useIDForChangeDetection = "false";
   private boolean pushAcls = true;
+  private boolean parallelQueries = false;
+  private boolean trimPropertyFilter = false;
+  private boolean readAhead = false;
+  private int fetchThreads = 0;
+  private int targetBatchSeconds = 0;
+  private int minBatchSize = 100;
+  private int maxBatchSize = 5000;
+  private int folderThreads = 0;
+  private boolean folderQueries = false;
+  private int authorizationTimeoutMillis = 60000;
+  private int authorizationCacheSize = 0;
+  private int aclCacheSize = 0;
+  private int authorizationCacheSeconds = 300;
+  private int userCacheSize = 0;
+  private int userCacheSeconds = 300;
   private String additional_where_clause;
   private String delete_additional_where_clause = "";
   private Set<String> included_meta;
@@ -49,6 +66,13 @@ public class FileConnector implements Connector {
   private String globalNamespace;
   private String displayUrl;
 
+  /**
+   * The cached document property names and filter, reset when their
+   * inputs change.
+   */
+  private volatile Set<String> documentPropertyNames;
+  private volatile PropertyFilter documentPropertyFilter;
+
   // The db_timezone property is deprecated; however, its setter remains here
   // for backward compatibility.
 
@@ -149,6 +173,8 @@ public class FileConnector implements Connector {
   public void setCheck_marking(String checkMarking) {
     this.check_marking = checkMarking;
     LOGGER.config("Set CheckMarking to " + this.check_marking);
+    documentPropertyNames = null;
+    documentPropertyFilter = null;
   }
 
   public boolean checkMarking() {
@@ -195,6 +221,8 @@ public class FileConnector implements Connector {
   public void setExcluded_meta(Set<String> excluded_meta) {
     this.excluded_meta = excluded_meta;
     LOGGER.config("Setting excluded_meta to " + excluded_meta);
+    documentPropertyNames = null;
+    documentPropertyFilter = null;
   }
 
   public Set<String> getIncludedMeta() {
@@ -208,6 +236,8 @@ public class FileConnector implements Connector {
   public void setIncluded_meta(Set<String> included_meta) {
     this.included_meta = included_meta;
     LOGGER.config("Setting included_meta to " + included_meta);
+    documentPropertyNames = null;
+    documentPropertyFilter = null;
   }
 
   public String getContentEngineUrl() {
@@ -241,9 +271,252 @@ public class FileConnector implements Connector {
   public void setPushAcls(boolean pushAcls) {
     LOGGER.config("Set pushAcls to " + pushAcls);
     this.pushAcls = pushAcls;
+    documentPropertyNames = null;
+    documentPropertyFilter = null;
   }
 
   public boolean pushAcls() {
     return pushAcls;
   }
+
+  /**
+   * Sets whether the queries for added, deleted, and custom deleted
+   * documents are executed concurrently rather than one after another.
+   */
+  public void setParallelQueries(boolean parallelQueries) {
+    LOGGER.config("Set parallelQueries to " + parallelQueries);
+    this.parallelQueries = parallelQueries;
+  }
+
+  public boolean parallelQueries() {
+    return parallelQueries;
+  }
+
+  /**
+   * Sets whether the next batch of documents is retrieved in the
+   * background while the current batch is being fed.
+   */
+  public void setReadAhead(boolean readAhead) {
+    LOGGER.config("Set readAhead to " + readAhead);
+    this.readAhead = readAhead;
+  }
+
+  public boolean readAhead() {
+    return readAhead;
+  }
+
+  /**
+   * Sets the number of threads used to fetch and process added
+   * documents ahead of the Connector Manager. If zero, each document
+   * is processed when the Connector Manager asks for it.
+   */
+  public void setFetchThreads(int fetchThreads) {
+    LOGGER.config("Set fetchThreads to " + fetchThreads);
+    this.fetchThreads = Math.max(fetchThreads, 0);
+  }
+
+  public int getFetchThreads() {
+    return fetchThreads;
+  }
+
+  /**
+   * Sets the target time for each traversal batch. If positive, the
+   * number of documents requested in each batch is adjusted to the
+   * observed query and fetch times, between the minimum and maximum
+   * batch sizes. If zero, the batch hint is used.
+   */
+  public void setTargetBatchSeconds(int targetBatchSeconds) {
+    LOGGER.config("Set targetBatchSeconds to " + targetBatchSeconds);
+    this.targetBatchSeconds = Math.max(targetBatchSeconds, 0);
+  }
+
+  public int getTargetBatchSeconds() {
+    return targetBatchSeconds;
+  }
+
+  public void setMinBatchSize(int minBatchSize) {
+    LOGGER.config("Set minBatchSize to " + minBatchSize);
+    this.minBatchSize = Math.max(minBatchSize, 1);
+  }
+
+  public int getMinBatchSize() {
+    return minBatchSize;
+  }
+
+  public void setMaxBatchSize(int maxBatchSize) {
+    LOGGER.config("Set maxBatchSize to " + maxBatchSize);
+    this.maxBatchSize = Math.max(maxBatchSize, 1);
+  }
+
+  /** Gets the maximum batch size, which is never less than the minimum. */
+  public int getMaxBatchSize() {
+    return Math.max(maxBatchSize, minBatchSize);
+  }
+
+  /**
+   * Sets the number of threads used to read the documents and
+   * subfolders of folders whose security has changed. If zero, the
+   * folders are read one at a time.
+   */
+  public void setFolderThreads(int folderThreads) {
+    LOGGER.config("Set folderThreads to " + folderThreads);
+    this.folderThreads = Math.max(folderThreads, 0);
+  }
+
+  public int getFolderThreads() {
+    return folderThreads;
+  }
+
+  /**
+   * Sets whether the documents under folders whose security has
+   * changed are found with paged searches of each folder subtree,
+   * rather than by reading each subfolder.
+   */
+  public void setFolderQueries(boolean folderQueries) {
+    LOGGER.config("Set folderQueries to " + folderQueries);
+    this.folderQueries = folderQueries;
+  }
+
+  public boolean folderQueries() {
+    return folderQueries;
+  }
+
+  /**
+   * Sets the time allowed for each authorization request. Documents
+   * that have not been authorized by then are returned as
+   * indeterminate. This should be less than the authorization timeout
+   * of the search appliance.
+   */
+  public void setAuthorizationTimeoutMillis(int authorizationTimeoutMillis) {
+    LOGGER.config("Set authorizationTimeoutMillis to "
+        + authorizationTimeoutMillis);
+    this.authorizationTimeoutMillis = Math.max(authorizationTimeoutMillis, 1);
+  }
+
+  public int getAuthorizationTimeoutMillis() {
+    return authorizationTimeoutMillis;
+  }
+
+  /**
+   * Sets the maximum number of authorization decisions to cache, by
+   * user and document. Zero disables the cache. The cache is also
+   * disabled unless ACLs are pushed, because only then are changes to
+   * security policies and folders traversed, and cached decisions
+   * invalidated when the ACLs that documents inherit change.
+   */
+  public void setAuthorizationCacheSize(int authorizationCacheSize) {
+    LOGGER.config("Set authorizationCacheSize to " + authorizationCacheSize);
+    this.authorizationCacheSize = Math.max(authorizationCacheSize, 0);
+  }
+
+  public int getAuthorizationCacheSize() {
+    return authorizationCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of document permissions to cache, by
+   * document version and last modified date, with their ACLs compiled
+   * for authorization. Zero disables the cache. The last modified date
+   * does not change when a document inherits a changed ACL from a
+   * security policy or folder, so the cache is also disabled unless
+   * ACLs are pushed, because only then are those changes traversed.
+   */
+  public void setAclCacheSize(int aclCacheSize) {
+    LOGGER.config("Set aclCacheSize to " + aclCacheSize);
+    this.aclCacheSize = Math.max(aclCacheSize, 0);
+  }
+
+  public int getAclCacheSize() {
+    return aclCacheSize;
+  }
+
+  /**
+   * Sets how long a cached authorization decision or document
+   * permissions are used. They are also dropped when a change to a
+   * security policy or folder is traversed, and decisions are dropped
+   * when a change to the document is traversed.
+   */
+  public void setAuthorizationCacheSeconds(int authorizationCacheSeconds) {
+    LOGGER.config("Set authorizationCacheSeconds to "
+        + authorizationCacheSeconds);
+    this.authorizationCacheSeconds = Math.max(authorizationCacheSeconds, 0);
+  }
+
+  public int getAuthorizationCacheSeconds() {
+    return authorizationCacheSeconds;
+  }
+
+  /**
+   * Sets the maximum number of users, with their groups, to cache for
+   * authentication and authorization. Zero disables the cache, but
+   * concurrent lookups of the same user are still combined. A cached
+   * user's group membership is not refreshed, so a user removed from a
+   * group keeps its access for up to {@link #setUserCacheSeconds}.
+   */
+  public void setUserCacheSize(int userCacheSize) {
+    LOGGER.config("Set userCacheSize to " + userCacheSize);
+    this.userCacheSize = Math.max(userCacheSize, 0);
+  }
+
+  public int getUserCacheSize() {
+    return userCacheSize;
+  }
+
+  /**
+   * Sets how long a cached user is used. Changes to the groups of a
+   * user are seen after at most this long.
+   */
+  public void setUserCacheSeconds(int userCacheSeconds) {
+    LOGGER.config("Set userCacheSeconds to " + userCacheSeconds);
+    this.userCacheSeconds = Math.max(userCacheSeconds, 0);
+  }
+
+  public int getUserCacheSeconds() {
+    return userCacheSeconds;
+  }
+
+  /**
+   * Sets whether the document property filter includes only the
+   * properties that will be sent to the Connector Manager, rather than
+   * all of the included metadata plus a fixed set of properties.
+   */
+  public void setTrimPropertyFilter(boolean trimPropertyFilter) {
+    LOGGER.config("Set trimPropertyFilter to " + trimPropertyFilter);
+    this.trimPropertyFilter = trimPropertyFilter;
+    documentPropertyNames = null;
+    documentPropertyFilter = null;
+  }
+
+  /**
+   * Gets the property filter for fetching documents. The filter is
+   * built once and shared, until the configuration changes.
+   */
+  public PropertyFilter getDocumentPropertyFilter() {
+    PropertyFilter filter = documentPropertyFilter;
+    if (filter == null) {
+      filter = FileUtil.getPropertyFilter(getDocumentPropertyNames());
+      documentPropertyFilter = filter;
+    }
+    return filter;
+  }
+
+  /**
+   * Gets the names of the properties in the document property filter.
+   * Only the names of Document properties can be selected when
+   * documents are fetched with a search.
+   */
+  public Set<String> getDocumentPropertyNames() {
+    Set<String> names = documentPropertyNames;
+    if (names == null) {
+      if (trimPropertyFilter) {
+        names = FileUtil.getTrimmedDocumentPropertyNames(getIncludedMeta(),
+            getExcludedMeta(), pushAcls(), checkMarking());
+      } else {
+        names = FileUtil.getDocumentPropertyNames(getIncludedMeta());
+      }
+      names = ImmutableSet.copyOf(names);
+      documentPropertyNames = names;
+    }
+    return names;
+  }
 }
@@ -30,17 +30,12 @@ import com.google.enterprise.connector.spi.SpiConstants.PrincipalType;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.Value;
 
-import com.filenet.api.admin.PropertyDefinitionString;
-import com.filenet.api.collection.PropertyDefinitionList;
 import com.filenet.api.constants.ClassNames;
-import com.filenet.api.constants.GuidConstants;
 import com.filenet.api.constants.PermissionSource;
 import com.filenet.api.constants.PropertyNames;
-import com.filenet.api.security.MarkingSet;
 import com.filenet.api.util.Id;
 
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -54,15 +49,15 @@ public class FileDocument implements Document {
   private static final Logger logger =
       Logger.getLogger(FileDocument.class.getName());
 
-  private static Boolean hasMarkings;
-
   private final Id docId;
-  private final IObjectFactory objectFactory;
   private final IObjectStore objectStore;
   private final FileConnector connector;
   private final TraversalContext traversalContext;
+  private final MarkingSetCache markingSets;
+  private final AuthorizationCache authorizations;
 
-  private IDocument document = null;
+  private IDocument document;
+  private boolean isFetched = false;
   private String vsDocId;
   private boolean pushAcls;
   private Permissions.Acl permissions;
@@ -70,11 +65,32 @@ public class FileDocument implements Document {
   public FileDocument(Id docId, IObjectFactory objectFactory,
       IObjectStore objectStore, FileConnector connector,
       TraversalContext traversalContext) {
+    this(docId, null, objectStore, connector, traversalContext,
+        new MarkingSetCache(null, objectFactory, objectStore),
+        AuthorizationCache.DISABLED);
+  }
+
+  /**
+   * Constructs a document that may have already been fetched.
+   *
+   * @param docId the document ID
+   * @param document the prefetched document, or {@code null} to fetch
+   *     the document from the object store when it is first accessed
+   * @param markingSets the cached marking sets of the Document class,
+   *     shared by the session
+   * @param authorizations the cached authorization decisions, which are
+   *     invalidated for this document's version series when it is fetched
+   */
+  FileDocument(Id docId, IDocument document, IObjectStore objectStore,
+      FileConnector connector, TraversalContext traversalContext,
+      MarkingSetCache markingSets, AuthorizationCache authorizations) {
     this.docId = docId;
-    this.objectFactory = objectFactory;
+    this.document = document;
     this.objectStore = objectStore;
     this.connector = connector;
     this.traversalContext = traversalContext;
+    this.markingSets = markingSets;
+    this.authorizations = authorizations;
     this.pushAcls = connector.pushAcls();
   }
 
@@ -83,61 +99,31 @@ public class FileDocument implements Document {
     if (!(pushAcls && connector.checkMarking())) {
       return false;
     }
-    synchronized (FileDocument.class) {
-      if (hasMarkings == null) {
-        // If the additional WHERE clause starts with SELECT,
-        // then the config may not be using the Document class.
-        String whereClause = connector.getAdditionalWhereClause();
-        if (whereClause != null &&
-            whereClause.trim().toUpperCase().startsWith("SELECT")) {
-          hasMarkings = Boolean.TRUE;
-        } else {
-          hasMarkings = hasMarkings();
-        }
-      }
-      return hasMarkings;
-    }
-  }
-
-  // TODO(bmj): This code was lifted from FileAuthorizationHandler.
-  private boolean hasMarkings() throws RepositoryException {
-    // Check for the marking sets applied over the document class.
-    try {
-      PropertyDefinitionList propertyDefinitions =
-          objectFactory.getPropertyDefinitions(objectStore,
-              GuidConstants.Class_Document, null);
-      Iterator<?> iter = propertyDefinitions.iterator();
-      while (iter.hasNext()) {
-        Object propertyDefinition = iter.next();
-        // Only string properties can have a marking set, and
-        // get_MarkingSet is defined directly on PropertyDefinitionString.
-        if (propertyDefinition instanceof PropertyDefinitionString) {
-          MarkingSet markingSet =
-              ((PropertyDefinitionString) propertyDefinition).get_MarkingSet();
-          if (markingSet != null) {
-            logger.info("Document class has a property with a marking set");
-            return true;
-          }
-        }
-      }
-      logger.info("Document class has no properties with a marking set");
-      return false;
-    } catch (Exception ecp) {
-      logger.log(Level.SEVERE, "Failure checking for a marking set", ecp);
-      // This was the existing behavior when an exception was thrown, to
-      // use checkMarkings, and if we're here then checkMarkings is true.
+    // If the additional WHERE clause starts with SELECT,
+    // then the config may not be using the Document class.
+    String whereClause = connector.getAdditionalWhereClause();
+    if (whereClause != null &&
+        whereClause.trim().toUpperCase().startsWith("SELECT")) {
       return true;
+    } else {
+      return markingSets.hasMarkings();
     }
   }
 
   private void fetch() throws RepositoryException {
-    if (document != null) {
+    if (isFetched) {
       return;
     }
-    document = (IDocument) objectStore.fetchObject(ClassNames.DOCUMENT, docId,
-        FileUtil.getDocumentPropertyFilter(connector.getIncludedMeta()));
-    logger.log(Level.FINE, "Fetch document for DocId {0}", docId);
-    vsDocId = document.getVersionSeries().get_Id().toString();
+    if (document == null) {
+      document = (IDocument) objectStore.fetchObject(ClassNames.DOCUMENT,
+          docId, connector.getDocumentPropertyFilter());
+      logger.log(Level.FINE, "Fetch document for DocId {0}", docId);
+    } else {
+      logger.log(Level.FINE, "Use prefetched document for DocId {0}", docId);
+    }
+    Id versionSeriesId = document.getVersionSeries().get_Id();
+    authorizations.invalidate(versionSeriesId);
+    vsDocId = versionSeriesId.toString();
     logger.log(Level.FINE, "VersionSeriesID for document is: {0}", vsDocId);
     if (checkForMarkings()) {
       if (!document.get_ActiveMarkings().isEmpty()) {
@@ -152,6 +138,7 @@ public class FileDocument implements Document {
     } else {
       permissions = null;
     }
+    isFetched = true;
   }
 
   private boolean hasSupportedMimeType() throws RepositoryException {
@@ -369,6 +356,18 @@ public class FileDocument implements Document {
 
   public void processInheritedPermissions(LinkedList<Document> acls)
       throws RepositoryException {
+    processInheritedPermissions(acls, new AclInterner());
+  }
+
+  /**
+   * Adds the ACL documents for the inherited permissions of this
+   * document, sharing the principals of identical ACLs.
+   *
+   * @param acls the list to add the ACL documents to
+   * @param aclInterner the interner for the ACLs in the current batch
+   */
+  public void processInheritedPermissions(LinkedList<Document> acls,
+      AclInterner aclInterner) throws RepositoryException {
     fetch();
     if (!pushAcls) {
       return;
@@ -379,7 +378,7 @@ public class FileDocument implements Document {
     // Send add request for adding ACLs inherited from parent folders.
     String secParentId = null;
     Document folderAclDoc = createAclDocument(PermissionSource.SOURCE_PARENT,
-        AclDocument.SEC_FOLDER_POSTFIX, null);
+        AclDocument.SEC_FOLDER_POSTFIX, null, aclInterner);
     if (folderAclDoc != null) {
       logger.log(Level.FINEST, "Create ACL document for folder {0}{1}",
           new Object[] {docId, AclDocument.SEC_FOLDER_POSTFIX});
@@ -389,7 +388,7 @@ public class FileDocument implements Document {
 
     // Send add request for adding ACLs inherited from security template.
     Document secAclDoc = createAclDocument(PermissionSource.SOURCE_TEMPLATE,
-        AclDocument.SEC_POLICY_POSTFIX, secParentId);
+        AclDocument.SEC_POLICY_POSTFIX, secParentId, aclInterner);
     if (secAclDoc != null) {
       logger.log(Level.FINEST,
           "Create ACL document for security template {0}{1}",
@@ -399,7 +398,7 @@ public class FileDocument implements Document {
   }
 
   private Document createAclDocument(PermissionSource permSrc, String postfix,
-      String parentId) throws RepositoryException {
+      String parentId, AclInterner aclInterner) throws RepositoryException {
     Set<String> allowUsers = permissions.getAllowUsers(permSrc);
     Set<String> denyUsers = permissions.getDenyUsers(permSrc);
     Set<String> allowGroups = permissions.getAllowGroups(permSrc);
@@ -412,8 +411,8 @@ public class FileDocument implements Document {
     } else {
       return new AclDocument(docId + postfix, parentId,
           AclInheritanceType.CHILD_OVERRIDES,
-          connector.getGoogleGlobalNamespace(), allowUsers, denyUsers,
-          allowGroups, denyGroups);
+          aclInterner.intern(connector.getGoogleGlobalNamespace(),
+              allowUsers, denyUsers, allowGroups, denyGroups));
     }
   }
 }
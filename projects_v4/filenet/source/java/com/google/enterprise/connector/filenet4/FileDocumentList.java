@@ -14,7 +14,13 @@
 
 package com.google.enterprise.connector.filenet4;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import com.google.enterprise.connector.filenet4.Checkpoint.JsonField;
+import com.google.enterprise.connector.filenet4.api.IBaseObject;
+import com.google.enterprise.connector.filenet4.api.IDocument;
 import com.google.enterprise.connector.filenet4.api.IObjectFactory;
 import com.google.enterprise.connector.filenet4.api.IObjectStore;
 import com.google.enterprise.connector.spi.Document;
@@ -25,6 +31,7 @@ import com.google.enterprise.connector.spi.SkippedDocumentException;
 import com.google.enterprise.connector.spi.TraversalContext;
 
 import com.filenet.api.collection.IndependentObjectSet;
+import com.filenet.api.constants.ClassNames;
 import com.filenet.api.constants.DatabaseType;
 import com.filenet.api.core.IndependentObject;
 import com.filenet.api.util.Id;
@@ -32,9 +39,16 @@ import com.filenet.api.util.Id;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,8 +56,12 @@ public class FileDocumentList implements DocumentList {
   private static final Logger logger = 
       Logger.getLogger(FileDocumentList.class.getName());
 
-  private final IObjectFactory objectFactory;
+  /** The number of added or updated documents to fetch in one search. */
+  private static final int FETCH_PAGE_SIZE = 100;
+
   private final IObjectStore objectStore;
+  private final MarkingSetCache markingSets;
+  private final AuthorizationCache authorizations;
   private final FileConnector connector;
   private final TraversalContext traversalContext;
   private final Checkpoint checkpoint;
@@ -52,6 +70,15 @@ public class FileDocumentList implements DocumentList {
   private final Iterator<SearchObject> objects;
   private final LinkedList<Document> acls;
 
+  /** Used to prepare added documents ahead of time, or {@code null}. */
+  private final Executor fetchExecutor;
+
+  /** The maximum number of objects to prepare ahead of time. */
+  private final int fetchAhead;
+
+  /** The objects that have been read from the object sets but not returned. */
+  private final LinkedList<PendingObject> pending = new LinkedList<>();
+
   private Date fileDocumentDate;
   private Date fileDocumentToDeleteDate;
   private Date fileDocumentToDeleteDocsDate;
@@ -59,22 +86,84 @@ public class FileDocumentList implements DocumentList {
   private Id docIdToDelete;
   private Id docIdToDeleteDocs;
 
+  private int avoidedLookups = 0;
+
+  /**
+   * Whether the pages of added documents are fetched in a single search.
+   * This is disabled after a search fails, or if the properties cannot
+   * be selected in a search.
+   */
+  private boolean isFetchEnabled = true;
+
+  /** The names to select when fetching documents, or null if not known. */
+  private Set<String> selectNames;
+
+  /** Shares the principals of identical ACLs in this batch. */
+  private final AclInterner aclInterner = new AclInterner();
+
   public FileDocumentList(IndependentObjectSet objectSet,
       IndependentObjectSet objectSetToDeleteDocs,
       IndependentObjectSet objectSetToDelete,
       IObjectFactory objectFactory, IObjectStore objectStore,
       FileConnector connector,
       TraversalContext traversalContext, Checkpoint checkpoint) {
-    this.objectFactory = objectFactory;
+    this(objectSet, objectSetToDeleteDocs, objectSetToDelete, objectFactory,
+        objectStore, connector, traversalContext, checkpoint, null, 0);
+  }
+
+  /**
+   * Constructs a document list that prepares the added documents
+   * ahead of time: fetching the document, checking for markings, and
+   * processing the permissions. The documents are still returned in
+   * order, and the checkpoint only reflects the returned documents.
+   *
+   * @param fetchExecutor the executor to prepare documents on, or
+   *     {@code null} to prepare each document when it is returned
+   * @param fetchAhead the maximum number of objects to read ahead
+   */
+  public FileDocumentList(IndependentObjectSet objectSet,
+      IndependentObjectSet objectSetToDeleteDocs,
+      IndependentObjectSet objectSetToDelete,
+      IObjectFactory objectFactory, IObjectStore objectStore,
+      FileConnector connector, TraversalContext traversalContext,
+      Checkpoint checkpoint, Executor fetchExecutor, int fetchAhead) {
+    this(objectSet, objectSetToDeleteDocs, objectSetToDelete, objectStore,
+        connector, traversalContext, checkpoint, fetchExecutor, fetchAhead,
+        new MarkingSetCache(null, objectFactory, objectStore),
+        AuthorizationCache.DISABLED);
+  }
+
+  /**
+   * Constructs a document list that prepares the added documents
+   * ahead of time, and shares the cached marking sets and authorization
+   * decisions of the session.
+   *
+   * @param fetchExecutor the executor to prepare documents on, or
+   *     {@code null} to prepare each document when it is returned
+   * @param fetchAhead the maximum number of objects to read ahead
+   * @param markingSets the cached marking sets of the Document class
+   * @param authorizations the cached authorization decisions, which are
+   *     invalidated for the documents that are traversed
+   */
+  FileDocumentList(IndependentObjectSet objectSet,
+      IndependentObjectSet objectSetToDeleteDocs,
+      IndependentObjectSet objectSetToDelete, IObjectStore objectStore,
+      FileConnector connector, TraversalContext traversalContext,
+      Checkpoint checkpoint, Executor fetchExecutor, int fetchAhead,
+      MarkingSetCache markingSets, AuthorizationCache authorizations) {
     this.objectStore = objectStore;
+    this.markingSets = markingSets;
+    this.authorizations = authorizations;
     this.connector = connector;
     this.traversalContext = traversalContext;
     this.checkpoint = checkpoint;
 
     this.databaseType = getDatabaseType(objectStore);
-    this.objects = mergeAndSortObjects(objectSet, objectSetToDelete,
+    this.objects = mergeObjects(objectSet, objectSetToDelete,
         objectSetToDeleteDocs);
     this.acls = new LinkedList<Document>();
+    this.fetchExecutor = fetchExecutor;
+    this.fetchAhead = (fetchExecutor == null) ? 1 : Math.max(fetchAhead, 1);
   }
 
   private DatabaseType getDatabaseType(IObjectStore os) {
@@ -87,39 +176,190 @@ public class FileDocumentList implements DocumentList {
     }
   }
 
-  /** Sort the objects by modify date and ID. */
-  private Iterator<SearchObject> mergeAndSortObjects(
+  /**
+   * Merges the objects by modify date and ID. Each object set is
+   * already sorted by the query, so the objects are merged lazily as
+   * the documents are consumed, rather than read into memory and sorted.
+   */
+  private Iterator<SearchObject> mergeObjects(
       IndependentObjectSet objectSet, IndependentObjectSet objectSetToDelete,
       IndependentObjectSet objectSetToDeleteDocs) {
-    List<SearchObject> objectList = new ArrayList<>();
+    // The order of the sources is used to break ties. An updated
+    // document may appear in both objectSet and objectSetToDeleteDocs
+    // with the same modified date, and the update must come first.
+    List<Iterator<SearchObject>> sources = new ArrayList<>(3);
+    sources.add(new SearchObjectIterator(objectSet, SearchObject.Type.ADD));
+    sources.add(new SearchObjectIterator(objectSetToDelete,
+            SearchObject.Type.DELETION_EVENT));
+    sources.add(new SearchObjectIterator(objectSetToDeleteDocs,
+            SearchObject.Type.CUSTOM_DELETE));
+    return new MergingIterator(sources);
+  }
+
+  /**
+   * Merges sorted iterators of SearchObjects. Equal objects are
+   * returned in the order of the iterators in the given list.
+   */
+  private static class MergingIterator extends AbstractIterator<SearchObject> {
+    private final List<PeekingIterator<SearchObject>> sources;
+    private int count = 0;
+
+    public MergingIterator(List<Iterator<SearchObject>> sources) {
+      this.sources = new ArrayList<>(sources.size());
+      for (Iterator<SearchObject> source : sources) {
+        this.sources.add(Iterators.peekingIterator(source));
+      }
+    }
+
+    @Override
+    protected SearchObject computeNext() {
+      PeekingIterator<SearchObject> first = null;
+      for (PeekingIterator<SearchObject> source : sources) {
+        if (source.hasNext()
+            && (first == null || source.peek().compareTo(first.peek()) < 0)) {
+          first = source;
+        }
+      }
+      if (first == null) {
+        logger.log(Level.INFO,
+            "Number of documents to add, update, or delete: {0}", count);
+        return endOfData();
+      }
+      count++;
+      return first.next();
+    }
+  }
 
-    // Adding documents, deletion events and custom deletion to the object list
-    addToList(objectList, objectSet, SearchObject.Type.ADD);
-    addToList(objectList, objectSetToDelete, SearchObject.Type.DELETION_EVENT);
-    addToList(objectList, objectSetToDeleteDocs,
-        SearchObject.Type.CUSTOM_DELETE);
+  /**
+   * Wraps elements of the object set as SearchObjects a page at a
+   * time. The documents for a page of added or updated documents are
+   * fetched with a single search, rather than by each FileDocument,
+   * and likewise the version series for a page of deletion events.
+   */
+  private class SearchObjectIterator extends AbstractIterator<SearchObject> {
+    private final Iterator<?> objects;
+    private final SearchObject.Type searchType;
+    private Iterator<SearchObject> page = Collections.emptyIterator();
 
-    // Sort list by last modified time and ID. We depend on this being
-    // a stable sort, because an updated document may appear in both
-    // objectSet and objectSetToDeleteDocs with the same modified date.
-    Collections.sort(objectList);
-    logger.log(Level.INFO, "Number of documents to add, update, or delete: {0}",
-        objectList.size());
+    public SearchObjectIterator(IndependentObjectSet objectSet,
+        SearchObject.Type searchType) {
+      this.objects = objectSet.iterator();
+      this.searchType = searchType;
+    }
 
-    return objectList.iterator();
+    @Override
+    protected SearchObject computeNext() {
+      if (!page.hasNext()) {
+        List<SearchObject> list = new ArrayList<>(FETCH_PAGE_SIZE);
+        while (objects.hasNext() && list.size() < FETCH_PAGE_SIZE) {
+          list.add(new SearchObject((IndependentObject) objects.next(),
+                  databaseType, searchType));
+        }
+        if (list.isEmpty()) {
+          return endOfData();
+        }
+        if (searchType == SearchObject.Type.ADD) {
+          fetchDocuments(list);
+        } else if (searchType == SearchObject.Type.DELETION_EVENT) {
+          fetchVersionSeries(list);
+        }
+        page = list.iterator();
+      }
+      return page.next();
+    }
+  }
+
+  /**
+   * Fetches the documents for a page of added or updated documents.
+   * If the search fails, or a document is missing from the results,
+   * the FileDocument will fetch the document itself. After a search
+   * fails, the rest of the documents are also fetched individually.
+   */
+  private void fetchDocuments(List<SearchObject> objectList) {
+    if (!isFetchEnabled) {
+      return;
+    }
+    if (selectNames == null) {
+      selectNames = FileUtil.getDocumentSelectNames(
+          connector.getDocumentPropertyNames(),
+          markingSets.getPropertyNames());
+      if (selectNames == null) {
+        logger.info("The included metadata has properties that are not "
+            + "defined on the Document class, so each document is fetched "
+            + "individually");
+        isFetchEnabled = false;
+        return;
+      }
+    }
+    List<Id> ids = new ArrayList<>(objectList.size());
+    for (SearchObject object : objectList) {
+      ids.add(object.get_Id());
+    }
+    Map<Id, IBaseObject> documents;
+    try {
+      documents = objectStore.fetchObjects(ClassNames.DOCUMENT, ids,
+          selectNames, connector.getDocumentPropertyFilter());
+    } catch (RepositoryException e) {
+      logger.log(Level.WARNING, "Unable to fetch " + ids.size()
+          + " documents in a single search; the remaining documents will "
+          + "be fetched individually", e);
+      isFetchEnabled = false;
+      return;
+    }
+    logger.log(Level.FINEST, "Fetched {0} of {1} documents",
+        new Object[] {documents.size(), ids.size()});
+    for (SearchObject object : objectList) {
+      object.setDocument((IDocument) documents.get(object.get_Id()));
+    }
   }
 
   /**
-   * Wraps elements of the object set as SearchObjects and adds them
-   * to the list.
+   * Looks up the version series for a page of deletion events with a
+   * single search. If the version series still exists, the deleted
+   * document was not the released version. If the search fails, or a
+   * deletion event has no version series ID, each SearchObject will
+   * look up its own version series.
    */
-  private void addToList(List<SearchObject> objectList,
-      IndependentObjectSet objectSet, SearchObject.Type searchType) {
-    Iterator<?> iter = objectSet.iterator();
-    while (iter.hasNext()) {
-      objectList.add(new SearchObject((IndependentObject) iter.next(),
-              databaseType, searchType));
+  private void fetchVersionSeries(List<SearchObject> objectList) {
+    Set<Id> ids = new HashSet<>();
+    for (SearchObject object : objectList) {
+      Id id = object.getVersionSeriesId();
+      if (id != null) {
+        ids.add(id);
+      }
+    }
+    if (ids.isEmpty()) {
+      return;
     }
+    Set<Id> versionSeries;
+    try {
+      versionSeries = objectStore.findVersionSeries(ids);
+    } catch (RepositoryException e) {
+      logger.log(Level.WARNING, "Unable to look up " + ids.size()
+          + " version series in a single search", e);
+      return;
+    }
+    int found = 0;
+    for (SearchObject object : objectList) {
+      Id id = object.getVersionSeriesId();
+      if (id != null) {
+        object.setReleasedVersion(!versionSeries.contains(id));
+        found++;
+      }
+    }
+    avoidedLookups += found;
+    logger.log(Level.FINE, "Found {0} of {1} version series for {2} deletion "
+        + "events; avoided {3} lookups in total", new Object[] {
+          versionSeries.size(), ids.size(), found, avoidedLookups});
+  }
+
+  /**
+   * Gets the number of version series lookups for deletion events
+   * that were avoided by looking them up a page at a time.
+   */
+  @VisibleForTesting
+  int getAvoidedLookups() {
+    return avoidedLookups;
   }
 
   @Override
@@ -127,8 +367,10 @@ public class FileDocumentList implements DocumentList {
     logger.entering("FileDocumentList", "nextDocument()");
 
     Document fileDocument;
-    if (objects.hasNext()) {
-      SearchObject object = objects.next();
+    fillPending();
+    if (!pending.isEmpty()) {
+      PendingObject next = pending.removeFirst();
+      SearchObject object = next.object;
       switch (object.getType()) {
         case DELETION_EVENT:
           fileDocumentToDeleteDate = object.getModifyDate();
@@ -154,7 +396,7 @@ public class FileDocumentList implements DocumentList {
         case ADD:
           fileDocumentDate = object.getModifyDate();
           docId = object.get_Id();
-          fileDocument = createAddDocument(object);
+          fileDocument = createAddDocument(next);
           break;
         default:
           throw new NullPointerException();
@@ -162,24 +404,112 @@ public class FileDocumentList implements DocumentList {
     } else if (connector.pushAcls()) {
       logger.finest("Processing ACL document");
       fileDocument = acls.pollFirst();
+      if (fileDocument == null) {
+        logger.log(Level.FINE, "Returned {0} ACL documents with {1} distinct "
+            + "ACLs", new Object[] {
+                aclInterner.getRequestCount(), aclInterner.size()});
+      }
     } else {
       fileDocument = null;
     }
     return fileDocument;
   }
 
-  private Document createAddDocument(SearchObject object)
+  /**
+   * Reads objects ahead from the object sets, and starts preparing
+   * the added documents on the executor.
+   */
+  private void fillPending() {
+    while (pending.size() < fetchAhead && objects.hasNext()) {
+      SearchObject object = objects.next();
+      if (object.getType() == SearchObject.Type.ADD) {
+        FileDocument doc = newFileDocument(object);
+        FutureTask<List<Document>> task = null;
+        if (fetchExecutor != null) {
+          task = newPrepareTask(doc);
+          fetchExecutor.execute(task);
+        }
+        pending.add(new PendingObject(object, doc, task));
+      } else {
+        pending.add(new PendingObject(object, null, null));
+      }
+    }
+  }
+
+  private FileDocument newFileDocument(SearchObject object) {
+    return new FileDocument(object.get_Id(), object.getDocument(),
+        objectStore, connector, traversalContext, markingSets,
+        authorizations);
+  }
+
+  /**
+   * Creates a task to fetch the document and process its inherited
+   * permissions. The ACL documents are returned rather than added to
+   * the list, so that they are queued in the order the documents are
+   * returned.
+   */
+  private FutureTask<List<Document>> newPrepareTask(final FileDocument doc) {
+    return new FutureTask<List<Document>>(new Callable<List<Document>>() {
+        @Override
+        public List<Document> call() throws RepositoryException {
+          LinkedList<Document> docAcls = new LinkedList<Document>();
+          doc.processInheritedPermissions(docAcls, aclInterner);
+          return docAcls;
+        }
+      });
+  }
+
+  private Document createAddDocument(PendingObject next)
       throws RepositoryException {
-    Id id = object.get_Id();
-    logger.log(Level.FINEST, "Add document [ID: {0}]", id);
-    FileDocument doc = new FileDocument(id, objectFactory, objectStore,
-        connector, traversalContext);
-    if (connector.pushAcls()) {
-      doc.processInheritedPermissions(acls);
+    FileDocument doc = next.document;
+    logger.log(Level.FINEST, "Add document [ID: {0}]", next.object.get_Id());
+    if (next.task == null) {
+      if (connector.pushAcls()) {
+        doc.processInheritedPermissions(acls, aclInterner);
+      }
+      return doc;
+    }
+
+    try {
+      acls.addAll(next.task.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryException("Interrupted while preparing document "
+          + next.object.get_Id(), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (!connector.pushAcls()) {
+        // The document is not otherwise fetched here, so let it be
+        // fetched again, and any error reported, when it is read.
+        logger.log(Level.FINEST, "Unable to prepare document "
+            + next.object.get_Id(), cause);
+      } else if (cause instanceof RepositoryException) {
+        throw (RepositoryException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new RepositoryException(cause);
+      }
     }
     return doc;
   }
 
+  /** An object read from an object set, and its document, if any. */
+  private static class PendingObject {
+    public final SearchObject object;
+    public final FileDocument document;
+    public final FutureTask<List<Document>> task;
+
+    public PendingObject(SearchObject object, FileDocument document,
+        FutureTask<List<Document>> task) {
+      this.object = object;
+      this.document = document;
+      this.task = task;
+    }
+  }
+
   private Document createDeleteDocument(SearchObject object)
       throws RepositoryDocumentException {
     Id id = object.get_Id();
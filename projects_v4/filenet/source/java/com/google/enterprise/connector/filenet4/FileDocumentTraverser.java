@@ -16,6 +16,7 @@ package com.google.enterprise.connector.filenet4;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.connector.filenet4.Checkpoint.JsonField;
 import com.google.enterprise.connector.filenet4.api.IConnection;
 import com.google.enterprise.connector.filenet4.api.IObjectFactory;
@@ -29,11 +30,25 @@ import com.filenet.api.collection.IndependentObjectSet;
 import com.filenet.api.constants.GuidConstants;
 import com.filenet.api.constants.PropertyNames;
 import com.filenet.api.exception.EngineRuntimeException;
-
-import java.text.MessageFormat;
+import com.filenet.api.property.FilterElement;
+import com.filenet.api.property.PropertyFilter;
+import com.filenet.api.util.UserContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.security.auth.Subject;
+
 /**
  * Responsible for: 1. Construction of FileNet SQL queries for adding and
  * deleting index of documents to GSA. 2. Execution of the SQL query constructed
@@ -45,6 +60,12 @@ public class FileDocumentTraverser implements Traverser {
 
   private static final String tableName = "Document";
 
+  /** The number of threads used to execute the queries concurrently. */
+  private static final int QUERY_THREADS = 3;
+
+  /** The number of documents to prepare ahead for each fetch thread. */
+  private static final int FETCH_AHEAD_PER_THREAD = 2;
+
   private static final String ORDER_BY =
       " ORDER BY " + PropertyNames.DATE_LAST_MODIFIED + "," + PropertyNames.ID;
 
@@ -82,21 +103,87 @@ public class FileDocumentTraverser implements Traverser {
   static final String WHERE_CLAUSE_TO_DELETE_DOCS_ONLY_DATE = " AND ("
           + PropertyNames.DATE_LAST_MODIFIED + ">={0})";
 
+  private static final String VERSION_CONDITION =
+      " WHERE VersionStatus=1 and ContentSize IS NOT NULL ";
+
+  /**
+   * The properties listed by the query for added and updated
+   * documents. The documents themselves are fetched separately by
+   * FileDocumentList, so only the ordering and checkpoint values are
+   * needed here.
+   */
+  private static final String ADD_PROPERTIES =
+      PropertyNames.ID + "," + PropertyNames.DATE_LAST_MODIFIED;
+
+  @VisibleForTesting
+  static final KeysetQuery ADD_QUERY = new KeysetQuery(ADD_PROPERTIES,
+      tableName, VERSION_CONDITION, WHERE_CLAUSE, WHERE_CLAUSE_ONLY_DATE,
+      ORDER_BY);
+
+  /**
+   * Filters the added and updated documents to the listed properties,
+   * without dereferencing object properties.
+   */
+  @VisibleForTesting
+  static final PropertyFilter ADD_FILTER = new PropertyFilter();
+
+  static {
+    ADD_FILTER.setMaxRecursion(0);
+    ADD_FILTER.addIncludeProperty(new FilterElement(0, null, null,
+        ADD_PROPERTIES.replace(',', ' '), null));
+  }
+
+  @VisibleForTesting
+  static final KeysetQuery DELETE_DOCS_QUERY = new KeysetQuery(
+      PropertyNames.ID + "," + PropertyNames.DATE_LAST_MODIFIED, tableName,
+      VERSION_CONDITION, WHERE_CLAUSE_TO_DELETE_DOCS,
+      WHERE_CLAUSE_TO_DELETE_DOCS_ONLY_DATE, ORDER_BY);
+
+  // GuidConstants.Class_DeletionEvent = Only deleted objects in event table
+  @VisibleForTesting
+  static final KeysetQuery DELETION_EVENT_QUERY = new KeysetQuery(
+      PropertyNames.ID + "," + PropertyNames.DATE_CREATED + ","
+      + PropertyNames.VERSION_SERIES_ID + "," + PropertyNames.SOURCE_OBJECT_ID,
+      GuidConstants.Class_DeletionEvent.toString(), "",
+      WHERE_CLAUSE_TO_DELETE, WHERE_CLAUSE_TO_DELETE_ONLY_DATE,
+      ORDER_BY_TO_DELETE);
+
   private final IConnection connection;
   private final IObjectFactory fileObjectFactory;
   private final IObjectStore objectStore;
   private final FileConnector connector;
+  private final MarkingSetCache markingSets;
+  private final AuthorizationCache authorizations;
 
   private TraversalContext traversalContext;
   private int batchHint = 1000;
+  private ExecutorService queryExecutor;
+  private ExecutorService fetchThreadPool;
 
   public FileDocumentTraverser(IConnection connection,
       IObjectFactory fileObjectFactory, IObjectStore objectStore,
       FileConnector fileConnector) {
+    this(connection, fileObjectFactory, objectStore, fileConnector,
+        new MarkingSetCache(connection, fileObjectFactory, objectStore),
+        AuthorizationCache.DISABLED);
+  }
+
+  /**
+   * @param markingSets the cached marking sets of the Document class,
+   *     shared by the session
+   * @param authorizations the cached authorization decisions of the
+   *     session, which are invalidated for the documents traversed
+   */
+  public FileDocumentTraverser(IConnection connection,
+      IObjectFactory fileObjectFactory, IObjectStore objectStore,
+      FileConnector fileConnector, MarkingSetCache markingSets,
+      AuthorizationCache authorizations) {
     this.connection = connection;
     this.fileObjectFactory = fileObjectFactory;
     this.objectStore = objectStore;
     this.connector = fileConnector;
+    this.markingSets = markingSets;
+    this.authorizations = authorizations;
   }
 
   @Override
@@ -120,39 +207,47 @@ public class FileDocumentTraverser implements Traverser {
 
     SearchWrapper search = fileObjectFactory.getSearch(objectStore);
 
+    // to add
+    String query = buildQueryString(checkPoint);
+    LOGGER.log(Level.FINE, "Query for added or updated documents: {0}", query);
+
+    // to delete for deleted documents
+    String queryStringToDelete = buildQueryToDelete(checkPoint);
+    LOGGER.log(Level.FINE, "Query for deleted documents: {0}",
+        queryStringToDelete);
+
+    // to delete for additional delete clause
+    List<String> queries = new ArrayList<>(3);
+    List<PropertyFilter> filters = new ArrayList<>(3);
+    queries.add(query);
+    filters.add(ADD_FILTER);
+    queries.add(queryStringToDelete);
+    filters.add(SearchWrapper.dereferenceObjects);
+    if (!Strings.isNullOrEmpty(connector.getDeleteAdditionalWhereClause())) {
+      String queryStringToDeleteDocs = buildQueryStringToDeleteDocs(
+          checkPoint, connector.getDeleteAdditionalWhereClause());
+      LOGGER.log(Level.FINE,
+          "Query for documents satisfying the delete WHERE clause: {0}",
+          queryStringToDeleteDocs);
+      queries.add(queryStringToDeleteDocs);
+      filters.add(SearchWrapper.dereferenceObjects);
+    }
+
     try {
-      // to add
-      String query = buildQueryString(checkPoint);
-      LOGGER.log(Level.FINE, "Query for added or updated documents: {0}",
-          query);
-      IndependentObjectSet objectSet = search.fetchObjects(query, batchHint,
-          SearchWrapper.dereferenceObjects, SearchWrapper.ALL_ROWS);
+      List<IndependentObjectSet> results = (connector.parallelQueries())
+          ? fetchConcurrently(search, queries, filters)
+          : fetchSequentially(search, queries, filters);
+      IndependentObjectSet objectSet = results.get(0);
       LOGGER.fine((objectSet.isEmpty()) ? "Found no documents to add or update"
           : "Found documents to add or update");
-
-      // to delete for deleted documents
-      String queryStringToDelete = buildQueryToDelete(checkPoint);
-      LOGGER.log(Level.FINE, "Query for deleted documents: {0}",
-          queryStringToDelete);
-      IndependentObjectSet objectSetToDelete = search.fetchObjects(
-          queryStringToDelete, batchHint, SearchWrapper.dereferenceObjects,
-          SearchWrapper.ALL_ROWS);
+      IndependentObjectSet objectSetToDelete = results.get(1);
       LOGGER.fine((objectSetToDelete.isEmpty()) ? "Found no documents to delete"
           : "Found documents to delete");
-
-      // to delete for additional delete clause
       IndependentObjectSet objectSetToDeleteDocs;
-      if (Strings.isNullOrEmpty(connector.getDeleteAdditionalWhereClause())) {
+      if (results.size() < 3) {
         objectSetToDeleteDocs = new EmptyObjectSet();
       } else {
-        String queryStringToDeleteDocs = buildQueryStringToDeleteDocs(
-            checkPoint, connector.getDeleteAdditionalWhereClause());
-        LOGGER.log(Level.FINE,
-            "Query for documents satisfying the delete WHERE clause: {0}",
-            queryStringToDeleteDocs);
-        objectSetToDeleteDocs = search.fetchObjects(queryStringToDeleteDocs,
-            batchHint, SearchWrapper.dereferenceObjects,
-            SearchWrapper.ALL_ROWS);
+        objectSetToDeleteDocs = results.get(2);
         LOGGER.fine((objectSetToDeleteDocs.isEmpty())
             ? "Found no documents to delete using WHERE clause"
             : "Found documents to delete using WHERE clause");
@@ -160,9 +255,13 @@ public class FileDocumentTraverser implements Traverser {
 
       if (!objectSet.isEmpty() || !objectSetToDeleteDocs.isEmpty()
           || !objectSetToDelete.isEmpty()) {
+        int fetchThreads = connector.getFetchThreads();
+        Executor fetchExecutor =
+            (fetchThreads > 0) ? getFetchExecutor(fetchThreads) : null;
         return new FileDocumentList(objectSet, objectSetToDeleteDocs,
-            objectSetToDelete, fileObjectFactory, objectStore, connector,
-            traversalContext, checkPoint);
+            objectSetToDelete, objectStore, connector, traversalContext,
+            checkPoint, fetchExecutor, FETCH_AHEAD_PER_THREAD * fetchThreads,
+            markingSets, authorizations);
       } else {
         return null;
       }
@@ -171,6 +270,134 @@ public class FileDocumentTraverser implements Traverser {
     }
   }
 
+  private IndependentObjectSet fetchObjects(SearchWrapper search,
+      String query, PropertyFilter filter) {
+    return search.fetchObjects(query, batchHint, filter,
+        SearchWrapper.ALL_ROWS);
+  }
+
+  /** Executes the queries one after another on the calling thread. */
+  private List<IndependentObjectSet> fetchSequentially(SearchWrapper search,
+      List<String> queries, List<PropertyFilter> filters) {
+    List<IndependentObjectSet> results = new ArrayList<>(queries.size());
+    for (int i = 0; i < queries.size(); i++) {
+      results.add(fetchObjects(search, queries.get(i), filters.get(i)));
+    }
+    return results;
+  }
+
+  /**
+   * Executes the queries concurrently, so that the batch latency is
+   * that of the slowest query rather than the sum of all of them.
+   */
+  private List<IndependentObjectSet> fetchConcurrently(SearchWrapper search,
+      List<String> queries, List<PropertyFilter> filters)
+      throws RepositoryException {
+    // The UserContext is thread-local, so each task pushes the Subject.
+    Subject subject = connection.getSubject();
+    ExecutorService executor = getQueryExecutor();
+    List<Future<IndependentObjectSet>> futures =
+        new ArrayList<>(queries.size());
+    for (int i = 0; i < queries.size(); i++) {
+      futures.add(executor.submit(
+          newSearchTask(subject, search, queries.get(i), filters.get(i))));
+    }
+
+    List<IndependentObjectSet> results = new ArrayList<>(queries.size());
+    try {
+      for (Future<IndependentObjectSet> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryException("Interrupted while querying documents", e);
+    } catch (ExecutionException e) {
+      // Rethrow EngineRuntimeExceptions as if they were thrown here.
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new RepositoryException(cause);
+      }
+    } finally {
+      for (Future<IndependentObjectSet> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+
+  private Callable<IndependentObjectSet> newSearchTask(final Subject subject,
+      final SearchWrapper search, final String query,
+      final PropertyFilter filter) {
+    return new Callable<IndependentObjectSet>() {
+      @Override
+      public IndependentObjectSet call() {
+        UserContext.get().pushSubject(subject);
+        try {
+          return fetchObjects(search, query, filter);
+        } finally {
+          UserContext.get().popSubject();
+        }
+      }
+    };
+  }
+
+  private synchronized ExecutorService getQueryExecutor() {
+    if (queryExecutor == null) {
+      // Idle threads time out, so the executor is never shut down.
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(QUERY_THREADS,
+          QUERY_THREADS, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("FileDocumentTraverser-query-%d").build());
+      executor.allowCoreThreadTimeOut(true);
+      queryExecutor = executor;
+    }
+    return queryExecutor;
+  }
+
+  /**
+   * Gets an executor for preparing documents, which pushes the Subject
+   * of the connection for each task.
+   */
+  private Executor getFetchExecutor(int fetchThreads) {
+    final Subject subject = connection.getSubject();
+    final ExecutorService executor = getFetchThreadPool(fetchThreads);
+    return new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              UserContext.get().pushSubject(subject);
+              try {
+                command.run();
+              } finally {
+                UserContext.get().popSubject();
+              }
+            }
+          });
+      }
+    };
+  }
+
+  private synchronized ExecutorService getFetchThreadPool(int fetchThreads) {
+    if (fetchThreadPool == null) {
+      // Idle threads time out, so the executor is never shut down.
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(fetchThreads,
+          fetchThreads, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("FileDocumentTraverser-fetch-%d").build());
+      executor.allowCoreThreadTimeOut(true);
+      fetchThreadPool = executor;
+    }
+    return fetchThreadPool;
+  }
+
   /**
    * To construct FileNet query to fetch documents from FileNet repository
    * considering additional delete where clause specified as connector
@@ -184,35 +411,8 @@ public class FileDocumentTraverser implements Traverser {
    */
   private String buildQueryString(Checkpoint checkpoint)
           throws RepositoryException {
-    StringBuilder query = new StringBuilder("SELECT TOP ");
-    query.append(batchHint);
-    query.append(" ");
-    query.append(PropertyNames.ID);
-    query.append(",");
-    query.append(PropertyNames.DATE_LAST_MODIFIED);
-    query.append(",");
-    query.append(PropertyNames.RELEASED_VERSION);
-    query.append(" FROM ");
-    query.append(tableName);
-    query.append(" WHERE VersionStatus=1 and ContentSize IS NOT NULL ");
-
-    String additionalWhereClause = connector.getAdditionalWhereClause();
-    if (additionalWhereClause != null && !additionalWhereClause.equals("")) {
-      if ((additionalWhereClause.toUpperCase()).startsWith("SELECT ID,DATELASTMODIFIED FROM ")) {
-        query = new StringBuilder(additionalWhereClause);
-        query.replace(0, 6, "SELECT TOP " + batchHint + " ");
-        LOGGER.log(Level.FINE, "Using Custom Query[{0}]",
-            additionalWhereClause);
-      } else {
-        query.append(additionalWhereClause);
-      }
-    }
-    if (!checkpoint.isNull(JsonField.LAST_MODIFIED_TIME)) {
-      query.append(getCheckpointClause(checkpoint, JsonField.LAST_MODIFIED_TIME,
-              JsonField.UUID, WHERE_CLAUSE, WHERE_CLAUSE_ONLY_DATE));
-    }
-    query.append(ORDER_BY);
-    return query.toString();
+    return buildQuery(ADD_QUERY, connector.getAdditionalWhereClause(),
+        checkpoint, JsonField.LAST_MODIFIED_TIME, JsonField.UUID);
   }
 
   /**
@@ -221,32 +421,9 @@ public class FileDocumentTraverser implements Traverser {
    */
   private String buildQueryStringToDeleteDocs(Checkpoint checkpoint,
       String deleteadditionalWhereClause) throws RepositoryException {
-    StringBuilder query = new StringBuilder("SELECT TOP ");
-    query.append(batchHint);
-    query.append(" ");
-    query.append(PropertyNames.ID);
-    query.append(",");
-    query.append(PropertyNames.DATE_LAST_MODIFIED);
-    query.append(" FROM ");
-    query.append(tableName);
-    query.append(" WHERE VersionStatus=1 and ContentSize IS NOT NULL ");
-
-    if ((deleteadditionalWhereClause.toUpperCase()).startsWith("SELECT ID,DATELASTMODIFIED FROM ")) {
-      query = new StringBuilder(deleteadditionalWhereClause);
-      query.replace(0, 6, "SELECT TOP " + batchHint + " ");
-      LOGGER.log(Level.FINE, "Using Custom Query[{0}]",
-          deleteadditionalWhereClause);
-    } else {
-      query.append(deleteadditionalWhereClause);
-    }
-    if (!checkpoint.isNull(JsonField.LAST_CUSTOM_DELETION_TIME)) {
-      query.append(getCheckpointClause(checkpoint,
-              JsonField.LAST_CUSTOM_DELETION_TIME,
-              JsonField.UUID_CUSTOM_DELETED_DOC, WHERE_CLAUSE_TO_DELETE_DOCS,
-              WHERE_CLAUSE_TO_DELETE_DOCS_ONLY_DATE));
-    }
-    query.append(ORDER_BY);
-    return query.toString();
+    return buildQuery(DELETE_DOCS_QUERY, deleteadditionalWhereClause,
+        checkpoint, JsonField.LAST_CUSTOM_DELETION_TIME,
+        JsonField.UUID_CUSTOM_DELETED_DOC);
   }
 
   /**
@@ -262,29 +439,21 @@ public class FileDocumentTraverser implements Traverser {
    */
   private String buildQueryToDelete(Checkpoint checkpoint)
           throws RepositoryException {
-    StringBuilder query = new StringBuilder("SELECT TOP ");
-    query.append(batchHint);
-    query.append(" ");
-
-    // GuidConstants.Class_DeletionEvent = Only deleted objects in event
-    // table
-    query.append(PropertyNames.ID);
-    query.append(",");
-    query.append(PropertyNames.DATE_CREATED);
-    query.append(",");
-    query.append(PropertyNames.VERSION_SERIES_ID);
-    query.append(",");
-    query.append(PropertyNames.SOURCE_OBJECT_ID);
-    query.append(" FROM ");
-    query.append(GuidConstants.Class_DeletionEvent);
-    if (!checkpoint.isNull(JsonField.LAST_DELETION_EVENT_TIME)) {
-      query.append(getCheckpointClause(checkpoint,
-              JsonField.LAST_DELETION_EVENT_TIME,
-              JsonField.UUID_DELETION_EVENT, WHERE_CLAUSE_TO_DELETE,
-              WHERE_CLAUSE_TO_DELETE_ONLY_DATE));
+    return buildQuery(DELETION_EVENT_QUERY, "", checkpoint,
+        JsonField.LAST_DELETION_EVENT_TIME, JsonField.UUID_DELETION_EVENT);
+  }
+
+  private String buildQuery(KeysetQuery query, String additionalWhereClause,
+      Checkpoint checkpoint, JsonField dateField, JsonField uuidField)
+      throws RepositoryException {
+    String keysetClause;
+    if (checkpoint.isNull(dateField)) {
+      keysetClause = "";
+    } else {
+      keysetClause =
+          getCheckpointClause(checkpoint, dateField, uuidField, query);
     }
-    query.append(ORDER_BY_TO_DELETE);
-    return query.toString();
+    return query.build(batchHint, additionalWhereClause, keysetClause);
   }
 
   /**
@@ -293,24 +462,17 @@ public class FileDocumentTraverser implements Traverser {
    * @param checkpoint the checkpoint
    * @param dateField the checkpoint date field
    * @param uuidField the checkpoint ID field
-   * @param whereClause the date and ID where clause pattern
-   * @param whereClauseOnlyDate the date only where clause pattern
+   * @param query the query with the where clause patterns
    * @return a query string
    * @throws RepositoryException if the checkpoint is uninitialized
    */
   @VisibleForTesting
   String getCheckpointClause(Checkpoint checkPoint, JsonField dateField,
-      JsonField uuidField, String whereClause, String whereClauseOnlyDate)
-      throws RepositoryException {
+      JsonField uuidField, KeysetQuery query) throws RepositoryException {
     String uuid = checkPoint.getString(uuidField);
     String c = FileUtil.getQueryTimeString(checkPoint.getString(dateField));
-    String statement;
-    Object[] arguments = { c, uuid };
-    if (uuid.equals("") || !connector.useIDForChangeDetection()) {
-      statement = MessageFormat.format(whereClauseOnlyDate, arguments);
-    } else {
-      statement = MessageFormat.format(whereClause, arguments);
-    }
+    String statement = query.getKeysetClause(c,
+        (connector.useIDForChangeDetection()) ? uuid : null);
     LOGGER.log(Level.FINE, "MakeCheckpointQueryString date: {0}", c);
     LOGGER.log(Level.FINE, "MakeCheckpointQueryString ID: {0}", uuid);
     return statement;
@@ -26,6 +26,7 @@ import com.google.enterprise.connector.spi.RepositoryLoginException;
 import com.google.enterprise.connector.spi.Session;
 import com.google.enterprise.connector.spi.TraversalManager;
 
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class FileSession implements Session {
@@ -36,6 +37,11 @@ public class FileSession implements Session {
   private final IObjectFactory fileObjectFactory;
   private final IObjectStore objectStore;
   private final IConnection connection;
+  private final MarkingSetCache markingSets;
+  private final AuthorizationCache authorizations;
+  private final UserCache users;
+
+  private AuthorizationExecutor authorizationExecutor;
 
   public FileSession(FileConnector fileConnector)
       throws RepositoryLoginException, RepositoryException {
@@ -57,6 +63,19 @@ public class FileSession implements Session {
     this.objectStore =
         fileObjectFactory.getObjectStore(connector.getObjectStore(),
             connection, connector.getUsername(), connector.getPassword());
+
+    this.markingSets =
+        new MarkingSetCache(connection, fileObjectFactory, objectStore);
+    // Changes to security policies and folders are only traversed when
+    // pushing ACLs, so otherwise cached decisions and permissions could
+    // be stale.
+    boolean pushAcls = connector.pushAcls();
+    this.authorizations = new AuthorizationCache(
+        pushAcls ? connector.getAuthorizationCacheSize() : 0,
+        pushAcls ? connector.getAclCacheSize() : 0,
+        connector.getAuthorizationCacheSeconds(), TimeUnit.SECONDS);
+    this.users = new UserCache(connection, connector.getUserCacheSize(),
+        connector.getUserCacheSeconds(), TimeUnit.SECONDS);
   }
 
   private IObjectFactory getFileObjectFactory(String objectFactoryName)
@@ -77,48 +96,71 @@ public class FileSession implements Session {
   @VisibleForTesting
   Traverser getFileDocumentTraverser() {
     return new FileDocumentTraverser(connection, fileObjectFactory,
-        objectStore, connector);
+        objectStore, connector, markingSets, authorizations);
   }
 
   @VisibleForTesting
   Traverser getSecurityPolicyTraverser() {
     return new SecurityPolicyTraverser(connection, fileObjectFactory,
-        objectStore, connector);
+        objectStore, connector, authorizations);
   }
 
   @VisibleForTesting
   Traverser getSecurityFolderTraverser() {
     return new SecurityFolderTraverser(connection, fileObjectFactory,
-        objectStore, connector);
+        objectStore, connector, authorizations);
   }
 
   @VisibleForTesting
   FileAuthorizationHandler getFileAuthorizationHandler() {
-    return new FileAuthorizationHandler(connection, fileObjectFactory,
-        objectStore, connector.checkMarking(), Permissions.getFactory());
+    return new FileAuthorizationHandler(connection, objectStore,
+        connector.checkMarking(), Permissions.getFactory(), markingSets,
+        authorizations, users);
   }
 
   @Override
   public TraversalManager getTraversalManager() throws RepositoryException {
+    FileTraversalManager traversalManager;
     if (connector.pushAcls()) {
-      return new FileTraversalManager(getFileDocumentTraverser(),
-          getSecurityPolicyTraverser(), getSecurityFolderTraverser());
+      traversalManager = new FileTraversalManager(connection,
+          getFileDocumentTraverser(), getSecurityPolicyTraverser(),
+          getSecurityFolderTraverser());
     } else {
-      return new FileTraversalManager(getFileDocumentTraverser());
+      traversalManager = new FileTraversalManager(connection,
+          getFileDocumentTraverser());
+    }
+    traversalManager.setReadAhead(connector.readAhead());
+    if (connector.getTargetBatchSeconds() > 0) {
+      traversalManager.setAdaptiveBatchSize(new AdaptiveBatchSize(
+          connector.getMinBatchSize(), connector.getMaxBatchSize(),
+          connector.getTargetBatchSeconds(), TimeUnit.SECONDS));
     }
+    return traversalManager;
   }
 
   @Override
   public AuthenticationManager getAuthenticationManager()
           throws RepositoryException {
     return new FileAuthenticationManager(connection,
-        connector.getGoogleGlobalNamespace(), connector.pushAcls());
+        connector.getGoogleGlobalNamespace(), connector.pushAcls(), users);
+  }
+
+  /**
+   * Gets the executor shared by the authorization managers of this
+   * session, rather than creating threads for each request.
+   */
+  private synchronized AuthorizationExecutor getAuthorizationExecutor() {
+    if (authorizationExecutor == null) {
+      authorizationExecutor = FileAuthorizationManager.newExecutor();
+    }
+    return authorizationExecutor;
   }
 
   @Override
   public AuthorizationManager getAuthorizationManager()
           throws RepositoryException {
-    return new FileAuthorizationManager(getFileAuthorizationHandler());
+    return new FileAuthorizationManager(getFileAuthorizationHandler(),
+        getAuthorizationExecutor(), connector.getAuthorizationTimeoutMillis());
   }
 
   public SearchWrapper getSearch() {
@@ -15,16 +15,32 @@
 package com.google.enterprise.connector.filenet4;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.filenet4.api.IConnection;
+import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SkippedDocumentException;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.TraversalContextAware;
 import com.google.enterprise.connector.spi.TraversalManager;
 
+import com.filenet.api.util.UserContext;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.security.auth.Subject;
+
 /**
  * Delegates the traversal to a list of {@code Traverser}s.
  */
@@ -33,9 +49,38 @@ public class FileTraversalManager implements TraversalManager,
   private static final Logger LOGGER =
       Logger.getLogger(FileTraversalManager.class.getName());
 
+  private final IConnection connection;
   private final List<Traverser> traversers;
 
+  private int batchHint = 1000;
+  private boolean readAhead = false;
+
+  /** Adjusts the traverser batch size, or {@code null} to use the hint. */
+  private AdaptiveBatchSize adaptiveBatchSize;
+
+  /** The batch size most recently set on the traversers. */
+  private int traverserBatchSize;
+
+  /** The timed document list most recently returned, if any. */
+  private TimedDocumentList currentBatch;
+
+  /** The pending read ahead, or {@code null} if there is none. */
+  private ReadAhead pending;
+
+  private ExecutorService readAheadExecutor;
+
   public FileTraversalManager(Traverser... traversers) {
+    this(null, traversers);
+  }
+
+  /**
+   * @param connection the connection whose subject is pushed while a
+   *     document list that was read ahead on another thread is used,
+   *     or {@code null} to not push a subject
+   */
+  public FileTraversalManager(IConnection connection,
+      Traverser... traversers) {
+    this.connection = connection;
     this.traversers = ImmutableList.copyOf(traversers);
   }
 
@@ -53,24 +98,333 @@ public class FileTraversalManager implements TraversalManager,
       batchHint = 1000;
     }
     LOGGER.finest("Setting batchHint to " + batchHint);
+    if (batchHint != this.batchHint) {
+      discardReadAhead();
+    }
+    this.batchHint = batchHint;
+    setTraverserBatchSize(getBatchSize());
+  }
+
+  /**
+   * Sets the controller used to adjust the batch size used by the
+   * traversers to the observed traversal times. If {@code null}, the
+   * batch hint is used as is.
+   */
+  public void setAdaptiveBatchSize(AdaptiveBatchSize adaptiveBatchSize) {
+    this.adaptiveBatchSize = adaptiveBatchSize;
+  }
+
+  private int getBatchSize() {
+    return (adaptiveBatchSize == null)
+        ? batchHint : adaptiveBatchSize.getBatchSize(batchHint);
+  }
+
+  private void setTraverserBatchSize(int batchSize)
+      throws RepositoryException {
+    traverserBatchSize = batchSize;
     for (Traverser t : traversers) {
-      t.setBatchHint(batchHint);
+      t.setBatchHint(batchSize);
     }
   }
 
+  /**
+   * Sets whether the next batch is read ahead. When a document list
+   * has been completely read, the document list for its checkpoint is
+   * computed on a background thread, so that it is ready when
+   * {@code resumeTraversal} is called with that checkpoint.
+   */
+  public void setReadAhead(boolean readAhead) {
+    this.readAhead = readAhead;
+  }
+
   @Override
   public DocumentList startTraversal() throws RepositoryException {
-    return getDocumentList(new Checkpoint());
+    recordCurrentBatch();
+    discardReadAhead();
+    return readAhead(getDocumentList(new Checkpoint()), false);
   }
 
   @Override
   public DocumentList resumeTraversal(String checkPoint)
           throws RepositoryException {
-    return getDocumentList(new Checkpoint(checkPoint));
+    recordCurrentBatch();
+    ReadAhead pending = discardReadAhead();
+    if (pending != null && pending.matches(checkPoint, batchHint)) {
+      try {
+        DocumentList docList = pending.get();
+        LOGGER.finest("Using document list read ahead from checkpoint "
+            + checkPoint);
+        return readAhead(docList, true);
+      } catch (ExecutionException e) {
+        // Try again, so that any exception is thrown from this thread.
+        LOGGER.log(Level.FINEST, "Failed to read ahead from checkpoint "
+            + checkPoint, e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return readAhead(getDocumentList(new Checkpoint(checkPoint)), false);
+  }
+
+  /**
+   * Wraps the document list to read ahead, if enabled.
+   *
+   * @param isReadAhead whether the document list was read ahead on
+   *     another thread, and needs the subject pushed on this thread
+   */
+  private DocumentList readAhead(DocumentList docList, boolean isReadAhead) {
+    if (docList instanceof TimedDocumentList) {
+      currentBatch = (TimedDocumentList) docList;
+      currentBatch.start();
+    }
+    if (isReadAhead && connection != null && docList != null) {
+      docList = new SubjectDocumentList(docList);
+    }
+    if (readAhead && docList != null) {
+      return new ReadAheadDocumentList(docList);
+    } else {
+      return docList;
+    }
+  }
+
+  /**
+   * Removes the pending read ahead, if any, and waits for it to
+   * complete, since the traversers are not thread-safe.
+   *
+   * @return the removed read ahead, or {@code null} if there was none
+   */
+  private ReadAhead discardReadAhead() {
+    ReadAhead pending;
+    synchronized (this) {
+      pending = this.pending;
+      this.pending = null;
+    }
+    if (pending != null) {
+      pending.await();
+    }
+    return pending;
+  }
+
+  private synchronized void startReadAhead(String checkpoint) {
+    if (pending != null) {
+      return;
+    }
+    LOGGER.finest("Reading ahead from checkpoint " + checkpoint);
+    pending = new ReadAhead(checkpoint, batchHint);
+    getReadAheadExecutor().execute(pending);
+  }
+
+  private synchronized ExecutorService getReadAheadExecutor() {
+    if (readAheadExecutor == null) {
+      // Idle threads time out, so the executor is never shut down.
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("FileTraversalManager-readAhead-%d").build());
+      executor.allowCoreThreadTimeOut(true);
+      readAheadExecutor = executor;
+    }
+    return readAheadExecutor;
+  }
+
+  /** Computes the document list for a checkpoint in the background. */
+  private class ReadAhead extends FutureTask<DocumentList> {
+    private final String checkpoint;
+    private final int batchHint;
+
+    public ReadAhead(final String checkpoint, int batchHint) {
+      super(new Callable<DocumentList>() {
+          @Override
+          public DocumentList call() throws RepositoryException {
+            Subject subject = UserContext.get().getSubject();
+            try {
+              return getDocumentList(new Checkpoint(checkpoint));
+            } finally {
+              popSubjects(subject);
+            }
+          }
+        });
+      this.checkpoint = checkpoint;
+      this.batchHint = batchHint;
+    }
+
+    public boolean matches(String checkpoint, int batchHint) {
+      return this.checkpoint.equals(checkpoint) && this.batchHint == batchHint;
+    }
+
+    /** Waits for the read ahead to complete, ignoring the result. */
+    public void await() {
+      try {
+        get();
+      } catch (ExecutionException e) {
+        // Ignored here. The exception is handled by resumeTraversal.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Pops the subjects pushed on this thread by the traversers when
+   * they refreshed the user context, down to the given subject. Each
+   * traverser pushes at most one subject.
+   */
+  private void popSubjects(Subject subject) {
+    UserContext uc = UserContext.get();
+    for (int i = 0; i < traversers.size() && uc.getSubject() != subject;
+         i++) {
+      uc.popSubject();
+    }
+  }
+
+  /**
+   * Pushes the connection subject while the wrapped document list is
+   * used. The documents may be fetched from FileNet as they are read,
+   * on a thread other than the one that read the document list ahead.
+   */
+  private class SubjectDocumentList implements DocumentList {
+    private final DocumentList docList;
+
+    public SubjectDocumentList(DocumentList docList) {
+      this.docList = docList;
+    }
+
+    @Override
+    public Document nextDocument() throws RepositoryException {
+      UserContext.get().pushSubject(connection.getSubject());
+      try {
+        return docList.nextDocument();
+      } finally {
+        UserContext.get().popSubject();
+      }
+    }
+
+    @Override
+    public String checkpoint() throws RepositoryException {
+      UserContext.get().pushSubject(connection.getSubject());
+      try {
+        return docList.checkpoint();
+      } finally {
+        UserContext.get().popSubject();
+      }
+    }
+  }
+
+  /**
+   * Starts reading ahead when the wrapped document list has been
+   * completely read.
+   */
+  private class ReadAheadDocumentList implements DocumentList {
+    private final DocumentList docList;
+    private boolean isRead = false;
+
+    public ReadAheadDocumentList(DocumentList docList) {
+      this.docList = docList;
+    }
+
+    @Override
+    public Document nextDocument() throws RepositoryException {
+      Document doc = docList.nextDocument();
+      if (doc == null && !isRead) {
+        isRead = true;
+        startReadAhead(docList.checkpoint());
+      }
+      return doc;
+    }
+
+    @Override
+    public String checkpoint() throws RepositoryException {
+      return docList.checkpoint();
+    }
+  }
+
+  /**
+   * Records the times for the current batch, if it was not completely
+   * read, so that a Connector Manager that stops early still adjusts
+   * the batch size.
+   */
+  private void recordCurrentBatch() {
+    if (currentBatch != null) {
+      currentBatch.record();
+      currentBatch = null;
+    }
+  }
+
+  /**
+   * Measures the elapsed time from when the list is returned to the
+   * Connector Manager until it has been read or checkpointed, and
+   * records it with the query time. The elapsed time includes the
+   * time spent fetching properties and content as they are used,
+   * after {@code nextDocument} returns, and the time spent querying
+   * for later pages.
+   */
+  private class TimedDocumentList implements DocumentList {
+    private final DocumentList docList;
+    private final int batchSize;
+    private final long queryNanos;
+
+    /** The time the list was returned, or -1 if it has not been. */
+    private long startNanos = -1;
+    private int documents = 0;
+    private boolean isRecorded = false;
+
+    public TimedDocumentList(DocumentList docList, int batchSize,
+        long queryNanos) {
+      this.docList = docList;
+      this.batchSize = batchSize;
+      this.queryNanos = queryNanos;
+    }
+
+    /** Starts measuring, when the list is returned. */
+    public void start() {
+      if (startNanos < 0) {
+        startNanos = System.nanoTime();
+      }
+    }
+
+    @Override
+    public Document nextDocument() throws RepositoryException {
+      Document doc;
+      try {
+        doc = docList.nextDocument();
+      } catch (SkippedDocumentException e) {
+        documents++;
+        throw e;
+      }
+      if (doc == null) {
+        record();
+      } else {
+        documents++;
+      }
+      return doc;
+    }
+
+    @Override
+    public String checkpoint() throws RepositoryException {
+      try {
+        return docList.checkpoint();
+      } finally {
+        record();
+      }
+    }
+
+    public void record() {
+      if (!isRecorded && startNanos >= 0) {
+        isRecorded = true;
+        adaptiveBatchSize.record(batchSize, documents, queryNanos,
+            System.nanoTime() - startNanos);
+      }
+    }
   }
 
   private DocumentList getDocumentList(Checkpoint checkpoint)
       throws RepositoryException {
+    int batchSize = getBatchSize();
+    if (adaptiveBatchSize != null && batchSize != traverserBatchSize) {
+      setTraverserBatchSize(batchSize);
+    }
+
+    long start = System.nanoTime();
     List<DocumentList> docLists = new ArrayList<>(traversers.size());
     for (Traverser t : traversers) {
       DocumentList docList = t.getDocumentList(checkpoint);
@@ -80,11 +434,17 @@ public class FileTraversalManager implements TraversalManager,
         docLists.add(docList);
       }
     }
+    long queryNanos = System.nanoTime() - start;
     if (docLists.size() > 0) {
       LOGGER.finest("Concatenating " + docLists.size() + " document lists");
-      return new ConcatenatedDocumentList(docLists);
+      DocumentList docList = new ConcatenatedDocumentList(docLists);
+      return (adaptiveBatchSize == null)
+          ? docList : new TimedDocumentList(docList, batchSize, queryNanos);
     } else {
       LOGGER.finest("No document lists returned from traversers");
+      if (adaptiveBatchSize != null) {
+        adaptiveBatchSize.record(batchSize, 0, queryNanos, 0L);
+      }
       return null;
     }
   }
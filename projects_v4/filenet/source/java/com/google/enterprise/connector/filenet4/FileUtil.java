@@ -14,8 +14,10 @@
 
 package com.google.enterprise.connector.filenet4;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.spi.Principal;
 import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
@@ -46,6 +48,15 @@ public class FileUtil {
 
   private static final String ZULU_WITH_COLON = "+00:00";
 
+  /**
+   * The names in the document property filters that are not Document
+   * properties. VersionSeriesId is read from deletion events, and
+   * PermissionType and PermissionSource from access permissions.
+   */
+  private static final Set<String> NON_DOCUMENT_PROPERTY_NAMES =
+      ImmutableSet.of(PropertyNames.VERSION_SERIES_ID,
+          PropertyNames.PERMISSION_TYPE, PropertyNames.PERMISSION_SOURCE);
+
   private FileUtil() {
   }
 
@@ -85,6 +96,14 @@ public class FileUtil {
   /** Creates a default property filter for document. */
   public static PropertyFilter getDocumentPropertyFilter(
       Set<String> includedMetaNames) {
+    return getPropertyFilter(getDocumentPropertyNames(includedMetaNames));
+  }
+
+  /**
+   * Gets the names of the document properties in the default property
+   * filter: the included metadata plus a fixed set of properties.
+   */
+  static Set<String> getDocumentPropertyNames(Set<String> includedMetaNames) {
     Set<String> filterSet = new HashSet<String>();
     if (includedMetaNames != null) {
       filterSet.addAll(includedMetaNames);
@@ -101,7 +120,86 @@ public class FileUtil {
     filterSet.add(PropertyNames.PERMISSIONS);
     filterSet.add(PropertyNames.PERMISSION_TYPE);
     filterSet.add(PropertyNames.PERMISSION_SOURCE);
+    return filterSet;
+  }
+
+  /**
+   * Creates a property filter for document that includes only the
+   * properties that will be read by FileDocument.
+   */
+  public static PropertyFilter getTrimmedDocumentPropertyFilter(
+      Set<String> includedMetaNames, Set<String> excludedMetaNames,
+      boolean pushAcls, boolean checkMarking) {
+    return getPropertyFilter(getTrimmedDocumentPropertyNames(
+            includedMetaNames, excludedMetaNames, pushAcls, checkMarking));
+  }
+
+  /**
+   * Gets the names of the document properties that will be read by
+   * FileDocument: the included metadata that is not excluded, plus
+   * the properties needed for the content, document ID, and ACLs.
+   */
+  @VisibleForTesting
+  static Set<String> getTrimmedDocumentPropertyNames(
+      Set<String> includedMetaNames, Set<String> excludedMetaNames,
+      boolean pushAcls, boolean checkMarking) {
+    Set<String> filterSet = new HashSet<String>();
+    if (includedMetaNames != null) {
+      filterSet.addAll(includedMetaNames);
+      if (excludedMetaNames != null) {
+        filterSet.removeAll(excludedMetaNames);
+      }
+    }
+    filterSet.add(PropertyNames.ID);
+    filterSet.add(PropertyNames.CLASS_DESCRIPTION);
+    filterSet.add(PropertyNames.CONTENT_ELEMENTS);
+    filterSet.add(PropertyNames.CONTENT_SIZE);
+    filterSet.add(PropertyNames.DATE_LAST_MODIFIED);
+    filterSet.add(PropertyNames.MIME_TYPE);
+    filterSet.add(PropertyNames.VERSION_SERIES);
+    if (pushAcls) {
+      filterSet.add(PropertyNames.OWNER);
+      filterSet.add(PropertyNames.PERMISSIONS);
+      filterSet.add(PropertyNames.PERMISSION_TYPE);
+      filterSet.add(PropertyNames.PERMISSION_SOURCE);
+      if (checkMarking) {
+        filterSet.add(PropertyNames.ACTIVE_MARKINGS);
+      }
+    }
+    return filterSet;
+  }
+
+  /**
+   * Gets the names to select in a search for documents. Unlike a
+   * property filter, a search fails if it selects a name that is not a
+   * Document property, so the names of dependent objects and events
+   * are omitted.
+   *
+   * @param filterNames the names in the document property filter
+   * @param documentNames the names of the Document properties, or
+   *     {@code null} if they are not known
+   * @return the names to select, or {@code null} if a filter name is not
+   *     defined on the Document class, in which case a search cannot
+   *     return that property
+   */
+  static Set<String> getDocumentSelectNames(Set<String> filterNames,
+      Set<String> documentNames) {
+    Set<String> selectNames = new HashSet<String>();
+    for (String name : filterNames) {
+      if (NON_DOCUMENT_PROPERTY_NAMES.contains(name)) {
+        continue;
+      }
+      if (documentNames != null && !documentNames.contains(name)) {
+        logger.log(Level.FINE, "{0} is not a Document property", name);
+        return null;
+      }
+      selectNames.add(name);
+    }
+    return selectNames;
+  }
 
+  /** Creates a property filter that includes the given properties. */
+  static PropertyFilter getPropertyFilter(Set<String> filterSet) {
     StringBuilder buf = new StringBuilder();
     for (String filterName : filterSet) {
       buf.append(filterName).append(" ");
@@ -0,0 +1,217 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import com.google.common.base.Strings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds queries that select the next page of objects after a
+ * (date, ID) checkpoint, in the form {@code SELECT TOP n projection
+ * FROM table condition keyset-clause ORDER BY ...}.
+ * <p>
+ * The keyset clause patterns are parsed when the query is created,
+ * so building a query only appends strings. The most recent custom
+ * SELECT check of an additional where clause is cached. Instances
+ * are immutable apart from that cache, and are thread-safe.
+ */
+class KeysetQuery {
+  private static final Logger LOGGER =
+      Logger.getLogger(KeysetQuery.class.getName());
+
+  /**
+   * The prefix of an additional where clause that replaces the
+   * generated query. Matches {@code FileConnectorType.QUERYFORMAT}.
+   */
+  private static final String CUSTOM_SELECT =
+      "SELECT ID,DATELASTMODIFIED FROM ";
+
+  private static final String SELECT_TOP = "SELECT TOP ";
+
+  private final String projection;
+  private final String from;
+  private final String condition;
+  private final Template keysetClause;
+  private final Template dateClause;
+  private final String orderBy;
+
+  /** The most recently checked additional where clause. */
+  private volatile AdditionalClause lastClause =
+      new AdditionalClause("", false);
+
+  /**
+   * Constructs a query.
+   *
+   * @param projection the selected properties, for example, "*"
+   * @param from the table or quoted class ID
+   * @param condition a fixed where clause, or an empty string
+   * @param keysetClause the date and ID clause pattern, with the date
+   *     as argument {0} and the ID as argument {1}
+   * @param dateClause the date only clause pattern, with the date as
+   *     argument {0}
+   * @param orderBy the order by clause, starting with a space
+   */
+  KeysetQuery(String projection, String from, String condition,
+      String keysetClause, String dateClause, String orderBy) {
+    this(projection, from, condition, new Template(keysetClause),
+        new Template(dateClause), orderBy);
+  }
+
+  private KeysetQuery(String projection, String from, String condition,
+      Template keysetClause, Template dateClause, String orderBy) {
+    this.projection = projection;
+    this.from = from;
+    this.condition = condition;
+    this.keysetClause = keysetClause;
+    this.dateClause = dateClause;
+    this.orderBy = orderBy;
+  }
+
+  /** Gets a copy of this query that selects the given properties. */
+  KeysetQuery withProjection(String projection) {
+    return new KeysetQuery(projection, from, condition, keysetClause,
+        dateClause, orderBy);
+  }
+
+  /**
+   * Gets the clause that restricts the query to objects after the
+   * given checkpoint values.
+   *
+   * @param date the checkpoint date, formatted for a query
+   * @param id the checkpoint ID, or {@code null} or an empty string to
+   *     restrict the query by date alone
+   */
+  String getKeysetClause(String date, String id) {
+    StringBuilder buf = new StringBuilder();
+    if (Strings.isNullOrEmpty(id)) {
+      dateClause.appendTo(buf, date);
+    } else {
+      keysetClause.appendTo(buf, date, id);
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Builds a query string.
+   *
+   * @param pageSize the maximum number of rows to return
+   * @param additionalClause an additional where clause, which may
+   *     be a complete SELECT statement, or an empty string
+   * @param keysetClause the clause from {@link #getKeysetClause}, or
+   *     an empty string
+   */
+  String build(int pageSize, String additionalClause, String keysetClause) {
+    StringBuilder query = new StringBuilder(SELECT_TOP);
+    query.append(pageSize);
+    query.append(' ');
+
+    AdditionalClause clause = getAdditionalClause(additionalClause);
+    if (clause.isSelect) {
+      query.append(clause.text, "SELECT".length(), clause.text.length());
+      LOGGER.log(Level.FINE, "Using Custom Query[{0}]", clause.text);
+    } else {
+      query.append(projection);
+      query.append(" FROM ");
+      query.append(from);
+      query.append(condition);
+      query.append(clause.text);
+    }
+    query.append(keysetClause);
+    query.append(orderBy);
+    return query.toString();
+  }
+
+  private AdditionalClause getAdditionalClause(String text) {
+    if (text == null) {
+      text = "";
+    }
+    AdditionalClause clause = lastClause;
+    if (!clause.text.equals(text)) {
+      clause = new AdditionalClause(text,
+          text.toUpperCase().startsWith(CUSTOM_SELECT));
+      lastClause = clause;
+    }
+    return clause;
+  }
+
+  private static class AdditionalClause {
+    final String text;
+    final boolean isSelect;
+
+    AdditionalClause(String text, boolean isSelect) {
+      this.text = text;
+      this.isSelect = isSelect;
+    }
+  }
+
+  /**
+   * A query fragment in {@code MessageFormat} pattern syntax, split
+   * into literal text and argument indexes. Only simple {@code {n}}
+   * arguments and doubled single quotes are supported.
+   */
+  private static class Template {
+    private final String[] literals;
+    private final int[] arguments;
+
+    Template(String pattern) {
+      List<String> literalList = new ArrayList<>();
+      List<Integer> argumentList = new ArrayList<>();
+      StringBuilder literal = new StringBuilder();
+      for (int i = 0; i < pattern.length(); i++) {
+        char c = pattern.charAt(i);
+        if (c == '\'') {
+          if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+            literal.append(c);
+            i++;
+          } else {
+            throw new IllegalArgumentException(
+                "Quoted text is not supported: " + pattern);
+          }
+        } else if (c == '{') {
+          int end = pattern.indexOf('}', i);
+          if (end == -1) {
+            throw new IllegalArgumentException(
+                "Unmatched brace: " + pattern);
+          }
+          literalList.add(literal.toString());
+          literal.setLength(0);
+          argumentList.add(Integer.valueOf(pattern.substring(i + 1, end)));
+          i = end;
+        } else {
+          literal.append(c);
+        }
+      }
+      literalList.add(literal.toString());
+
+      literals = literalList.toArray(new String[0]);
+      arguments = new int[argumentList.size()];
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = argumentList.get(i);
+      }
+    }
+
+    void appendTo(StringBuilder buf, String... values) {
+      for (int i = 0; i < arguments.length; i++) {
+        buf.append(literals[i]);
+        buf.append(values[arguments[i]]);
+      }
+      buf.append(literals[arguments.length]);
+    }
+  }
+}
@@ -0,0 +1,223 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.filenet4.api.IConnection;
+import com.google.enterprise.connector.filenet4.api.IObjectFactory;
+import com.google.enterprise.connector.filenet4.api.IObjectStore;
+
+import com.filenet.api.admin.PropertyDefinition;
+import com.filenet.api.admin.PropertyDefinitionString;
+import com.filenet.api.collection.PropertyDefinitionList;
+import com.filenet.api.constants.GuidConstants;
+import com.filenet.api.security.MarkingSet;
+import com.filenet.api.util.UserContext;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches whether the Document class has any properties with a marking
+ * set. The first check reads the property definitions of the class.
+ * After the time to live, the cached answer is still returned while the
+ * property definitions are read again in the background.
+ * <p>
+ * The names of the Document properties are also cached, for selecting
+ * documents in a search. They are read once, when first needed.
+ * <p>
+ * This class is thread-safe.
+ */
+class MarkingSetCache {
+  private static final Logger logger =
+      Logger.getLogger(MarkingSetCache.class.getName());
+
+  /** The default time before the class is checked again. */
+  private static final long DEFAULT_TTL_MINUTES = 10;
+
+  private final IConnection connection;
+  private final IObjectFactory objectFactory;
+  private final IObjectStore objectStore;
+  private final long ttlNanos;
+
+  /** The executor for background refreshes, or null to create one. */
+  private Executor refreshExecutor;
+
+  private Boolean hasMarkings;
+  private long loadTime;
+  private boolean isRefreshing = false;
+
+  /** The names of the Document properties, or null if not yet read. */
+  private Set<String> propertyNames;
+
+  /**
+   * @param connection the connection whose Subject is used for
+   *     background refreshes, or {@code null} to use none
+   */
+  MarkingSetCache(IConnection connection, IObjectFactory objectFactory,
+      IObjectStore objectStore) {
+    this(connection, objectFactory, objectStore, DEFAULT_TTL_MINUTES,
+        TimeUnit.MINUTES, null);
+  }
+
+  @VisibleForTesting
+  MarkingSetCache(IConnection connection, IObjectFactory objectFactory,
+      IObjectStore objectStore, long ttl, TimeUnit unit,
+      Executor refreshExecutor) {
+    this.connection = connection;
+    this.objectFactory = objectFactory;
+    this.objectStore = objectStore;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.refreshExecutor = refreshExecutor;
+  }
+
+  /**
+   * Gets whether the Document class has a property with a marking set.
+   * If the property definitions cannot be read, it is assumed that
+   * there are marking sets.
+   */
+  boolean hasMarkings() {
+    Executor executor;
+    synchronized (this) {
+      if (hasMarkings == null) {
+        // Concurrent first checks wait here for a single read.
+        hasMarkings = readMarkings();
+        loadTime = System.nanoTime();
+        return hasMarkings;
+      }
+      if (isRefreshing || System.nanoTime() - loadTime < ttlNanos) {
+        return hasMarkings;
+      }
+      isRefreshing = true;
+      executor = getRefreshExecutor();
+    }
+
+    executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          refresh();
+        }
+      });
+    synchronized (this) {
+      return hasMarkings;
+    }
+  }
+
+  private void refresh() {
+    if (connection != null) {
+      UserContext.get().pushSubject(connection.getSubject());
+    }
+    try {
+      boolean value = readMarkings();
+      synchronized (this) {
+        hasMarkings = value;
+        loadTime = System.nanoTime();
+      }
+    } finally {
+      synchronized (this) {
+        isRefreshing = false;
+      }
+      if (connection != null) {
+        UserContext.get().popSubject();
+      }
+    }
+  }
+
+  private synchronized Executor getRefreshExecutor() {
+    if (refreshExecutor == null) {
+      // Idle threads time out, so the executor is never shut down.
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("MarkingSetCache-refresh-%d").build());
+      executor.allowCoreThreadTimeOut(true);
+      refreshExecutor = executor;
+    }
+    return refreshExecutor;
+  }
+
+  /**
+   * Gets the symbolic names of the properties of the Document class.
+   * The returned set ignores case, like property names in a search.
+   *
+   * @return the property names, or {@code null} if the property
+   *     definitions cannot be read
+   */
+  synchronized Set<String> getPropertyNames() {
+    if (propertyNames == null) {
+      propertyNames = readPropertyNames();
+    }
+    return propertyNames;
+  }
+
+  private Set<String> readPropertyNames() {
+    try {
+      PropertyDefinitionList propertyDefinitions =
+          objectFactory.getPropertyDefinitions(objectStore,
+              GuidConstants.Class_Document, null);
+      Set<String> names = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+      Iterator<?> iter = propertyDefinitions.iterator();
+      while (iter.hasNext()) {
+        names.add(((PropertyDefinition) iter.next()).get_SymbolicName());
+      }
+      logger.log(Level.FINE, "Document class has {0} properties",
+          names.size());
+      return Collections.unmodifiableSet(names);
+    } catch (Exception e) {
+      logger.log(Level.WARNING,
+          "Unable to read the property definitions of the Document class", e);
+      return null;
+    }
+  }
+
+  /** Reads the property definitions of the Document class. */
+  private boolean readMarkings() {
+    try {
+      PropertyDefinitionList propertyDefinitions =
+          objectFactory.getPropertyDefinitions(objectStore,
+              GuidConstants.Class_Document, null);
+      Iterator<?> iter = propertyDefinitions.iterator();
+      while (iter.hasNext()) {
+        Object propertyDefinition = iter.next();
+        // Only string properties can have a marking set, and
+        // get_MarkingSet is defined directly on PropertyDefinitionString.
+        if (propertyDefinition instanceof PropertyDefinitionString) {
+          MarkingSet markingSet =
+              ((PropertyDefinitionString) propertyDefinition).get_MarkingSet();
+          if (markingSet != null) {
+            logger.info("Document class has a property with a marking set");
+            return true;
+          }
+        }
+      }
+      logger.info("Document class has no properties with a marking set");
+      return false;
+    } catch (Exception ecp) {
+      logger.log(Level.SEVERE, "Failure checking for a marking set", ecp);
+      // This was the existing behavior when an exception was thrown, to
+      // use checkMarkings, and if we're here then checkMarkings is true.
+      return true;
+    }
+  }
+}
@@ -14,8 +14,9 @@
 
 package com.google.enterprise.connector.filenet4;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 import com.filenet.api.collection.AccessPermissionList;
 import com.filenet.api.constants.AccessLevel;
@@ -24,10 +25,11 @@ import com.filenet.api.constants.AccessType;
 import com.filenet.api.constants.PermissionSource;
 import com.filenet.api.constants.SecurityPrincipalType;
 import com.filenet.api.security.AccessPermission;
-import com.filenet.api.security.Group;
 import com.filenet.api.security.User;
 
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.logging.Level;
@@ -71,6 +73,9 @@ public class Permissions {
   private final AccessPermissionList perms;
   private final String owner;
 
+  /** The grantees with view access, compiled on first use. */
+  private volatile CompiledAcl compiledAcl;
+
   public Permissions(AccessPermissionList perms, String owner) {
     this.perms = perms;
     this.owner = owner;
@@ -89,47 +94,39 @@ public class Permissions {
    *         authorization.
    */
   public boolean authorize(User user) {
-    boolean isAuthorized = false;
-    Iterator<?> iter = perms.iterator();
-
-    LOGGER.log(Level.FINE, "Authorizing user:[" + user.get_Name() + "]");
+    return authorize(new UserProfile(user));
+  }
 
-    while (iter.hasNext()) {
-      try {
-        AccessPermission perm = (AccessPermission) iter.next();
-        Integer accessMask = perm.get_AccessMask();
-        LOGGER.log(Level.FINEST, "Access Mask is:[" + accessMask + "]");
+  /**
+   * Authorizes a user against the Access Control Entries of the target
+   * document, using the precomputed principal names of the user. The
+   * entries are compiled on the first call, and later calls on this
+   * object only look up the names of the user.
+   *
+   * @param user the principal names of the user to authorize
+   * @return true if the user has view access, and false otherwise
+   */
+  public boolean authorize(UserProfile user) {
+    LOGGER.log(Level.FINE, "Authorizing user:[" + user.getName() + "]");
 
-        if (AccessType.DENY.equals(perm.get_AccessType())) {
-          // Checking for denied read or view content rights.  If either one is
-          // true and user is a member of the ACE, the user is not authorized.
-          if ((VIEW_ACCESS_RIGHTS & accessMask) != 0
-              && matchesUser(perm, user)) {
-            LOGGER.log(Level.FINEST,
-                "Access is denied for user {0} via grantee {1}",
-                new Object[] {user.get_Name(), perm.get_GranteeName()});
-            return false;
-          }
-        } else {
-          // Compare to make sure that the access level, to user for a
-          // document, is at least view or above
-          if ((VIEW_ACCESS_RIGHTS & accessMask) == VIEW_ACCESS_RIGHTS
-              && isAuthorized == false && matchesUser(perm, user)) {
-            isAuthorized = true;
-          }
-        }
-      } catch (Exception ecp) {
-        LOGGER.log(Level.WARNING,
-            "Exception occured in authorizing user against permissions. "
-            + ecp.getMessage(), ecp);
-      }
-    }
+    boolean isAuthorized = getCompiledAcl().authorize(user);
 
     LOGGER.log(Level.FINEST, "User [{0}] is {1}authorized to access document",
-        new Object[] {user.get_Name(), (isAuthorized) ? "" : "not "});
+        new Object[] {user.getName(), (isAuthorized) ? "" : "not "});
     return isAuthorized;
   }
 
+  private CompiledAcl getCompiledAcl() {
+    // Concurrent first calls may each compile the entries, but the
+    // results are equal, and any one of them may be kept.
+    CompiledAcl acl = compiledAcl;
+    if (acl == null) {
+      acl = new CompiledAcl(perms, owner);
+      compiledAcl = acl;
+    }
+    return acl;
+  }
+
   /**
    * To check, a given user has at least USE right or above, over all the
    * marking permission of the target document.
@@ -140,6 +137,19 @@ public class Permissions {
    * @see com.google.enterprise.connector.filenet4.api.IPermissions#authorizeMarking(java.lang.String)
    */
   public boolean authorizeMarking(User user, Integer constraintMask) {
+    return authorizeMarking(new UserProfile(user), constraintMask);
+  }
+
+  /**
+   * Checks that a user has at least the USE right over all the marking
+   * permissions, using the precomputed principal names of the user.
+   *
+   * @param user the principal names of the user to authorize
+   * @param constraintMask the constraint mask of the marking
+   * @return true if the user has the USE right or is not constrained,
+   *         and false otherwise
+   */
+  public boolean authorizeMarking(UserProfile user, Integer constraintMask) {
     boolean hasUseRight = false;
 
     Iterator<?> iter = perms.iterator();
@@ -148,7 +158,7 @@ public class Permissions {
         AccessPermission perm = (AccessPermission) iter.next();
         LOGGER.log(Level.FINEST, "Checking access rights for {0} user: "
             + "grantee[{1}], access mask[{2}], constraint mask[{3}]",
-            new Object[] {user.get_Name(), perm.get_GranteeName(),
+            new Object[] {user.getName(), perm.get_GranteeName(),
                 perm.get_AccessMask(), constraintMask});
 
         if ((perm.get_AccessMask() & USE_MARKING) == USE_MARKING) {
@@ -160,7 +170,7 @@ public class Permissions {
               && (AccessLevel.FULL_CONTROL_AS_INT == constraintMask)
               && matchesUser(perm, user)) {
             LOGGER.log(Level.FINE, "User: [{0}] has Deny USE right and Deny "
-                + "all access rights over the document", user.get_Name());
+                + "all access rights over the document", user.getName());
             return false;
           }
         }
@@ -171,119 +181,217 @@ public class Permissions {
     }
     if (hasUseRight) {
       LOGGER.log(Level.FINE, "User [{0}] has USE right over the document",
-          user.get_Name());
+          user.getName());
       return true;
     } else {
       boolean authorizeByConstraints =
           (VIEW_ACCESS_RIGHTS & constraintMask) == 0;
       LOGGER.log(Level.FINE, "User [{0}] is {1}authorized by constraints",
-          new Object[] {user.get_Name(),
+          new Object[] {user.getName(),
               (authorizeByConstraints ? "" : "not ")});
       return authorizeByConstraints;
     }
   }
 
-  private boolean matchesAnyString(String name, String... otherNames) {
-    for (String otherName : otherNames) {
-      if (name.equalsIgnoreCase(otherName)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
   /**
    * To check, a given user is in the list of Grantee of the given permission
-   * object.
+   * object. The names of the user and its groups are looked up in the
+   * sets of the user profile, rather than compared one at a time.
    *
-   * @param Object of the AccessPermission, Search user name.
+   * @param perm the permission to check
+   * @param user the principal names of the user
    * @return True or False, depending on the success or failure of check for
    *         grantee name check.
-   * @throws Exception
-   * @see com.google.enterprise.connector.filenet4.api.IPermissions#checkGranteeName(AccessPermission,java.lang.String)
    */
-  private boolean matchesUser(AccessPermission perm, User user) {
+  private boolean matchesUser(AccessPermission perm, UserProfile user) {
     String granteeName = perm.get_GranteeName();
-    String granteeType = perm.get_GranteeType().toString();
-    String accessType = perm.get_AccessType().toString();
-    LOGGER.log(Level.FINER, "Grantee Name: [{0}], type: {1}, access type: {2}",
-        new Object[] {granteeName, granteeType, accessType});
+    SecurityPrincipalType granteeType = perm.get_GranteeType();
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.log(Level.FINER,
+          "Grantee Name: [{0}], type: {1}, access type: {2}",
+          new Object[] {granteeName, granteeType, perm.get_AccessType()});
+    }
 
-    if (perm.get_GranteeType() == SecurityPrincipalType.USER) {
+    if (granteeType == SecurityPrincipalType.USER) {
       if (granteeName.equalsIgnoreCase(CREATOR_OWNER)) {
-        if (owner != null && matchesAnyString(owner, user.get_Name(),
-            user.get_Email(), user.get_DistinguishedName())) {
+        if (owner != null && user.matchesUser(owner)) {
           LOGGER.log(Level.FINER,
               "Authorization: [{0}] matches the creator owner",
-              user.get_Name());
+              user.getName());
           return true;
         }
-        LOGGER.log(Level.FINER, "Authorization [{0}]: [{1}] is not {2} owner",
-            new Object[] {accessType, user.get_Name(), owner});
+        LOGGER.log(Level.FINER, "Authorization: [{0}] is not {1} owner",
+            new Object[] {user.getName(), owner});
         return false;
       }
-      if (matchesAnyString(granteeName, user.get_Name(), user.get_Email(),
-          user.get_DistinguishedName())) {
+      if (user.matchesUser(granteeName)) {
         LOGGER.log(Level.FINER,
-            "Authorization [{0}]: [{1}] grantee matches with search user [{2}]",
-            new Object[] {accessType, granteeName, user.get_Name()});
+            "Authorization: [{0}] grantee matches with search user [{1}]",
+            new Object[] {granteeName, user.getName()});
         return true;
       }
-    } else if (perm.get_GranteeType() == SecurityPrincipalType.GROUP) {
-      if (granteeName.equalsIgnoreCase(AUTHENTICATED_USERS)) {
-        // #AUTHENTICATED-USERS is a logical group in
-        // FileNet P8
-        // Systems, which gets automatically
-        // created at the time of FileNet installation. This
-        // group contains all the FileNet users.
-        // This group cannot be edited by admin i.e. it is
-        // not
-        // possible to delete the user from
-        // this group. Thus every FileNet user is a part of
-        // #AUTHENTICATED-USERS group. This is the
-        // reason to authenticate a user for a document, if
-        // that
-        // document contains #AUTHENTICATED-USERS
-        // group in its ACL or ACE.
-        LOGGER.log(Level.FINER, "Authorization [{0}]: [{1}] user matches {2}",
-            new Object[] {accessType, user.get_Name(), AUTHENTICATED_USERS});
+    } else if (granteeType == SecurityPrincipalType.GROUP) {
+      // #AUTHENTICATED-USERS is a logical group in FileNet P8 Systems,
+      // which contains all the FileNet users, and it is included in the
+      // groups of every user profile.
+      if (user.matchesGroup(granteeName)) {
+        LOGGER.log(Level.FINER,
+            "Authorization: [{0}] user is a member of group {1}",
+            new Object[] {user.getName(), granteeName});
         return true;
       }
+    }
+    return false;
+  }
 
-      Iterator<?> iter = user.get_MemberOfGroups().iterator();
+  /**
+   * The grantees that allow or deny view access, compiled from the
+   * Access Control Entries so that a user is authorized with a few set
+   * lookups. An entry that denies either view right, or allows both of
+   * them, is kept. The names are case-folded, as in {@link UserProfile},
+   * and #CREATOR-OWNER is replaced by the owner, if there is one.
+   * <p>
+   * This class is immutable.
+   */
+  private static final class CompiledAcl {
+    private final Set<String> allowUsers;
+    private final Set<String> allowGroups;
+    private final Set<String> denyUsers;
+    private final Set<String> denyGroups;
+
+    /** Whether #AUTHENTICATED-USERS, and so every user, is allowed. */
+    private final boolean allowAuthenticatedUsers;
+
+    /** Whether #AUTHENTICATED-USERS, and so every user, is denied. */
+    private final boolean denyAuthenticatedUsers;
+
+    CompiledAcl(AccessPermissionList perms, String owner) {
+      ImmutableSet.Builder<String> allowUsers = ImmutableSet.builder();
+      ImmutableSet.Builder<String> allowGroups = ImmutableSet.builder();
+      ImmutableSet.Builder<String> denyUsers = ImmutableSet.builder();
+      ImmutableSet.Builder<String> denyGroups = ImmutableSet.builder();
+      Iterator<?> iter = perms.iterator();
       while (iter.hasNext()) {
-        Group group = (Group) iter.next();
-        if (matchesAnyString(granteeName, group.get_Name(),
-            group.get_DistinguishedName(), group.get_DisplayName())) {
-          LOGGER.log(Level.FINER,
-              "Authorization [{0}]: [{1}] user is a member of group {2}",
-              new Object[] {accessType, user.get_Name(), granteeName});
-          return true;
+        try {
+          AccessPermission perm = (AccessPermission) iter.next();
+          int accessMask = perm.get_AccessMask();
+          boolean isDeny = AccessType.DENY.equals(perm.get_AccessType());
+          if (isDeny) {
+            // Denying either right denies view access.
+            if ((VIEW_ACCESS_RIGHTS & accessMask) == 0) {
+              continue;
+            }
+          } else {
+            // Allowing view access requires both rights.
+            if ((VIEW_ACCESS_RIGHTS & accessMask) != VIEW_ACCESS_RIGHTS) {
+              continue;
+            }
+          }
+          String granteeName = perm.get_GranteeName();
+          SecurityPrincipalType granteeType = perm.get_GranteeType();
+          if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.log(Level.FINER,
+                "Grantee Name: [{0}], type: {1}, access type: {2}",
+                new Object[] {granteeName, granteeType, perm.get_AccessType()});
+          }
+          if (granteeName == null) {
+            continue;
+          }
+          if (granteeType == SecurityPrincipalType.USER) {
+            if (granteeName.equalsIgnoreCase(CREATOR_OWNER)) {
+              if (owner == null) {
+                continue;
+              }
+              granteeName = owner;
+            }
+            (isDeny ? denyUsers : allowUsers).add(
+                UserProfile.fold(granteeName));
+          } else if (granteeType == SecurityPrincipalType.GROUP) {
+            (isDeny ? denyGroups : allowGroups).add(
+                UserProfile.fold(granteeName));
+          }
+        } catch (Exception ecp) {
+          LOGGER.log(Level.WARNING,
+              "Exception occured in authorizing user against permissions. "
+              + ecp.getMessage(), ecp);
         }
       }
+      this.allowUsers = allowUsers.build();
+      this.allowGroups = allowGroups.build();
+      this.denyUsers = denyUsers.build();
+      this.denyGroups = denyGroups.build();
+
+      String authenticatedUsers = UserProfile.fold(AUTHENTICATED_USERS);
+      this.allowAuthenticatedUsers =
+          this.allowGroups.contains(authenticatedUsers);
+      this.denyAuthenticatedUsers =
+          this.denyGroups.contains(authenticatedUsers);
+    }
+
+    /** Denies the user if any entry denies it, or else checks for allow. */
+    boolean authorize(UserProfile user) {
+      if (denyAuthenticatedUsers || user.matchesAnyUser(denyUsers)
+          || user.matchesAnyGroup(denyGroups)) {
+        LOGGER.log(Level.FINEST, "Access is denied for user {0}",
+            user.getName());
+        return false;
+      }
+      return allowAuthenticatedUsers || user.matchesAnyUser(allowUsers)
+          || user.matchesAnyGroup(allowGroups);
     }
-    return false;
   }
 
   public Permissions.Acl getAcl() {
-    return new Acl();
+    return new Acl(perms);
   }
 
-  public class Acl {
-    private final SetMultimap<PermissionSource, String> allowUsers;
-    private final SetMultimap<PermissionSource, String> allowGroups;
-    private final SetMultimap<PermissionSource, String> denyUsers;
-    private final SetMultimap<PermissionSource, String> denyGroups;
-
-    private Acl() {
-      this.allowUsers = HashMultimap.create();
-      this.allowGroups = HashMultimap.create();
-      this.denyUsers = HashMultimap.create();
-      this.denyGroups = HashMultimap.create();
-      processPermissions();
-    }
-
-    private void processPermissions() {
+  /**
+   * The grantees with view access, by access type, principal type, and
+   * permission source. The grantees are read in one pass over the
+   * permissions, and stored in a single array grouped by access type,
+   * principal type, and permission source. The sets returned by the
+   * getters are immutable views of ranges of that array.
+   */
+  public static class Acl {
+    /** Shares the grantee names across documents. */
+    private static final Interner<String> GRANTEES =
+        Interners.newWeakInterner();
+
+    /**
+     * The permission sources with their own index. Any other source
+     * uses the index following these.
+     */
+    private static final PermissionSource[] SOURCES = {
+      PermissionSource.SOURCE_DIRECT,
+      PermissionSource.SOURCE_DEFAULT,
+      PermissionSource.SOURCE_TEMPLATE,
+      PermissionSource.SOURCE_PARENT
+    };
+    private static final int SOURCE_COUNT = SOURCES.length + 1;
+
+    private static final int ALLOW_USERS = 0;
+    private static final int ALLOW_GROUPS = 1;
+    private static final int DENY_USERS = 2;
+    private static final int DENY_GROUPS = 3;
+    private static final int KIND_COUNT = 4;
+
+    /** The grantees, sorted and distinct within each range. */
+    private final String[] grantees;
+
+    /**
+     * The start of the range for each kind and source, indexed by
+     * {@code kind * SOURCE_COUNT + source}, followed by the end of
+     * the last range.
+     */
+    private final int[] offsets;
+
+    /** The distinct grantees of each kind, from all sources. */
+    private final String[][] allGrantees;
+
+    private Acl(AccessPermissionList perms) {
+      int[] keys = new int[16];
+      String[] names = new String[16];
+      int size = 0;
       Iterator<?> iter = perms.iterator();
       while (iter.hasNext()) {
         AccessPermission perm = (AccessPermission) iter.next();
@@ -291,53 +399,170 @@ public class Permissions {
         if ((mask & VIEW_ACCESS_RIGHTS) != VIEW_ACCESS_RIGHTS) {
           continue;
         }
+        int kind;
         if (perm.get_AccessType() == AccessType.ALLOW) {
-          if (perm.get_GranteeType() == SecurityPrincipalType.USER) {
-            allowUsers.put(perm.get_PermissionSource(), perm.get_GranteeName());
-          } else {
-            allowGroups.put(perm.get_PermissionSource(),
-                perm.get_GranteeName());
-          }
+          kind = (perm.get_GranteeType() == SecurityPrincipalType.USER)
+              ? ALLOW_USERS : ALLOW_GROUPS;
         } else {
-          if (perm.get_GranteeType() == SecurityPrincipalType.USER) {
-            denyUsers.put(perm.get_PermissionSource(), perm.get_GranteeName());
-          } else {
-            denyGroups.put(perm.get_PermissionSource(), perm.get_GranteeName());
-          }
+          kind = (perm.get_GranteeType() == SecurityPrincipalType.USER)
+              ? DENY_USERS : DENY_GROUPS;
+        }
+        int source = getSourceIndex(perm.get_PermissionSource());
+        String name = perm.get_GranteeName();
+        if (name == null) {
+          continue;
+        }
+        if (size == keys.length) {
+          keys = Arrays.copyOf(keys, 2 * size);
+          names = Arrays.copyOf(names, 2 * size);
+        }
+        keys[size] = kind * SOURCE_COUNT + source;
+        names[size] = GRANTEES.intern(name);
+        size++;
+      }
+
+      // Group the grantees by kind and source with a counting sort.
+      int[] starts = new int[KIND_COUNT * SOURCE_COUNT + 1];
+      for (int i = 0; i < size; i++) {
+        starts[keys[i] + 1]++;
+      }
+      for (int key = 1; key < starts.length; key++) {
+        starts[key] += starts[key - 1];
+      }
+      String[] grouped = new String[size];
+      int[] next = Arrays.copyOf(starts, starts.length - 1);
+      for (int i = 0; i < size; i++) {
+        grouped[next[keys[i]]++] = names[i];
+      }
+
+      // Sort each range and remove the duplicates, in place.
+      int end = 0;
+      for (int key = 0; key < starts.length - 1; key++) {
+        int from = starts[key];
+        int to = starts[key + 1];
+        starts[key] = end;
+        end = sortDistinct(grouped, from, to, end);
+      }
+      starts[starts.length - 1] = end;
+
+      this.grantees = (end == size) ? grouped : Arrays.copyOf(grouped, end);
+      this.offsets = starts;
+      this.allGrantees = new String[KIND_COUNT][];
+      for (int kind = 0; kind < KIND_COUNT; kind++) {
+        int from = offsets[kind * SOURCE_COUNT];
+        int to = offsets[(kind + 1) * SOURCE_COUNT];
+        String[] all = Arrays.copyOfRange(grantees, from, to);
+        allGrantees[kind] =
+            Arrays.copyOf(all, sortDistinct(all, 0, all.length, 0));
+      }
+    }
+
+    private static int getSourceIndex(PermissionSource permSrc) {
+      for (int i = 0; i < SOURCES.length; i++) {
+        if (SOURCES[i].equals(permSrc)) {
+          return i;
+        }
+      }
+      return SOURCES.length;
+    }
+
+    /**
+     * Sorts the given range of the array, and moves the distinct
+     * elements to the array starting at {@code dest}, which must not
+     * be greater than {@code from}.
+     *
+     * @return the end of the distinct elements
+     */
+    private static int sortDistinct(String[] array, int from, int to,
+        int dest) {
+      Arrays.sort(array, from, to);
+      String previous = null;
+      for (int i = from; i < to; i++) {
+        if (!array[i].equals(previous)) {
+          previous = array[i];
+          array[dest++] = previous;
         }
       }
+      return dest;
+    }
+
+    private Set<String> getGrantees(int kind) {
+      return GranteeSet.of(allGrantees[kind], 0, allGrantees[kind].length);
+    }
+
+    private Set<String> getGrantees(int kind, PermissionSource permSrc) {
+      int key = kind * SOURCE_COUNT + getSourceIndex(permSrc);
+      return GranteeSet.of(grantees, offsets[key], offsets[key + 1]);
     }
 
     public Set<String> getAllowUsers() {
-      return new HashSet<String>(allowUsers.values());
+      return getGrantees(ALLOW_USERS);
     }
 
     public Set<String> getAllowUsers(PermissionSource permSrc) {
-      return allowUsers.get(permSrc);
+      return getGrantees(ALLOW_USERS, permSrc);
     }
 
     public Set<String> getAllowGroups() {
-      return new HashSet<String>(allowGroups.values());
+      return getGrantees(ALLOW_GROUPS);
     }
 
     public Set<String> getAllowGroups(PermissionSource permSrc) {
-      return allowGroups.get(permSrc);
+      return getGrantees(ALLOW_GROUPS, permSrc);
     }
 
     public Set<String> getDenyUsers() {
-      return new HashSet<String>(denyUsers.values());
+      return getGrantees(DENY_USERS);
     }
 
     public Set<String> getDenyUsers(PermissionSource permSrc) {
-      return denyUsers.get(permSrc);
+      return getGrantees(DENY_USERS, permSrc);
     }
 
     public Set<String> getDenyGroups() {
-      return new HashSet<String>(denyGroups.values());
+      return getGrantees(DENY_GROUPS);
     }
 
     public Set<String> getDenyGroups(PermissionSource permSrc) {
-      return denyGroups.get(permSrc);
+      return getGrantees(DENY_GROUPS, permSrc);
+    }
+  }
+
+  /** An immutable view of a sorted, distinct range of an array. */
+  private static class GranteeSet extends AbstractSet<String> {
+    private final String[] array;
+    private final int from;
+    private final int to;
+
+    static Set<String> of(String[] array, int from, int to) {
+      if (from == to) {
+        return Collections.emptySet();
+      } else {
+        return new GranteeSet(array, from, to);
+      }
+    }
+
+    private GranteeSet(String[] array, int from, int to) {
+      this.array = array;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return Collections.unmodifiableList(
+          Arrays.asList(array).subList(from, to)).iterator();
+    }
+
+    @Override
+    public int size() {
+      return to - from;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return (o instanceof String)
+          && Arrays.binarySearch(array, from, to, o) >= 0;
     }
   }
 }
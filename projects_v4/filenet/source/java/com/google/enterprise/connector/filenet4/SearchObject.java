@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.filenet4;
 
+import com.google.enterprise.connector.filenet4.api.IDocument;
+
 import com.filenet.api.constants.DatabaseType;
 import com.filenet.api.constants.VersionStatus;
 import com.filenet.api.core.Document;
@@ -46,6 +48,15 @@ class SearchObject implements Comparable<SearchObject> {
   private final DatabaseType databaseType;
   private final Type type;
 
+  /** The prefetched document, or {@code null} if it has not been fetched. */
+  private IDocument document;
+
+  /**
+   * Whether a deletion event is for a released version, or {@code null}
+   * if the version series has not been looked up.
+   */
+  private Boolean releasedVersion;
+
   public SearchObject(IndependentObject object, DatabaseType databaseType,
       Type type) {
     this.object = object;
@@ -66,8 +77,26 @@ class SearchObject implements Comparable<SearchObject> {
     return type;
   }
 
+  public IDocument getDocument() {
+    return document;
+  }
+
+  public void setDocument(IDocument document) {
+    this.document = document;
+  }
+
+  /**
+   * Sets whether a deletion event is for a released version, when the
+   * version series has already been looked up.
+   */
+  public void setReleasedVersion(boolean releasedVersion) {
+    this.releasedVersion = releasedVersion;
+  }
+
   public boolean isReleasedVersion() {
-    if (object instanceof DeletionEvent) {
+    if (releasedVersion != null) {
+      return releasedVersion;
+    } else if (object instanceof DeletionEvent) {
       // Lookup VersionSeries of the deleted document.  If an exception is
       // thrown, the deleted document is the last document in the series;
       // therefore, we'll send the deletion request to the GSA; otherwise, we
@@ -14,7 +14,11 @@
 
 package com.google.enterprise.connector.filenet4;
 
-import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.connector.filenet4.Checkpoint.JsonField;
 import com.google.enterprise.connector.filenet4.api.IConnection;
 import com.google.enterprise.connector.filenet4.api.IObjectFactory;
@@ -27,54 +31,115 @@ import com.google.enterprise.connector.spi.SpiConstants.AclInheritanceType;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.Value;
 
-import com.filenet.api.collection.DocumentSet;
-import com.filenet.api.collection.FolderSet;
 import com.filenet.api.collection.IndependentObjectSet;
 import com.filenet.api.constants.GuidConstants;
 import com.filenet.api.constants.PermissionSource;
 import com.filenet.api.constants.PropertyNames;
 import com.filenet.api.core.Folder;
 import com.filenet.api.exception.EngineRuntimeException;
+import com.filenet.api.property.FilterElement;
+import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.util.Id;
+import com.filenet.api.util.UserContext;
 
-import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.security.auth.Subject;
+
 class SecurityFolderTraverser implements Traverser {
   private static final Logger LOGGER =
       Logger.getLogger(SecurityFolderTraverser.class.getName());
 
-  private static final String FOLDER_QUERY_WITH_UUID =
-      "SELECT TOP {0,number,#} * FROM '" + GuidConstants.Class_Folder
-      + "' WHERE ((" + PropertyNames.DATE_LAST_MODIFIED + " = {1}) AND ("
-      + PropertyNames.ID + " > {2})) OR ("
-      + PropertyNames.DATE_LAST_MODIFIED + " > {1}) ORDER BY "
-      + PropertyNames.DATE_LAST_MODIFIED + "," + PropertyNames.ID;
+  /**
+   * The folder properties used by the traverser. The subfolders and
+   * contained documents are returned as unevaluated collections, which
+   * are fetched when they are iterated.
+   */
+  private static final String FOLDER_PROPERTIES = PropertyNames.ID + ","
+      + PropertyNames.DATE_LAST_MODIFIED + "," + PropertyNames.FOLDER_NAME
+      + "," + PropertyNames.SUB_FOLDERS + ","
+      + PropertyNames.CONTAINED_DOCUMENTS;
+
+  private static final KeysetQuery FOLDER_QUERY = new KeysetQuery(
+      FOLDER_PROPERTIES, "'" + GuidConstants.Class_Folder + "'", "",
+      " WHERE ((" + PropertyNames.DATE_LAST_MODIFIED + " = {0}) AND ("
+      + PropertyNames.ID + " > {1})) OR ("
+      + PropertyNames.DATE_LAST_MODIFIED + " > {0})",
+      " WHERE " + PropertyNames.DATE_LAST_MODIFIED + " > {0}",
+      " ORDER BY " + PropertyNames.DATE_LAST_MODIFIED + "," + PropertyNames.ID);
+
+  private static final PropertyFilter FOLDER_FILTER = new PropertyFilter();
 
-  private static final String FOLDER_QUERY_WITHOUT_UUID =
-      "SELECT TOP {0,number,#} * FROM '" + GuidConstants.Class_Folder
-      + "' WHERE " + PropertyNames.DATE_LAST_MODIFIED + " > {1} ORDER BY "
-      + PropertyNames.DATE_LAST_MODIFIED + "," + PropertyNames.ID;
+  static {
+    FOLDER_FILTER.setMaxRecursion(0);
+    FOLDER_FILTER.addIncludeProperty(new FilterElement(0, null, null,
+        FOLDER_PROPERTIES.replace(',', ' '), null));
+  }
+
+  private static final String FOLDER_DOCUMENT_PROPERTIES =
+      PropertyNames.ID + "," + PropertyNames.PERMISSIONS;
+
+  private static final String FOLDER_DOCUMENT_QUERY_PREFIX = "SELECT "
+      + FOLDER_DOCUMENT_PROPERTIES + " FROM '" + GuidConstants.Class_Document
+      + "' WHERE This INSUBFOLDER '";
+
+  /**
+   * Filters the documents found by subtree searches to their IDs and
+   * permissions. The permissions are dependent objects, which do not
+   * count as a level of recursion.
+   */
+  private static final PropertyFilter FOLDER_DOCUMENT_FILTER =
+      new PropertyFilter();
+
+  static {
+    FOLDER_DOCUMENT_FILTER.setMaxRecursion(0);
+    FOLDER_DOCUMENT_FILTER.addIncludeProperty(new FilterElement(0, null,
+        Boolean.FALSE, FOLDER_DOCUMENT_PROPERTIES.replace(',', ' '), null));
+  }
 
   private final IConnection connection;
   private final IObjectFactory objectFactory;
   private final IObjectStore os;
   private final FileConnector connector;
+  private final AuthorizationCache authorizations;
 
   private int batchHint = 1000;
+  private ExecutorService folderThreadPool;
 
   public SecurityFolderTraverser(IConnection connection,
       IObjectFactory objectFactory, IObjectStore os,
       FileConnector connector) {
+    this(connection, objectFactory, os, connector,
+        AuthorizationCache.DISABLED);
+  }
+
+  /**
+   * @param authorizations the cached authorization decisions of the
+   *     session, which are invalidated when a folder changes
+   */
+  SecurityFolderTraverser(IConnection connection,
+      IObjectFactory objectFactory, IObjectStore os,
+      FileConnector connector, AuthorizationCache authorizations) {
     this.connection = connection;
     this.objectFactory = objectFactory;
     this.os = os;
     this.connector = connector;
+    this.authorizations = authorizations;
   }
 
   @Override
@@ -91,18 +156,53 @@ class SecurityFolderTraverser implements Traverser {
       throws RepositoryException {
     LOGGER.fine("Searching for documents in updated folders");
     connection.refreshSUserContext();
+    String lastModified = getLastModified(checkpoint);
     try {
-      LinkedList<AclDocument> acls = searchDocs(checkpoint);
-      if (acls.size() > 0) {
-        return new SecurityFolderDocumentList(acls, checkpoint);
+      SearchWrapper searcher = objectFactory.getSearch(os);
+      IndependentObjectSet folderSet = searcher.fetchObjects(
+          getQuery(checkpoint, lastModified), batchHint, FOLDER_FILTER,
+          SearchWrapper.ALL_ROWS);
+      Walker walker;
+      if (connector.folderQueries()) {
+        walker = new QueryWalker(folderSet.iterator(), checkpoint, searcher,
+            batchHint);
       } else {
+        int folderThreads = connector.getFolderThreads();
+        FolderReader reader = (folderThreads > 0)
+            ? new FolderReader(connection.getSubject(),
+                getFolderThreadPool(folderThreads), folderThreads)
+            : null;
+        walker = new FolderWalker(folderSet.iterator(), checkpoint, reader);
+      }
+      SecurityFolderDocumentList docList = new SecurityFolderDocumentList(
+          walker, checkpoint, lastModified, batchHint);
+      if (docList.isEmpty()) {
         return null;
+      } else {
+        // The inherited permissions of any document may have changed.
+        authorizations.invalidateAll();
+        return docList;
       }
     } catch (EngineRuntimeException e) {
       throw new RepositoryException(e);
     }
   }
 
+  private synchronized ExecutorService getFolderThreadPool(
+      int folderThreads) {
+    if (folderThreadPool == null) {
+      // Idle threads time out, so the executor is never shut down.
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(folderThreads,
+          folderThreads, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("SecurityFolderTraverser-folder-%d").build());
+      executor.allowCoreThreadTimeOut(true);
+      folderThreadPool = executor;
+    }
+    return folderThreadPool;
+  }
+
   private String getCheckpointValue(Checkpoint checkpoint,
       JsonField field) {
     try {
@@ -114,87 +214,40 @@ class SecurityFolderTraverser implements Traverser {
     }
   }
 
-  private LinkedList<AclDocument> searchDocs(Checkpoint checkpoint)
-      throws RepositoryException {
-    LinkedList<AclDocument> aclDocs = new LinkedList<AclDocument>();
-    SearchWrapper searcher = objectFactory.getSearch(os);
-    IndependentObjectSet folderSet = searcher.fetchObjects(
-        getQuery(checkpoint), batchHint, SearchWrapper.noFilter,
-        SearchWrapper.ALL_ROWS);
-    Iterator<?> folderIter = folderSet.iterator();
-    while (folderIter.hasNext()) {
-      Folder folder = (Folder) folderIter.next();
-      addAllDescendantDocumentAcls(aclDocs, folder,
-          folder.get_DateLastModified(), folder.get_Id());
-    }
-    return aclDocs;
-  }
-
   /**
-   * Recursively adds an AclDocument for each descendant Document of the
-   * Folder to the list.
+   * Creates an AclDocument for a Document in an updated folder.
    *
    * Changing the ACL on a folder changes the ACL on all its descendant
    * subfolders, yet the last modified time of those subfolders does not
    * get updated, so they don't show up in the query of modified folders.
-   * Therefore the SecurityFolderTraverser must recursively update the
-   * ACLs for all descendant subfolders. However, the connector does not
-   * send folder ACLs to the GSA. It sends a copy of them with the docs
-   * that inherit from those security folders. Therefore, we resend ACLs
-   * for all documents who directly or indirectly inherit from the original
+   * Therefore the SecurityFolderTraverser must update the ACLs for all
+   * descendant subfolders. However, the connector does not send folder
+   * ACLs to the GSA. It sends a copy of them with the docs that inherit
+   * from those security folders. Therefore, we resend ACLs for all
+   * documents who directly or indirectly inherit from the original
    * folder whose ACL changed.
    */
-  private void addAllDescendantDocumentAcls(LinkedList<AclDocument> aclDocs,
-      Folder folder, Date checkpointDate, Id checkpointId)
-      throws RepositoryException {
-    // First update the ACLs for all documents in this folder.
-    DocumentSet docSet = folder.get_ContainedDocuments();
-    int count = 0;
-    Iterator<?> docIter = docSet.iterator();
-    while (docIter.hasNext()) {
-      // Document collides with the SPI class of the same name.
-      com.filenet.api.core.Document doc =
-          (com.filenet.api.core.Document) docIter.next();
-      count++;
-      Permissions.Acl permissions =
-          new Permissions(doc.get_Permissions()).getAcl();
-      AclDocument aclDoc = new AclDocument(
-          doc.get_Id().toString() + AclDocument.SEC_FOLDER_POSTFIX, null,
-          AclInheritanceType.CHILD_OVERRIDES,
-          connector.getGoogleGlobalNamespace(),
-          permissions.getAllowUsers(PermissionSource.SOURCE_PARENT),
-          permissions.getDenyUsers(PermissionSource.SOURCE_PARENT),
-          permissions.getAllowGroups(PermissionSource.SOURCE_PARENT),
-          permissions.getDenyGroups(PermissionSource.SOURCE_PARENT));
-      aclDoc.setCheckpointLastModified(checkpointDate);
-      aclDoc.setCheckpointLastUuid(checkpointId);
-      aclDocs.add(aclDoc);
-    }
-    LOGGER.log(Level.FINEST, "Found {0} documents under {1} folder [{2}]",
-        new Object[] {count, folder.get_FolderName(), folder.get_Id()});
-
-    // Now do the same for documents in all descendant folders.
-    FolderSet folderSet = folder.get_SubFolders();
-    Iterator<?> folderIter = folderSet.iterator();
-    while (folderIter.hasNext()) {
-      addAllDescendantDocumentAcls(aclDocs, (Folder) folderIter.next(),
-          checkpointDate, checkpointId);
-    }
-  }
-
-  private String getQuery(Checkpoint checkpoint) {
-    String checkpointTime = getLastModified(checkpoint);
-    String timeStr = FileUtil.getQueryTimeString(checkpointTime);
+  private AclDocument newAclDocument(com.filenet.api.core.Document doc,
+      AclInterner aclInterner) throws RepositoryException {
+    Permissions.Acl permissions =
+        new Permissions(doc.get_Permissions()).getAcl();
+    return new AclDocument(
+        doc.get_Id().toString() + AclDocument.SEC_FOLDER_POSTFIX, null,
+        AclInheritanceType.CHILD_OVERRIDES,
+        aclInterner.intern(connector.getGoogleGlobalNamespace(),
+            permissions.getAllowUsers(PermissionSource.SOURCE_PARENT),
+            permissions.getDenyUsers(PermissionSource.SOURCE_PARENT),
+            permissions.getAllowGroups(PermissionSource.SOURCE_PARENT),
+            permissions.getDenyGroups(PermissionSource.SOURCE_PARENT)));
+  }
+
+  private String getQuery(Checkpoint checkpoint, String lastModified) {
+    String timeStr = FileUtil.getQueryTimeString(lastModified);
     String checkpointUuid =
         getCheckpointValue(checkpoint, JsonField.UUID_FOLDER);
 
-    if (Strings.isNullOrEmpty(checkpointUuid)) {
-      return MessageFormat.format(FOLDER_QUERY_WITHOUT_UUID,
-          new Object[] {batchHint, timeStr});
-    } else {
-      return MessageFormat.format(FOLDER_QUERY_WITH_UUID,
-          new Object[] {batchHint, timeStr, checkpointUuid});
-    }
+    return FOLDER_QUERY.build(batchHint, "",
+        FOLDER_QUERY.getKeysetClause(timeStr, checkpointUuid));
   }
 
   private String getLastModified(Checkpoint checkpoint) {
@@ -219,35 +272,538 @@ class SecurityFolderTraverser implements Traverser {
     return lastModified;
   }
 
-  private static class SecurityFolderDocumentList implements DocumentList {
-    private final LinkedList<AclDocument> acls;
+  /** A document found by the walk, and the position of the walk. */
+  private static class FolderEntry {
+    public final com.filenet.api.core.Document document;
+    public final Date rootLastModified;
+    public final Id rootId;
+
+    /**
+     * The last top-level folder completely walked before this one, or
+     * {@code null} if there is none in this batch.
+     */
+    public final Date previousLastModified;
+    public final Id previousId;
+
+    /** The IDs of the folders from the top-level folder down. */
+    public final String path;
+
+    public FolderEntry(com.filenet.api.core.Document document,
+        Date rootLastModified, Id rootId, Date previousLastModified,
+        Id previousId, String path) {
+      this.document = document;
+      this.rootLastModified = rootLastModified;
+      this.rootId = rootId;
+      this.previousLastModified = previousLastModified;
+      this.previousId = previousId;
+      this.path = path;
+    }
+  }
+
+  /** Finds the documents under the updated folders. */
+  private interface Walker {
+    /** Gets the next document, or {@code null} if there are no more. */
+    FolderEntry next() throws RepositoryException;
+  }
+
+  /**
+   * Finds the documents under each updated folder with a paged search
+   * of the folder subtree, ordered by ID. A search interrupted in the
+   * middle of a subtree is resumed after the last document ID saved in
+   * the checkpoint.
+   */
+  private static class QueryWalker implements Walker {
+    private final Iterator<?> folders;
+    private final SearchWrapper searcher;
+    private final int pageSize;
+
+    /** The saved top-level folder ID, or {@code null}. */
+    private final String resumeFolder;
+    private final String resumeDocument;
+
+    /** The documents in the current subtree, or {@code null}. */
+    private Iterator<?> documents;
+    private int count;
+
+    private Date rootLastModified;
+    private Id rootId;
+    private Date previousLastModified;
+    private Id previousId;
+
+    public QueryWalker(Iterator<?> folders, Checkpoint checkpoint,
+        SearchWrapper searcher, int pageSize) throws RepositoryException {
+      this.folders = folders;
+      this.searcher = searcher;
+      this.pageSize = pageSize;
+      if (checkpoint.isNull(JsonField.FOLDER_PATH)
+          || checkpoint.isNull(JsonField.UUID_FOLDER_DOCUMENT)) {
+        this.resumeFolder = null;
+        this.resumeDocument = null;
+      } else {
+        // Only the top-level folder in the saved path is used.
+        this.resumeFolder =
+            checkpoint.getString(JsonField.FOLDER_PATH).split(",")[0];
+        this.resumeDocument =
+            checkpoint.getString(JsonField.UUID_FOLDER_DOCUMENT);
+      }
+    }
+
+    @Override
+    public FolderEntry next() {
+      while (true) {
+        if (documents == null) {
+          if (!folders.hasNext()) {
+            return null;
+          }
+          startRoot((Folder) folders.next());
+        }
+        if (documents.hasNext()) {
+          count++;
+          return new FolderEntry(
+              (com.filenet.api.core.Document) documents.next(),
+              rootLastModified, rootId, previousLastModified, previousId,
+              rootId.toString());
+        }
+
+        LOGGER.log(Level.FINEST, "Found {0} documents under folder [{1}]",
+            new Object[] {count, rootId});
+        previousLastModified = rootLastModified;
+        previousId = rootId;
+        documents = null;
+      }
+    }
+
+    private void startRoot(Folder root) {
+      rootLastModified = root.get_DateLastModified();
+      rootId = root.get_Id();
+      count = 0;
+
+      // Only the first folder can match the saved folder.
+      String query = FOLDER_DOCUMENT_QUERY_PREFIX + rootId + "'";
+      if (previousId == null && rootId.toString().equals(resumeFolder)) {
+        LOGGER.log(Level.FINEST, "Resuming search of folder {0} at {1}",
+            new Object[] {rootId, resumeDocument});
+        query += " AND " + PropertyNames.ID + " > " + resumeDocument;
+      }
+      query += " ORDER BY " + PropertyNames.ID;
+      documents = searcher.fetchObjects(query, pageSize,
+          FOLDER_DOCUMENT_FILTER, SearchWrapper.ALL_ROWS).iterator();
+    }
+  }
+
+  /**
+   * Orders the contained documents and subfolders of a folder by ID.
+   * FileNet does not guarantee the order of these collections, and the
+   * walk is resumed by skipping the objects before the saved IDs.
+   */
+  private static final Ordering<Object> ID_ORDER = new Ordering<Object>() {
+      @Override
+      public int compare(Object left, Object right) {
+        return getId(left).compareTo(getId(right));
+      }
+    };
+
+  /** Gets the ID of a contained document or subfolder. */
+  private static String getId(Object object) {
+    if (object instanceof Folder) {
+      return ((Folder) object).get_Id().toString();
+    } else {
+      return ((com.filenet.api.core.Document) object).get_Id().toString();
+    }
+  }
+
+  /** Reads the objects from a folder collection, sorted by ID. */
+  private static List<Object> sortById(Iterator<?> objects) {
+    return ID_ORDER.immutableSortedCopy(ImmutableList.<Object>copyOf(objects));
+  }
+
+  /** The documents and subfolders of a folder, sorted by ID. */
+  private static class FolderContents {
+    public final List<Object> documents;
+    public final List<Object> subfolders;
+
+    public FolderContents(List<Object> documents, List<Object> subfolders) {
+      this.documents = documents;
+      this.subfolders = subfolders;
+    }
+  }
+
+  /**
+   * Reads the contents of folders on a thread pool. The walker keeps up
+   * to {@code window} sibling folders being read ahead of it, and
+   * consumes them in order, so the documents are returned in the same
+   * order as a sequential walk.
+   */
+  private static class FolderReader {
+    private final Subject subject;
+    private final ExecutorService executor;
+    public final int window;
+
+    public FolderReader(Subject subject, ExecutorService executor,
+        int window) {
+      this.subject = subject;
+      this.executor = executor;
+      this.window = window;
+    }
+
+    public Future<FolderContents> submit(final Folder folder) {
+      return executor.submit(new Callable<FolderContents>() {
+          @Override
+          public FolderContents call() {
+            // The UserContext is thread-local, so each task pushes the
+            // Subject.
+            UserContext.get().pushSubject(subject);
+            try {
+              return new FolderContents(
+                  sortById(folder.get_ContainedDocuments().iterator()),
+                  sortById(folder.get_SubFolders().iterator()));
+            } finally {
+              UserContext.get().popSubject();
+            }
+          }
+        });
+    }
+  }
+
+  /** A folder on the walk stack. */
+  private static class Frame {
+    public final Folder folder;
+    public final String id;
+
+    /** The contents being read ahead, or {@code null} if not reading. */
+    public final Future<FolderContents> contents;
+
+    /** The subfolders being read ahead, in order. */
+    public final LinkedList<Frame> pending = new LinkedList<Frame>();
+
+    /** The contained documents, or {@code null} if not yet started. */
+    public Iterator<Object> documents;
+
+    /** The subfolders, or {@code null} if not yet started. */
+    public Iterator<Object> subfolders;
+
+    /** When resuming, the last document returned from this folder. */
+    public String skipDocument;
+
+    /** When resuming, the subfolder that was being walked. */
+    public String skipFolder;
+
+    public int count = 0;
+
+    public Frame(Folder folder, Future<FolderContents> contents) {
+      this.folder = folder;
+      this.id = folder.get_Id().toString();
+      this.contents = contents;
+    }
+
+    /** Gets the contained documents, sorted by ID. */
+    public Iterator<Object> getDocuments() throws RepositoryException {
+      return (contents == null)
+          ? sortById(folder.get_ContainedDocuments().iterator()).iterator()
+          : getContents().documents.iterator();
+    }
+
+    /** Gets the subfolders, sorted by ID. */
+    public Iterator<Object> getSubfolders() throws RepositoryException {
+      return (contents == null)
+          ? sortById(folder.get_SubFolders().iterator()).iterator()
+          : getContents().subfolders.iterator();
+    }
+
+    private FolderContents getContents() throws RepositoryException {
+      try {
+        return contents.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepositoryException("Interrupted while reading folder "
+            + id, e);
+      } catch (ExecutionException e) {
+        // Rethrow EngineRuntimeExceptions as if they were thrown here.
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        } else {
+          throw new RepositoryException(cause);
+        }
+      }
+    }
+  }
+
+  /**
+   * Walks the documents contained in the updated folders and all of
+   * their descendant subfolders, depth first, using an explicit stack.
+   * The documents and subfolders of each folder are walked in order by
+   * ID, so a walk interrupted in the middle of a subtree can be resumed
+   * after the folder path and last document ID saved in the checkpoint.
+   */
+  private static class FolderWalker implements Walker {
+    private final Iterator<?> folders;
+    private final LinkedList<Frame> pendingFolders = new LinkedList<Frame>();
+    private final LinkedList<Frame> stack = new LinkedList<Frame>();
+    private final FolderReader reader;
+
+    /** The saved folder path, or an empty list if not resuming. */
+    private final List<String> resumePath;
+    private final String resumeDocument;
+
+    private Date rootLastModified;
+    private Id rootId;
+    private Date previousLastModified;
+    private Id previousId;
+
+    /**
+     * @param folders the updated folders
+     * @param checkpoint the checkpoint to resume the walk from
+     * @param reader the reader to read folders ahead with, or
+     *     {@code null} to read each folder when it is walked
+     */
+    public FolderWalker(Iterator<?> folders, Checkpoint checkpoint,
+        FolderReader reader) throws RepositoryException {
+      this.folders = folders;
+      this.reader = reader;
+      if (checkpoint.isNull(JsonField.FOLDER_PATH)
+          || checkpoint.isNull(JsonField.UUID_FOLDER_DOCUMENT)) {
+        this.resumePath = Collections.emptyList();
+        this.resumeDocument = null;
+      } else {
+        this.resumePath = Arrays.asList(
+            checkpoint.getString(JsonField.FOLDER_PATH).split(","));
+        this.resumeDocument =
+            checkpoint.getString(JsonField.UUID_FOLDER_DOCUMENT);
+      }
+    }
+
+    @Override
+    public FolderEntry next() throws RepositoryException {
+      while (true) {
+        if (stack.isEmpty()) {
+          Frame root = nextFolder(folders, pendingFolders);
+          if (root == null) {
+            return null;
+          }
+          startRoot(root);
+          continue;
+        }
+
+        Frame frame = stack.getLast();
+        if (frame.documents == null) {
+          frame.documents = frame.getDocuments();
+          if (frame.skipDocument != null) {
+            // The documents up to the saved one were returned, even if
+            // it is gone now.
+            PeekingIterator<Object> documents =
+                skipBefore(frame.documents, frame.skipDocument);
+            if (documents.hasNext()
+                && getId(documents.peek()).equals(frame.skipDocument)) {
+              documents.next();
+            }
+            frame.documents = documents;
+          }
+        }
+        if (frame.documents.hasNext()) {
+          frame.count++;
+          return new FolderEntry(
+              (com.filenet.api.core.Document) frame.documents.next(),
+              rootLastModified, rootId, previousLastModified, previousId,
+              getPath());
+        }
+
+        if (frame.subfolders == null) {
+          LOGGER.log(Level.FINEST,
+              "Found {0} documents under {1} folder [{2}]", new Object[] {
+                frame.count, frame.folder.get_FolderName(), frame.id});
+          frame.subfolders = frame.getSubfolders();
+          if (frame.skipFolder != null) {
+            // The subfolders before the saved one were walked. If it is
+            // gone, the walk continues with the subfolders after it.
+            PeekingIterator<Object> subfolders =
+                skipBefore(frame.subfolders, frame.skipFolder);
+            frame.subfolders = subfolders;
+            if (subfolders.hasNext()
+                && getId(subfolders.peek()).equals(frame.skipFolder)) {
+              push(newFrame((Folder) subfolders.next()), true);
+              continue;
+            }
+          }
+        }
+        Frame subfolder = nextFolder(frame.subfolders, frame.pending);
+        if (subfolder != null) {
+          push(subfolder, false);
+          continue;
+        }
+
+        stack.removeLast();
+        if (stack.isEmpty()) {
+          previousLastModified = rootLastModified;
+          previousId = rootId;
+        }
+      }
+    }
+
+    /**
+     * Gets the next folder from the iterator. When reading ahead, the
+     * next folders are submitted to the reader first.
+     */
+    private Frame nextFolder(Iterator<?> iterator, LinkedList<Frame> pending) {
+      if (reader == null) {
+        return
+            iterator.hasNext() ? newFrame((Folder) iterator.next()) : null;
+      }
+      while (pending.size() < reader.window && iterator.hasNext()) {
+        pending.add(newFrame((Folder) iterator.next()));
+      }
+      return pending.poll();
+    }
+
+    private Frame newFrame(Folder folder) {
+      return new Frame(folder,
+          (reader == null) ? null : reader.submit(folder));
+    }
+
+    private void startRoot(Frame root) {
+      rootLastModified = root.folder.get_DateLastModified();
+      rootId = root.folder.get_Id();
+
+      // Only the first folder can match the saved path. If it does not,
+      // the folder has been modified again, and will be walked again.
+      boolean resume = (previousId == null && !resumePath.isEmpty()
+          && resumePath.get(0).equals(rootId.toString()));
+      if (resume) {
+        LOGGER.log(Level.FINEST, "Resuming walk of folder {0} at {1}",
+            new Object[] {rootId, resumeDocument});
+      }
+      push(root, resume);
+    }
+
+    private void push(Frame frame, boolean resume) {
+      if (resume) {
+        int depth = stack.size();
+        if (depth + 1 < resumePath.size()) {
+          // The documents in this folder were returned before the walk
+          // descended into the saved subfolder.
+          frame.documents = Collections.emptyIterator();
+          frame.skipFolder = resumePath.get(depth + 1);
+        } else {
+          frame.skipDocument = resumeDocument;
+        }
+      }
+      stack.addLast(frame);
+    }
+
+    /**
+     * Advances past the objects, sorted by ID, whose IDs are before the
+     * given ID.
+     */
+    private PeekingIterator<Object> skipBefore(Iterator<Object> objects,
+        String id) {
+      PeekingIterator<Object> iterator = Iterators.peekingIterator(objects);
+      while (iterator.hasNext() && getId(iterator.peek()).compareTo(id) < 0) {
+        iterator.next();
+      }
+      return iterator;
+    }
+
+    private String getPath() {
+      StringBuilder path = new StringBuilder();
+      for (Frame frame : stack) {
+        if (path.length() > 0) {
+          path.append(',');
+        }
+        path.append(frame.id);
+      }
+      return path.toString();
+    }
+  }
+
+  /**
+   * Returns up to batchHint AclDocuments from the walk. The walk reads
+   * one document ahead, to know whether the last document returned
+   * completed its top-level folder. If it did, the checkpoint advances
+   * past that folder; otherwise the checkpoint saves the position
+   * within the folder.
+   */
+  private class SecurityFolderDocumentList implements DocumentList {
+    private final Walker walker;
     private final Checkpoint checkpoint;
+    private final String queryLastModified;
+    private final int batchHint;
 
-    private Date folderLastModified;
-    private Id folderLastUuid;
+    private FolderEntry next;
+    private FolderEntry last;
+    private int count = 0;
+    private int folderCount = 0;
 
-    public SecurityFolderDocumentList(LinkedList<AclDocument> acls, 
-        Checkpoint checkpoint) {
-      this.acls = acls;
+    /** The total number of principals in the returned ACLs. */
+    private long principalCount = 0;
+
+    /** Documents in the same folder usually have the same ACL. */
+    private final AclInterner aclInterner = new AclInterner();
+
+    public SecurityFolderDocumentList(Walker walker,
+        Checkpoint checkpoint, String queryLastModified, int batchHint)
+        throws RepositoryException {
+      this.walker = walker;
       this.checkpoint = checkpoint;
+      this.queryLastModified = queryLastModified;
+      this.batchHint = batchHint;
+      this.next = walker.next();
+    }
+
+    public boolean isEmpty() {
+      return next == null;
     }
 
     @Override
     public Document nextDocument() throws RepositoryException {
-      AclDocument aclDoc = acls.poll();
-      if (aclDoc != null) {
-        folderLastUuid = aclDoc.getCheckpointLastUuid();
-        folderLastModified = aclDoc.getCheckpointLastModified();
-      }      
-      return aclDoc;
+      if (next == null || count >= batchHint) {
+        LOGGER.log(Level.FINE, "Returned {0} documents with {1} distinct "
+            + "ACLs and {2} principals under {3} updated folders",
+            new Object[] {
+                count, aclInterner.size(), principalCount, folderCount});
+        return null;
+      }
+      try {
+        AclDocument aclDoc = newAclDocument(next.document, aclInterner);
+        FolderEntry current = next;
+        next = walker.next();
+        if (last == null || !last.rootId.equals(current.rootId)) {
+          folderCount++;
+        }
+        last = current;
+        count++;
+        principalCount += aclDoc.getPrincipalCount();
+        return aclDoc;
+      } catch (EngineRuntimeException e) {
+        throw new RepositoryException(e);
+      }
     }
 
     @Override
     public String checkpoint() throws RepositoryException {
-      if (folderLastModified != null && folderLastUuid != null) {
+      if (last == null) {
+        return checkpoint.toString();
+      }
+      if (next == null || !next.rootId.equals(last.rootId)) {
+        // The top-level folder has been walked completely.
         checkpoint.setTimeAndUuid(
-            JsonField.LAST_FOLDER_TIME, folderLastModified,
-            JsonField.UUID_FOLDER, folderLastUuid);
+            JsonField.LAST_FOLDER_TIME, last.rootLastModified,
+            JsonField.UUID_FOLDER, last.rootId);
+        checkpoint.setString(JsonField.FOLDER_PATH, null);
+        checkpoint.setString(JsonField.UUID_FOLDER_DOCUMENT, null);
+      } else {
+        // Query from before the folder, so that it is returned again.
+        if (last.previousId != null) {
+          checkpoint.setTimeAndUuid(
+              JsonField.LAST_FOLDER_TIME, last.previousLastModified,
+              JsonField.UUID_FOLDER, last.previousId);
+        } else if (checkpoint.isNull(JsonField.LAST_FOLDER_TIME)) {
+          checkpoint.setString(JsonField.LAST_FOLDER_TIME, queryLastModified);
+        }
+        checkpoint.setString(JsonField.FOLDER_PATH, last.path);
+        checkpoint.setString(JsonField.UUID_FOLDER_DOCUMENT,
+            last.document.get_Id().toString());
       }
       return checkpoint.toString();
     }
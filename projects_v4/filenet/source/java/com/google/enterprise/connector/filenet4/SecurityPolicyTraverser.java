@@ -14,7 +14,6 @@
 
 package com.google.enterprise.connector.filenet4;
 
-import com.google.common.base.Strings;
 import com.google.enterprise.connector.filenet4.Checkpoint.JsonField;
 import com.google.enterprise.connector.filenet4.api.IConnection;
 import com.google.enterprise.connector.filenet4.api.IObjectFactory;
@@ -33,11 +32,12 @@ import com.filenet.api.constants.GuidConstants;
 import com.filenet.api.constants.PropertyNames;
 import com.filenet.api.constants.VersionStatusId;
 import com.filenet.api.exception.EngineRuntimeException;
+import com.filenet.api.property.FilterElement;
+import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.security.SecurityPolicy;
 import com.filenet.api.security.SecurityTemplate;
 import com.filenet.api.util.Id;
 
-import java.text.MessageFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
@@ -53,37 +53,77 @@ class SecurityPolicyTraverser implements Traverser {
   private static final Logger LOGGER =
       Logger.getLogger(SecurityPolicyTraverser.class.getName());
 
-  private static final String SEC_POLICY_QUERY_WITH_UUID =
-      "SELECT TOP {0,number,#} * FROM '" + GuidConstants.Class_SecurityPolicy
-      + "' WHERE ((" + PropertyNames.DATE_LAST_MODIFIED + " = {1}) AND ("
-      + PropertyNames.ID + " > {2})) OR ("
-      + PropertyNames.DATE_LAST_MODIFIED + " > {1}) ORDER BY "
-      + PropertyNames.DATE_LAST_MODIFIED + "," + PropertyNames.ID;
+  /**
+   * The security policy properties used by the traverser. The security
+   * templates and their permissions are dependent objects, which do not
+   * count as a level of recursion.
+   */
+  private static final String SEC_POLICY_PROPERTIES = PropertyNames.ID + ","
+      + PropertyNames.DATE_LAST_MODIFIED + "," + PropertyNames.NAME + ","
+      + PropertyNames.SECURITY_TEMPLATES;
 
-  private static final String SEC_POLICY_QUERY_WITHOUT_UUID =
-      "SELECT TOP {0,number,#} * FROM '" + GuidConstants.Class_SecurityPolicy
-      + "' WHERE " + PropertyNames.DATE_LAST_MODIFIED + " > {1} ORDER BY "
-      + PropertyNames.DATE_LAST_MODIFIED + "," + PropertyNames.ID;
+  private static final KeysetQuery SEC_POLICY_QUERY = new KeysetQuery(
+      SEC_POLICY_PROPERTIES,
+      "'" + GuidConstants.Class_SecurityPolicy + "'", "",
+      " WHERE ((" + PropertyNames.DATE_LAST_MODIFIED + " = {0}) AND ("
+      + PropertyNames.ID + " > {1})) OR ("
+      + PropertyNames.DATE_LAST_MODIFIED + " > {0})",
+      " WHERE " + PropertyNames.DATE_LAST_MODIFIED + " > {0}",
+      " ORDER BY " + PropertyNames.DATE_LAST_MODIFIED + "," + PropertyNames.ID);
 
-  private static final String DOCS_BY_SEC_POLICY_QUERY =
+  private static final String DOCS_BY_SEC_POLICY_QUERY_PREFIX =
       "SELECT " + PropertyNames.ID + ", " + PropertyNames.NAME + ", "
       + PropertyNames.SECURITY_FOLDER + " FROM '" + GuidConstants.Class_Document
-      + "' WHERE " + PropertyNames.SECURITY_POLICY + " = Object({0})";
+      + "' WHERE " + PropertyNames.SECURITY_POLICY + " = Object(";
+
+  private static final PropertyFilter SEC_POLICY_FILTER = new PropertyFilter();
+
+  /**
+   * Filters the documents to the queried properties. The security
+   * folder is only checked for null, so it is returned as an
+   * unevaluated reference rather than fetched.
+   */
+  private static final PropertyFilter DOCS_BY_SEC_POLICY_FILTER =
+      new PropertyFilter();
+
+  static {
+    SEC_POLICY_FILTER.setMaxRecursion(0);
+    SEC_POLICY_FILTER.addIncludeProperty(new FilterElement(0, null,
+        Boolean.FALSE, SEC_POLICY_PROPERTIES.replace(',', ' '), null));
+
+    DOCS_BY_SEC_POLICY_FILTER.setMaxRecursion(0);
+    DOCS_BY_SEC_POLICY_FILTER.addIncludeProperty(new FilterElement(0, null,
+        null, PropertyNames.ID + " " + PropertyNames.NAME + " "
+        + PropertyNames.SECURITY_FOLDER, null));
+  }
 
   private final IConnection connection;
   private final IObjectFactory objectFactory;
   private final IObjectStore os;
   private final FileConnector connector;
+  private final AuthorizationCache authorizations;
 
   private int batchHint = 1000;
 
   public SecurityPolicyTraverser(IConnection connection,
       IObjectFactory objectFactory, IObjectStore os,
       FileConnector connector) {
+    this(connection, objectFactory, os, connector,
+        AuthorizationCache.DISABLED);
+  }
+
+  /**
+   * @param authorizations the cached authorization decisions of the
+   *     session, which are invalidated when a security policy changes
+   */
+  SecurityPolicyTraverser(IConnection connection,
+      IObjectFactory objectFactory, IObjectStore os,
+      FileConnector connector, AuthorizationCache authorizations) {
     this.connection = connection;
     this.objectFactory = objectFactory;
     this.os = os;
     this.connector = connector;
+    this.authorizations = authorizations;
   }
 
   @Override
@@ -108,6 +148,8 @@ class SecurityPolicyTraverser implements Traverser {
       } else {
         LOGGER.fine("Found " + acls.size()
             + " documents affected by security policy updates");
+        // The inherited permissions of any document may have changed.
+        authorizations.invalidateAll();
         return new SecurityPolicyDocumentList(acls, checkpoint);
       }
     } catch (EngineRuntimeException e) {
@@ -131,12 +173,15 @@ class SecurityPolicyTraverser implements Traverser {
     SearchWrapper searcher = objectFactory.getSearch(os);
     LinkedList<AclDocument> docs = new LinkedList<AclDocument>();
     IndependentObjectSet secPolicySet = searcher.fetchObjects(
-        buildSecurityPolicyQuery(checkpoint), batchHint, SearchWrapper.noFilter,
+        buildSecurityPolicyQuery(checkpoint), batchHint, SEC_POLICY_FILTER,
         SearchWrapper.ALL_ROWS);
     Iterator<?> secPolicyIter = secPolicySet.iterator();
     int docCount = 0;
+    int secPolicyCount = 0;
+    long principalCount = 0;
     while (secPolicyIter.hasNext() && (docCount < batchHint)) {
       SecurityPolicy secPolicy = (SecurityPolicy) secPolicyIter.next();
+      secPolicyCount++;
       Date lastModified = secPolicy.get_DateLastModified();
       Id secPolicyId = secPolicy.get_Id();
       LOGGER.log(Level.FINEST,
@@ -153,11 +198,16 @@ class SecurityPolicyTraverser implements Traverser {
           Permissions.Acl permissions =
               new Permissions(secTemplate.get_TemplatePermissions()).getAcl();
           if (hasPermissions(permissions)) {
+            // The documents all share the template permissions.
+            AclDocument.Principals principals = new AclDocument.Principals(
+                connector.getGoogleGlobalNamespace(),
+                permissions.getAllowUsers(), permissions.getDenyUsers(),
+                permissions.getAllowGroups(), permissions.getDenyGroups());
             // The query isn't limited to batchHint documents, but
             // it's probably not a bad page size.
             IndependentObjectSet docSet = searcher.fetchObjects(
                 buildDocumentSearchQuery(secPolicy), batchHint,
-                SearchWrapper.dereferenceObjects, SearchWrapper.ALL_ROWS);
+                DOCS_BY_SEC_POLICY_FILTER, SearchWrapper.ALL_ROWS);
             Iterator<?> docIter = docSet.iterator();
             while (docIter.hasNext()) {
               // Document collides with the SPI class of the same name.
@@ -170,13 +220,11 @@ class SecurityPolicyTraverser implements Traverser {
               String tmplDocId =
                   doc.get_Id() + AclDocument.SEC_POLICY_POSTFIX;
               AclDocument aclDoc = new AclDocument(tmplDocId, parentId,
-                  AclInheritanceType.CHILD_OVERRIDES,
-                  connector.getGoogleGlobalNamespace(),
-                  permissions.getAllowUsers(), permissions.getDenyUsers(),
-                  permissions.getAllowGroups(), permissions.getDenyGroups());
+                  AclInheritanceType.CHILD_OVERRIDES, principals);
               aclDoc.setCheckpointLastModified(lastModified);
               aclDoc.setCheckpointLastUuid(secPolicyId);
               docs.add(aclDoc);
+              principalCount += principals.size();
               LOGGER.log(Level.FINEST,
                   "Update Parent ACL {0} for Security Policy {1}",
                   new Object[] {tmplDocId, secPolicyId});
@@ -188,6 +236,9 @@ class SecurityPolicyTraverser implements Traverser {
         }
       }
     }
+    LOGGER.log(Level.FINE, "Found {0} updated security policies with {1} "
+        + "ACL documents and {2} principals",
+        new Object[] {secPolicyCount, docCount, principalCount});
     return docs;
   }
 
@@ -197,13 +248,8 @@ class SecurityPolicyTraverser implements Traverser {
     String uuid =
         getCheckpointValue(checkpoint, JsonField.UUID_SECURITY_POLICY);
 
-    if (Strings.isNullOrEmpty(uuid)) {
-      return MessageFormat.format(SEC_POLICY_QUERY_WITHOUT_UUID,
-          new Object[] {batchHint, timeStr});
-    } else {
-      return MessageFormat.format(SEC_POLICY_QUERY_WITH_UUID,
-          new Object[] {batchHint, timeStr, uuid});
-    }
+    return SEC_POLICY_QUERY.build(batchHint, "",
+        SEC_POLICY_QUERY.getKeysetClause(timeStr, uuid));
   }
 
   private String getLastModified(Checkpoint checkpoint) {
@@ -224,7 +270,7 @@ class SecurityPolicyTraverser implements Traverser {
 
   private String buildDocumentSearchQuery(SecurityPolicy secPolicy)
       throws RepositoryException {
-    return MessageFormat.format(DOCS_BY_SEC_POLICY_QUERY, secPolicy.get_Id());
+    return DOCS_BY_SEC_POLICY_QUERY_PREFIX + secPolicy.get_Id() + ")";
   }
 
   private boolean hasPermissions(Permissions.Acl permissions) {
@@ -0,0 +1,119 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.enterprise.connector.filenet4.api.IConnection;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import com.filenet.api.security.User;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the users looked up by authentication and authorization, with
+ * their groups already read. Concurrent requests for the same user wait
+ * for a single lookup. Users expire after a time to live, so changes to
+ * group membership are seen after at most that long. Until then, a user
+ * removed from a group is still authorized for that group's documents.
+ * <p>
+ * This class is thread-safe.
+ */
+class UserCache {
+  private static final Logger logger =
+      Logger.getLogger(UserCache.class.getName());
+
+  private final IConnection conn;
+  private final Cache<String, UserProfile> users;
+
+  /**
+   * @param maximumSize the maximum number of users, or zero to only
+   *     combine concurrent lookups
+   * @param ttl the time to live of each user
+   */
+  UserCache(IConnection conn, long maximumSize, long ttl, TimeUnit unit) {
+    this.conn = conn;
+    this.users = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(ttl, unit)
+        .build();
+  }
+
+  /**
+   * Gets the given user, looking it up in FileNet if it is not cached.
+   * The caller must have pushed a subject.
+   */
+  UserProfile get(final String username) throws RepositoryException {
+    return get(username, new Callable<UserProfile>() {
+        @Override
+        public UserProfile call() throws RepositoryException {
+          logger.log(Level.FINE, "Looking up user {0}", username);
+          return new UserProfile(
+              conn.getUserContext().lookupUser(username));
+        }
+      });
+  }
+
+  /**
+   * Gets the given user, caching the user that was already looked up,
+   * for example, by authenticating with a password, if it is not cached.
+   */
+  UserProfile get(String username, final User user)
+      throws RepositoryException {
+    return get(username, new Callable<UserProfile>() {
+        @Override
+        public UserProfile call() {
+          return new UserProfile(user);
+        }
+      });
+  }
+
+  private UserProfile get(String username, Callable<UserProfile> loader)
+      throws RepositoryException {
+    if (username == null) {
+      // The cache does not allow null keys.
+      try {
+        return loader.call();
+      } catch (RepositoryException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RepositoryException(e);
+      }
+    }
+    try {
+      return users.get(username, loader);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RepositoryException) {
+        throw (RepositoryException) cause;
+      } else {
+        throw new RepositoryException(cause);
+      }
+    } catch (UncheckedExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw e;
+      }
+    }
+  }
+}
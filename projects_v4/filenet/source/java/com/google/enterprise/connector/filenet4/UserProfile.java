@@ -0,0 +1,158 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import com.google.common.collect.ImmutableSet;
+
+import com.filenet.api.security.Group;
+import com.filenet.api.security.User;
+
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The principal names of a user, read once from FileNet so that they
+ * can be matched against the grantees of many permissions. The names
+ * are case-folded, so that a set lookup matches the grantee names the
+ * same way as {@link String#equalsIgnoreCase}. The user and group names
+ * are also kept as they were read, for authentication.
+ * <p>
+ * This class is immutable.
+ */
+public final class UserProfile {
+  private final String name;
+  private final String email;
+  private final String distinguishedName;
+  private final Set<String> userNames;
+  private final Set<String> groupNames;
+  private final Set<String> groupShortNames;
+
+  /**
+   * Reads the names of the user and its groups. The groups may be
+   * fetched from FileNet, so the caller must have pushed a subject.
+   */
+  public UserProfile(User user) {
+    this.name = user.get_Name();
+    this.email = user.get_Email();
+    this.distinguishedName = user.get_DistinguishedName();
+
+    ImmutableSet.Builder<String> users = ImmutableSet.builder();
+    addNames(users, name, email, distinguishedName);
+    this.userNames = users.build();
+
+    // Every FileNet user is a member of #AUTHENTICATED-USERS.
+    ImmutableSet.Builder<String> groups = ImmutableSet.builder();
+    ImmutableSet.Builder<String> shortNames = ImmutableSet.builder();
+    addNames(groups, Permissions.AUTHENTICATED_USERS);
+    Iterator<?> iter = user.get_MemberOfGroups().iterator();
+    while (iter.hasNext()) {
+      Group group = (Group) iter.next();
+      String groupName = group.get_Name();
+      addNames(groups, groupName, group.get_DistinguishedName(),
+          group.get_DisplayName());
+      if (groupName != null) {
+        shortNames.add(groupName);
+      }
+    }
+    this.groupNames = groups.build();
+    this.groupShortNames = shortNames.build();
+  }
+
+  private static void addNames(ImmutableSet.Builder<String> builder,
+      String... names) {
+    for (String name : names) {
+      if (name != null) {
+        builder.add(fold(name));
+      }
+    }
+  }
+
+  /**
+   * Folds the case of the given name. Two strings are equal ignoring
+   * case if and only if their folded values are equal.
+   */
+  static String fold(String name) {
+    char[] chars = name.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+    }
+    return new String(chars);
+  }
+
+  /** Gets the name of the user. */
+  public String getName() {
+    return name;
+  }
+
+  /** Gets the email address of the user, or {@code null}. */
+  public String getEmail() {
+    return email;
+  }
+
+  /** Gets the distinguished name of the user, or {@code null}. */
+  public String getDistinguishedName() {
+    return distinguishedName;
+  }
+
+  /**
+   * Gets the names of the groups of the user, as they were read, not
+   * including #AUTHENTICATED-USERS.
+   */
+  public Set<String> getGroupNames() {
+    return groupShortNames;
+  }
+
+  /** Gets whether the given name is the name, email, or DN of the user. */
+  public boolean matchesUser(String granteeName) {
+    return granteeName != null && userNames.contains(fold(granteeName));
+  }
+
+  /**
+   * Gets whether the given name is the name, DN, or display name of a
+   * group of the user, or #AUTHENTICATED-USERS.
+   */
+  public boolean matchesGroup(String granteeName) {
+    return granteeName != null && groupNames.contains(fold(granteeName));
+  }
+
+  /**
+   * Gets whether any of the given names, which must already be
+   * case-folded, is the name, email, or DN of the user.
+   */
+  boolean matchesAnyUser(Set<String> foldedNames) {
+    return intersects(userNames, foldedNames);
+  }
+
+  /**
+   * Gets whether any of the given names, which must already be
+   * case-folded, is a name of a group of the user, or
+   * #AUTHENTICATED-USERS.
+   */
+  boolean matchesAnyGroup(Set<String> foldedNames) {
+    return intersects(groupNames, foldedNames);
+  }
+
+  /** Looks up the elements of the smaller set in the larger one. */
+  private static boolean intersects(Set<String> a, Set<String> b) {
+    Set<String> smaller = (a.size() <= b.size()) ? a : b;
+    Set<String> larger = (smaller == a) ? b : a;
+    for (String name : smaller) {
+      if (larger.contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
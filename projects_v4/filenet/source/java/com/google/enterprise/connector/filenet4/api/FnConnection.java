@@ -52,8 +52,13 @@ public class FnConnection implements IConnection {
     return subject;
   }
 
+  /**
+   * Authenticates the connection user again, fetching only its name,
+   * since this is done for every traversal batch.
+   */
   @Override
   public void refreshSUserContext() throws RepositoryLoginException {
-    getUserContext().authenticate(userName, userPassword);
+    new FnUserContext(this).authenticate(userName, userPassword,
+        FnUserContext.NAME_FILTER);
   }
 }
@@ -102,6 +102,11 @@ public class FnDocument implements IDocument {
     return doc.get_Owner();
   }
 
+  @Override
+  public Date get_DateLastModified() {
+    return doc.get_DateLastModified();
+  }
+
   @Override
   public InputStream getContent() {
     InputStream ip = null;
@@ -14,18 +14,31 @@
 
 package com.google.enterprise.connector.filenet4.api;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
 
+import com.filenet.api.collection.IndependentObjectSet;
 import com.filenet.api.constants.ClassNames;
 import com.filenet.api.constants.DatabaseType;
+import com.filenet.api.constants.PropertyNames;
 import com.filenet.api.core.Document;
 import com.filenet.api.core.IndependentObject;
 import com.filenet.api.core.ObjectStore;
 import com.filenet.api.core.VersionSeries;
+import com.filenet.api.exception.EngineRuntimeException;
 import com.filenet.api.property.PropertyFilter;
+import com.filenet.api.query.SearchScope;
 import com.filenet.api.util.Id;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -77,16 +90,7 @@ public class FnObjectStore implements IObjectStore {
     IndependentObject obj = null;
     try {
       obj = objectStore.fetchObject(type, id, filter);
-      if (type.equals(ClassNames.VERSION_SERIES)) {
-        return new FnVersionSeries((VersionSeries) obj);
-      } else if (type.equals(ClassNames.DOCUMENT)) {
-        return new FnDocument((Document) obj);
-      } else {
-        // TODO(jlacey): This exception may not be caught if we
-        // refactor this to throw EngineRuntimeException, but that
-        // doesn't have a String constructor.
-        throw new IllegalArgumentException("Unexpected object type: " + type);
-      }
+      return newObject(type, obj);
     } catch (Exception e) {
       logger.log(Level.WARNING,
           "Unable to fetch VersionSeries or Document object", e);
@@ -94,6 +98,154 @@ public class FnObjectStore implements IObjectStore {
     }
   }
 
+  @Override
+  public Map<Id, IBaseObject> fetchObjects(String type, Collection<Id> ids,
+      Collection<String> propertyNames, PropertyFilter filter)
+      throws RepositoryException {
+    Map<Id, IBaseObject> objects = new HashMap<>();
+    if (ids.isEmpty()) {
+      return objects;
+    }
+
+    try {
+      Iterator<?> iter = search(type, propertyNames, null, PropertyNames.ID,
+          ids, filter).iterator();
+      while (iter.hasNext()) {
+        IBaseObject obj = newObject(type, (IndependentObject) iter.next());
+        objects.put(obj.get_Id(), obj);
+      }
+    } catch (EngineRuntimeException e) {
+      throw new RepositoryException("Unable to fetch " + ids.size() + " "
+          + type + " objects", e);
+    }
+    logger.log(Level.FINEST, "Fetched {0} of {1} {2} objects",
+        new Object[] {objects.size(), ids.size(), type});
+    return objects;
+  }
+
+  @Override
+  public Map<Id, IDocument> fetchReleasedVersions(
+      Collection<Id> versionSeriesIds, Collection<String> propertyNames,
+      PropertyFilter filter) throws RepositoryException {
+    Map<Id, IDocument> documents = new HashMap<>();
+    if (versionSeriesIds.isEmpty()) {
+      return documents;
+    }
+
+    // VersionSeries is not searchable, so search for the documents
+    // instead. Only the released version has a VersionStatus of 1.
+    Set<String> names = new LinkedHashSet<>(propertyNames);
+    names.add(PropertyNames.VERSION_SERIES);
+    try {
+      Iterator<?> iter = search(ClassNames.DOCUMENT, names,
+          PropertyNames.VERSION_STATUS + "=1", PropertyNames.VERSION_SERIES,
+          versionSeriesIds, filter).iterator();
+      while (iter.hasNext()) {
+        Document doc = (Document) iter.next();
+        documents.put(doc.get_VersionSeries().get_Id(), new FnDocument(doc));
+      }
+    } catch (EngineRuntimeException e) {
+      throw new RepositoryException("Unable to fetch the released versions "
+          + "of " + versionSeriesIds.size() + " version series", e);
+    }
+    logger.log(Level.FINEST, "Fetched {0} released versions of {1} version "
+        + "series", new Object[] {documents.size(), versionSeriesIds.size()});
+    return documents;
+  }
+
+  @Override
+  public Set<Id> findVersionSeries(Collection<Id> versionSeriesIds)
+      throws RepositoryException {
+    Set<Id> found = new HashSet<>();
+    if (versionSeriesIds.isEmpty()) {
+      return found;
+    }
+
+    // VersionSeries is not searchable, so look for the current version
+    // of each version series instead. Every version series has one.
+    try {
+      Iterator<?> iter = search(ClassNames.DOCUMENT,
+          Collections.singleton(PropertyNames.VERSION_SERIES),
+          PropertyNames.IS_CURRENT_VERSION + "=TRUE",
+          PropertyNames.VERSION_SERIES, versionSeriesIds,
+          SearchWrapper.noFilter).iterator();
+      while (iter.hasNext()) {
+        found.add(((Document) iter.next()).get_VersionSeries().get_Id());
+      }
+    } catch (EngineRuntimeException e) {
+      throw new RepositoryException("Unable to find "
+          + versionSeriesIds.size() + " version series", e);
+    }
+    logger.log(Level.FINEST, "Found {0} of {1} version series",
+        new Object[] {found.size(), versionSeriesIds.size()});
+    return found;
+  }
+
+  /**
+   * Searches for the objects whose ID property matches any of the given
+   * IDs. A search only returns the properties in the SELECT list. The
+   * property filter can narrow them, and controls the recursion into
+   * object-valued properties, but it cannot add to them.
+   *
+   * @param condition an additional condition, or {@code null}
+   */
+  private IndependentObjectSet search(String type,
+      Collection<String> propertyNames, String condition, String idProperty,
+      Collection<Id> ids, PropertyFilter filter) {
+    SearchWrapper search = new SearchWrapper(new SearchScope(objectStore));
+    return search.fetchObjects(
+        getQuery(type, propertyNames, condition, idProperty, ids),
+        ids.size(), filter, SearchWrapper.ALL_ROWS);
+  }
+
+  /**
+   * Gets the query for {@link #search}. Every selected property must be
+   * defined on the type, or the search fails.
+   */
+  @VisibleForTesting
+  static String getQuery(String type, Collection<String> propertyNames,
+      String condition, String idProperty, Collection<Id> ids) {
+    StringBuilder query = new StringBuilder("SELECT ");
+    query.append(PropertyNames.ID);
+    for (String name : propertyNames) {
+      if (!name.equalsIgnoreCase(PropertyNames.ID)) {
+        query.append(",");
+        query.append(name);
+      }
+    }
+    query.append(" FROM ");
+    query.append(type);
+    query.append(" WHERE ");
+    if (condition != null) {
+      query.append(condition);
+      query.append(" AND ");
+    }
+    query.append("(");
+    String separator = "";
+    for (Id id : ids) {
+      query.append(separator);
+      query.append(idProperty);
+      query.append("=");
+      query.append(id);
+      separator = " OR ";
+    }
+    query.append(")");
+    return query.toString();
+  }
+
+  private IBaseObject newObject(String type, IndependentObject obj) {
+    if (type.equals(ClassNames.VERSION_SERIES)) {
+      return new FnVersionSeries((VersionSeries) obj);
+    } else if (type.equals(ClassNames.DOCUMENT)) {
+      return new FnDocument((Document) obj);
+    } else {
+      // TODO(jlacey): This exception may not be caught if we
+      // refactor this to throw EngineRuntimeException, but that
+      // doesn't have a String constructor.
+      throw new IllegalArgumentException("Unexpected object type: " + type);
+    }
+  }
+
   ObjectStore getObjectStore() {
     return objectStore;
   }
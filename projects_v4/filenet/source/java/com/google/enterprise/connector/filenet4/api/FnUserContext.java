@@ -14,10 +14,14 @@
 
 package com.google.enterprise.connector.filenet4.api;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.RepositoryLoginException;
 
+import com.filenet.api.constants.PropertyNames;
 import com.filenet.api.core.Factory;
+import com.filenet.api.property.FilterElement;
+import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.security.User;
 import com.filenet.api.util.UserContext;
 
@@ -33,6 +37,35 @@ public class FnUserContext implements IUserContext {
   private static final Logger logger =
       Logger.getLogger(FnUserContext.class.getName());
 
+  /**
+   * Filters a user to the names used to authenticate and authorize it,
+   * and its groups with their names. The groups are independent
+   * objects, so they are a level of recursion. The same property names
+   * are used at both levels.
+   */
+  @VisibleForTesting
+  static final PropertyFilter USER_FILTER = new PropertyFilter();
+
+  /**
+   * Filters a user to its name, for refreshing the connection's
+   * subject, which does not need the groups.
+   */
+  @VisibleForTesting
+  static final PropertyFilter NAME_FILTER = new PropertyFilter();
+
+  static {
+    USER_FILTER.setMaxRecursion(1);
+    USER_FILTER.addIncludeProperty(new FilterElement(1, null, null,
+        PropertyNames.EMAIL + " " + PropertyNames.SHORT_NAME + " "
+        + PropertyNames.NAME + " " + PropertyNames.DISTINGUISHED_NAME + " "
+        + PropertyNames.DISPLAY_NAME + " " + PropertyNames.MEMBER_OF_GROUPS,
+        null));
+
+    NAME_FILTER.setMaxRecursion(0);
+    NAME_FILTER.addIncludeProperty(
+        new FilterElement(0, null, null, PropertyNames.NAME, null));
+  }
+
   private final IConnection conn;
 
   public FnUserContext(IConnection conn) {
@@ -50,6 +83,14 @@ public class FnUserContext implements IUserContext {
   @Override
   public User authenticate(String username, String password)
           throws RepositoryLoginException {
+    return authenticate(username, password, USER_FILTER);
+  }
+
+  /**
+   * Authenticates the user, fetching the properties in the given filter.
+   */
+  User authenticate(String username, String password, PropertyFilter filter)
+      throws RepositoryLoginException {
     if (password == null) {
       throw new RepositoryLoginException("Password is null");
     }
@@ -61,7 +102,7 @@ public class FnUserContext implements IUserContext {
           "FileNetP8");
       uc.pushSubject(s);
       User u = Factory.User.fetchCurrent(((FnConnection) conn).getConnection(),
-          null);
+          filter);
       logger.info("User: " + u.get_Name() + " is authenticated");
       return u;
     } catch (Throwable e) {
@@ -74,28 +115,13 @@ public class FnUserContext implements IUserContext {
   /*
    * TODO(tdnguyen) This seems to be a strange place to put lookupUser method
    * here.  Consider moving or refactoring this method.
-   *
-   * TODO(jlacey): r569 moved this code here from FnPermissions, but
-   * left behind a now unused PropertyFilter. We should use this
-   * filter here, or just delete this TODO.
-   *
-   * private final PropertyFilter pf;
-   * pf = new PropertyFilter();
-   * pf.addIncludeProperty(new FilterElement(null, null, null,
-   *     PropertyNames.EMAIL, null));
-   * pf.addIncludeProperty(new FilterElement(null, null, null,
-   *     PropertyNames.SHORT_NAME, null));
-   * pf.addIncludeProperty(new FilterElement(null, null, null,
-   *     PropertyNames.NAME, null));
-   * pf.addIncludeProperty(new FilterElement(null, null, null,
-   *     PropertyNames.DISTINGUISHED_NAME, null));
    */
   @Override
   public User lookupUser(String username) throws RepositoryException {
     try {
       logger.log(Level.FINE, "Lookup user: {0}", username);
       User user = Factory.User.fetchInstance(
-          ((FnConnection) conn).getConnection(), username, null);
+          ((FnConnection) conn).getConnection(), username, USER_FILTER);
       return user;
     } catch (Exception e) {
       throw new RepositoryException(username + " username is not found", e);
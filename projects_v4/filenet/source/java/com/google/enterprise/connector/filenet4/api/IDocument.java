@@ -22,6 +22,7 @@ import com.filenet.api.collection.ActiveMarkingList;
 import com.filenet.api.core.Folder;
 
 import java.io.InputStream;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
@@ -34,6 +35,8 @@ public interface IDocument extends IBaseObject {
 
   String get_Owner();
 
+  Date get_DateLastModified();
+
   InputStream getContent();
 
   IVersionSeries getVersionSeries();
@@ -21,6 +21,10 @@ import com.filenet.api.constants.DatabaseType;
 import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.util.Id;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
 public interface IObjectStore {
 
   public IBaseObject getObject(String type, String id)
@@ -32,5 +36,52 @@ public interface IObjectStore {
   public IBaseObject fetchObject(String type, Id id,
       PropertyFilter filter) throws RepositoryDocumentException;
 
+  /**
+   * Fetches the objects with the given IDs in a single search, rather
+   * than one round trip per object.
+   *
+   * @param type the object type, which must be searchable, such as Document
+   * @param ids the IDs of the objects to fetch
+   * @param propertyNames the properties to select, in addition to the
+   *     ID. Unlike {@link #fetchObject}, the fetched objects only have
+   *     the selected properties, so these must include every property
+   *     that will be read, and every one must be defined on the type
+   * @param filter the property filter to apply to the fetched objects
+   * @return a map from the IDs to the fetched objects. IDs that do not
+   *     match an existing object are omitted from the map
+   * @throws RepositoryException if the search fails
+   */
+  public Map<Id, IBaseObject> fetchObjects(String type, Collection<Id> ids,
+      Collection<String> propertyNames, PropertyFilter filter)
+      throws RepositoryException;
+
+  /**
+   * Fetches the released versions of the given version series in a
+   * single search, rather than one round trip per version series.
+   *
+   * @param versionSeriesIds the IDs of the version series
+   * @param propertyNames the properties of the released versions to
+   *     select, in addition to the ID and version series
+   * @param filter the property filter to apply to the released versions
+   * @return a map from the version series IDs to their released
+   *     versions. Version series that do not exist or do not have a
+   *     released version are omitted from the map
+   * @throws RepositoryException if the search fails
+   */
+  public Map<Id, IDocument> fetchReleasedVersions(
+      Collection<Id> versionSeriesIds, Collection<String> propertyNames,
+      PropertyFilter filter) throws RepositoryException;
+
+  /**
+   * Finds which of the given version series still exist, in a single
+   * search, rather than one round trip per version series.
+   *
+   * @param versionSeriesIds the IDs of the version series to look up
+   * @return the IDs of the version series that exist
+   * @throws RepositoryException if the search fails
+   */
+  public Set<Id> findVersionSeries(Collection<Id> versionSeriesIds)
+      throws RepositoryException;
+
   public DatabaseType get_DatabaseType() throws RepositoryException;
 }
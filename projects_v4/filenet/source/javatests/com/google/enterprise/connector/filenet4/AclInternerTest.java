@@ -0,0 +1,117 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.SpiConstants.AclInheritanceType;
+import com.google.enterprise.connector.spiimpl.PrincipalValue;
+
+import org.junit.Test;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class AclInternerTest {
+  private static final String NAMESPACE = "Default";
+
+  private static final Set<String> USERS = ImmutableSet.of("user1", "user2");
+  private static final Set<String> GROUPS = ImmutableSet.of("group1");
+  private static final Set<String> NONE = ImmutableSet.of();
+
+  private final AclInterner interner = new AclInterner();
+
+  @Test
+  public void testPrincipals_size() {
+    AclDocument.Principals principals =
+        interner.intern(NAMESPACE, USERS, GROUPS, GROUPS, USERS);
+    assertEquals(6, principals.size());
+
+    AclDocument aclDoc = new AclDocument("doc1", null,
+        AclInheritanceType.CHILD_OVERRIDES, principals);
+    assertEquals(6, aclDoc.getPrincipalCount());
+  }
+
+  @Test
+  public void testIntern_same() {
+    AclDocument.Principals first =
+        interner.intern(NAMESPACE, USERS, NONE, GROUPS, NONE);
+    AclDocument.Principals second =
+        interner.intern(NAMESPACE, USERS, NONE, GROUPS, NONE);
+
+    assertSame(first, second);
+    assertEquals(2, interner.getRequestCount());
+    assertEquals(1, interner.size());
+  }
+
+  @Test
+  public void testIntern_order() {
+    Set<String> reversed = new LinkedHashSet<String>();
+    reversed.add("user2");
+    reversed.add("user1");
+
+    assertSame(interner.intern(NAMESPACE, USERS, NONE, GROUPS, NONE),
+        interner.intern(NAMESPACE, reversed, NONE, GROUPS, NONE));
+  }
+
+  @Test
+  public void testIntern_different() {
+    AclDocument.Principals allow =
+        interner.intern(NAMESPACE, USERS, NONE, GROUPS, NONE);
+
+    assertNotSame(allow,
+        interner.intern(NAMESPACE, NONE, USERS, GROUPS, NONE));
+    assertNotSame(allow, interner.intern(null, USERS, NONE, GROUPS, NONE));
+    assertNotSame(allow,
+        interner.intern("Other", USERS, NONE, GROUPS, NONE));
+    assertEquals(4, interner.size());
+  }
+
+  @Test
+  public void testSharedPrincipals() throws Exception {
+    AclDocument.Principals principals =
+        interner.intern(NAMESPACE, USERS, NONE, GROUPS, NONE);
+    AclDocument first = new AclDocument("first", null,
+        AclInheritanceType.CHILD_OVERRIDES, principals);
+    AclDocument second = new AclDocument("second", null,
+        AclInheritanceType.CHILD_OVERRIDES, principals);
+
+    // Each property reads the shared values from the start.
+    for (AclDocument doc : new AclDocument[] {first, second, first}) {
+      assertEquals(2, countPrincipals(doc, SpiConstants.PROPNAME_ACLUSERS));
+      assertEquals(1, countPrincipals(doc, SpiConstants.PROPNAME_ACLGROUPS));
+      assertNull(doc.findProperty(SpiConstants.PROPNAME_ACLDENYUSERS));
+      assertNull(doc.findProperty(SpiConstants.PROPNAME_ACLDENYGROUPS));
+    }
+  }
+
+  private int countPrincipals(AclDocument doc, String name)
+      throws Exception {
+    Property property = doc.findProperty(name);
+    int count = 0;
+    PrincipalValue value;
+    while ((value = (PrincipalValue) property.nextValue()) != null) {
+      assertEquals(NAMESPACE, value.getPrincipal().getNamespace());
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveBatchSizeTest {
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** A 10 second target, with batch sizes between 10 and 1000. */
+  private final AdaptiveBatchSize batchSize =
+      new AdaptiveBatchSize(10, 1000, 10, TimeUnit.SECONDS);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBounds() {
+    new AdaptiveBatchSize(100, 10, 10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testInitialBatchSize() {
+    assertEquals(500, batchSize.getBatchSize(500));
+    assertEquals(1000, batchSize.getBatchSize(5000));
+    assertEquals(10, batchSize.getBatchSize(1));
+  }
+
+  @Test
+  public void testShrink() {
+    // 1 second of query time and 100 ms per document: 90 documents
+    // fit in 10 seconds, but the size is only halved in one step.
+    batchSize.record(500, 500, 1000 * MILLIS, 500 * 100 * MILLIS);
+    assertEquals(250, batchSize.getBatchSize(500));
+
+    batchSize.record(250, 250, 1000 * MILLIS, 250 * 100 * MILLIS);
+    assertEquals(125, batchSize.getBatchSize(500));
+
+    batchSize.record(125, 125, 1000 * MILLIS, 125 * 100 * MILLIS);
+    assertEquals(90, batchSize.getBatchSize(500));
+  }
+
+  @Test
+  public void testGrow() {
+    // 1 second of query time and 1 ms per document.
+    batchSize.record(100, 100, 1000 * MILLIS, 100 * MILLIS);
+    assertEquals(200, batchSize.getBatchSize(100));
+
+    batchSize.record(200, 200, 1000 * MILLIS, 200 * MILLIS);
+    assertEquals(400, batchSize.getBatchSize(100));
+
+    batchSize.record(400, 400, 1000 * MILLIS, 400 * MILLIS);
+    assertEquals(800, batchSize.getBatchSize(100));
+
+    batchSize.record(800, 800, 1000 * MILLIS, 800 * MILLIS);
+    assertEquals(1000, batchSize.getBatchSize(100));
+  }
+
+  @Test
+  public void testMinimum() {
+    // The query time alone exceeds the target.
+    batchSize.record(20, 20, 20000 * MILLIS, 20 * MILLIS);
+    assertEquals(10, batchSize.getBatchSize(20));
+  }
+
+  @Test
+  public void testNoDocuments() {
+    // An empty batch gives no per-document time, so the hint is kept.
+    batchSize.record(500, 0, 1000 * MILLIS, 0L);
+    assertEquals(500, batchSize.getBatchSize(500));
+  }
+}
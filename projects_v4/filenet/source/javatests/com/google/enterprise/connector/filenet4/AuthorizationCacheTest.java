@@ -0,0 +1,156 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.filenet.api.util.Id;
+
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+public class AuthorizationCacheTest {
+  private static final Id ID1 =
+      new Id("{AAAAAAAA-0000-0000-0000-000000000001}");
+  private static final Id ID2 =
+      new Id("{AAAAAAAA-0000-0000-0000-000000000002}");
+
+  private final AuthorizationCache cache =
+      new AuthorizationCache(100, 1, TimeUnit.HOURS);
+
+  @Test
+  public void testDisabled() {
+    AuthorizationCache disabled =
+        new AuthorizationCache(0, 1, TimeUnit.HOURS);
+    disabled.put("user1", ID1, false, true, disabled.startTime());
+    assertNull(disabled.get("user1", ID1, false));
+  }
+
+  @Test
+  public void testGet() {
+    cache.put("user1", ID1, false, true, cache.startTime());
+    cache.put("user1", ID2, false, false, cache.startTime());
+
+    assertEquals(Boolean.TRUE, cache.get("user1", ID1, false));
+    assertEquals(Boolean.FALSE, cache.get("user1", ID2, false));
+    assertNull(cache.get("user2", ID1, false));
+    assertNull(cache.get("user1", ID1, true));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testInvalidate() {
+    cache.put("user1", ID1, false, true, cache.startTime());
+    cache.put("user1", ID2, false, true, cache.startTime());
+    cache.invalidate(ID1);
+
+    assertNull(cache.get("user1", ID1, false));
+    assertEquals(Boolean.TRUE, cache.get("user1", ID2, false));
+
+    // A decision made after the change is cached.
+    cache.put("user1", ID1, false, false, cache.startTime());
+    assertEquals(Boolean.FALSE, cache.get("user1", ID1, false));
+  }
+
+  @Test
+  public void testInvalidate_duringAuthorization() {
+    long startTime = cache.startTime();
+    cache.invalidate(ID1);
+    cache.put("user1", ID1, false, true, startTime);
+
+    assertNull(cache.get("user1", ID1, false));
+  }
+
+  @Test
+  public void testInvalidateAll() {
+    long startTime = cache.startTime();
+    cache.put("user1", ID1, false, true, startTime);
+    cache.invalidateAll();
+    cache.put("user1", ID2, false, true, startTime);
+
+    assertNull(cache.get("user1", ID1, false));
+    assertNull(cache.get("user1", ID2, false));
+  }
+
+  @Test
+  public void testInvalidate_evicted() {
+    AuthorizationCache small = new AuthorizationCache(1, 1, TimeUnit.HOURS);
+    long startTime = small.startTime();
+    small.invalidate(ID1);
+    small.put("user1", ID1, false, true, startTime);
+    // The change to ID1 is evicted, so all decisions are invalidated.
+    small.invalidate(ID2);
+    small.put("user1", ID2, false, true, small.startTime());
+
+    assertNull(small.get("user1", ID1, false));
+    assertEquals(Boolean.TRUE, small.get("user1", ID2, false));
+  }
+
+  @Test
+  public void testExpired() throws InterruptedException {
+    AuthorizationCache expiring =
+        new AuthorizationCache(100, 1, TimeUnit.MILLISECONDS);
+    expiring.put("user1", ID1, false, true, expiring.startTime());
+    Thread.sleep(10);
+
+    assertNull(expiring.get("user1", ID1, false));
+  }
+
+  @Test
+  public void testPermissions() {
+    AuthorizationCache acls =
+        new AuthorizationCache(0, 100, 1, TimeUnit.HOURS);
+    Date modified = new Date(1000L);
+    Permissions permissions = new Permissions(null);
+    acls.putPermissions(ID1, modified, permissions, acls.startTime());
+
+    assertSame(permissions, acls.getPermissions(ID1, modified));
+    assertNull(acls.getPermissions(ID1, new Date(2000L)));
+    assertNull(acls.getPermissions(ID2, modified));
+
+    // Decisions are not cached.
+    acls.put("user1", ID1, false, true, acls.startTime());
+    assertNull(acls.get("user1", ID1, false));
+  }
+
+  @Test
+  public void testPermissions_invalidateAll() {
+    AuthorizationCache acls =
+        new AuthorizationCache(0, 100, 1, TimeUnit.HOURS);
+    Date modified = new Date(1000L);
+    long startTime = acls.startTime();
+    acls.putPermissions(ID1, modified, new Permissions(null), startTime);
+    acls.invalidateAll();
+    acls.putPermissions(ID2, modified, new Permissions(null), startTime);
+
+    assertNull(acls.getPermissions(ID1, modified));
+    assertNull(acls.getPermissions(ID2, modified));
+  }
+
+  @Test
+  public void testMaximumSize() {
+    AuthorizationCache small = new AuthorizationCache(1, 1, TimeUnit.HOURS);
+    small.put("user1", ID1, false, true, small.startTime());
+    small.put("user1", ID2, false, true, small.startTime());
+
+    assertTrue(small.getEvictionCount() > 0);
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class AuthorizationExecutorTest {
+  /** Records the name of the thread that runs it. */
+  private static class NamedTask implements Runnable {
+    volatile String threadName;
+
+    @Override
+    public void run() {
+      threadName = Thread.currentThread().getName();
+    }
+  }
+
+  @Test
+  public void testSubmit() throws Exception {
+    AuthorizationExecutor executor = new AuthorizationExecutor(2, 10);
+    NamedTask task = new NamedTask();
+
+    executor.submit(task).get(10, TimeUnit.SECONDS);
+    assertTrue(task.threadName,
+        task.threadName.startsWith("FileAuthorizationManager-authorize-"));
+    assertEquals(1, executor.getCompletedTaskCount());
+    assertEquals(0, executor.getQueueDepth());
+  }
+
+  @Test
+  public void testRejected() throws Exception {
+    AuthorizationExecutor executor = new AuthorizationExecutor(1, 1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Future<?> blocking = executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    // The thread is busy, so this task fills the queue.
+    NamedTask queued = new NamedTask();
+    Future<?> queuedFuture = executor.submit(queued);
+    assertEquals(1, executor.getQueueDepth());
+    assertEquals(1, executor.getActiveCount());
+
+    // The queue is full, so this task is rejected rather than run.
+    NamedTask rejected = new NamedTask();
+    try {
+      executor.submit(rejected);
+      fail("Expected a RejectedExecutionException");
+    } catch (RejectedExecutionException expected) {
+    }
+    assertNull(rejected.threadName);
+
+    release.countDown();
+    blocking.get(10, TimeUnit.SECONDS);
+    queuedFuture.get(10, TimeUnit.SECONDS);
+    assertFalse(Thread.currentThread().getName().equals(queued.threadName));
+    assertEquals(2, executor.getCompletedTaskCount());
+  }
+}
@@ -45,6 +45,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class FileAuthenticationManagerTest {
   private AuthenticationManager getObjectUnderTest(boolean pushAcls)
@@ -119,6 +120,7 @@ public class FileAuthenticationManagerTest {
 
   private User getMockUser(String email, String name, String dn) {
     User user = getMockUserNoReplay(email, name, dn);
+    expect(user.get_MemberOfGroups()).andReturn(new GroupSetMock());
     replay(user);
     return user;
   }
@@ -127,6 +129,9 @@ public class FileAuthenticationManagerTest {
     Group group = createMock(Group.class);
     expect(group.get_Name()).andReturn(
         "cn=Group1,cn=Groups,dc=example,dc=com");
+    expect(group.get_DistinguishedName()).andReturn(
+        "cn=Group1,cn=Groups,dc=example,dc=com");
+    expect(group.get_DisplayName()).andReturn("Group1");
     User user = getMockUserNoReplay(email, name, dn);
     expect(user.get_MemberOfGroups()).andReturn(
         new GroupSetMock(Collections.singletonList(group)));
@@ -328,6 +333,28 @@ public class FileAuthenticationManagerTest {
         false);
   }
 
+  @Test
+  public void testGroupLookup_cached() throws RepositoryException {
+    User user = getMockUserWithGroup("jsmith@example.com", "jsmith",
+        "cn=jsmith,ou=Users,dc=example,dc=com");
+    IUserContext uc = createMock(IUserContext.class);
+    expect(uc.lookupUser("jsmith")).andReturn(user);
+    IConnection conn = createMock(IConnection.class);
+    expect(conn.getUserContext()).andReturn(uc);
+    replay(uc, conn);
+
+    AuthenticationManager fam = new FileAuthenticationManager(conn, null,
+        true, new UserCache(conn, 10, 1, TimeUnit.HOURS));
+    AuthenticationIdentity id = getIdentityUser("jsmith", "example.com");
+    AuthenticationResponse first = fam.authenticate(id);
+    AuthenticationResponse second = fam.authenticate(id);
+    assertTrue(first.isValid());
+    assertTrue(second.isValid());
+    assertEquals(getPrincipalNames(first.getGroups()),
+        getPrincipalNames(second.getGroups()));
+    verify(uc, conn, user);
+  }
+
   @Test
   public void testGroupLookup_repositoryException() throws RepositoryException {
     IUserContext uc = createMock(IUserContext.class);
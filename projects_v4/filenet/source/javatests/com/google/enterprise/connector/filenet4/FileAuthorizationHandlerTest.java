@@ -22,10 +22,14 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.isNull;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.same;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assume.assumeTrue;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.enterprise.connector.filenet4.EngineCollectionMocks.ActiveMarkingListMock;
 import com.google.enterprise.connector.filenet4.EngineCollectionMocks.PropertyDefinitionListMock;
 import com.google.enterprise.connector.filenet4.api.IDocument;
@@ -44,13 +48,17 @@ import com.filenet.api.collection.ActiveMarkingList;
 import com.filenet.api.constants.ClassNames;
 import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.security.ActiveMarking;
+import com.filenet.api.security.Group;
 import com.filenet.api.security.Marking;
 import com.filenet.api.security.MarkingSet;
-import com.filenet.api.security.User;
 import com.filenet.api.util.Id;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 public class FileAuthorizationHandlerTest {
   /** A more readable way to specify the connector check_markings config. */
   private enum MarkingsConfig { CHECK, SKIP };
@@ -148,8 +156,8 @@ public class FileAuthorizationHandlerTest {
     expect(objectStore.getObject(ClassNames.VERSION_SERIES, docid))
         .andReturn(vs);
 
-    User user = createMock(User.class);
-    expect(user.get_Name()).andStubReturn("Jane Doe");
+    UserProfile user = new UserProfile(new UserMock("jdoe", "Jane Doe",
+        "cn=Jane Doe", "jdoe@example.com", ImmutableList.<Group>of()));
 
     Permissions permissions = createMock(Permissions.class);
     expect(permissions.authorize(user)).andReturn(isAuthorized);
@@ -157,14 +165,14 @@ public class FileAuthorizationHandlerTest {
       expect(permissions.authorizeMarking(eq(user), anyInt()))
           .andReturn(isMarkingAuthorized);
     }
-    replay(marking, activeMarking, doc, vs, objectStore, user, permissions);
+    replay(marking, activeMarking, doc, vs, objectStore, permissions);
 
     FileAuthorizationHandler out = new FileAuthorizationHandler(null, null,
         objectStore, true, new MockPermissionsFactory(permissions));
 
     assertEquals(new AuthorizationResponse(expectedIsValid, docid),
         out.authorizeDocid(docid, user, authorizeMarkings));
-    verify(marking, activeMarking, doc, vs, objectStore, user, permissions);
+    verify(marking, activeMarking, doc, vs, objectStore, permissions);
   }
 
   @Test
@@ -203,8 +211,9 @@ public class FileAuthorizationHandlerTest {
     IObjectStore objectStore = createMock(IObjectStore.class);
     expect(objectStore.getObject(ClassNames.VERSION_SERIES, docid))
         .andThrow(thrown);
-    User user = createNiceMock(User.class);
-    replay(objectStore, user);
+    UserProfile user = new UserProfile(new UserMock("jdoe", "Jane Doe",
+        "cn=Jane Doe", "jdoe@example.com", ImmutableList.<Group>of()));
+    replay(objectStore);
 
     FileAuthorizationHandler out = new FileAuthorizationHandler(null, null,
         objectStore, true, null);
@@ -216,7 +225,92 @@ public class FileAuthorizationHandlerTest {
         throw caught;
       }
     }
-    verify(objectStore, user);
+    verify(objectStore);
+  }
+
+  private static final String DOCID1 = "{AAAAAAAA-0000-0000-0000-000000000001}";
+  private static final String DOCID2 = "{AAAAAAAA-0000-0000-0000-000000000002}";
+
+  @Test
+  public void testAuthorizeDocids() throws RepositoryException {
+    IDocument doc = createNiceMock(IDocument.class);
+    IObjectStore objectStore = createMock(IObjectStore.class);
+    expect(objectStore.fetchReleasedVersions(
+            eq(ImmutableList.of(new Id(DOCID1), new Id(DOCID2))),
+            same(FileAuthorizationHandler.RELEASED_VERSION_SELECT),
+            same(FileAuthorizationHandler.RELEASED_VERSION_FILTER)))
+        .andReturn(ImmutableMap.<Id, IDocument>of(new Id(DOCID1), doc));
+    UserProfile user = new UserProfile(new UserMock("jdoe", "Jane Doe",
+        "cn=Jane Doe", "jdoe@example.com", ImmutableList.<Group>of()));
+    Permissions permissions = createMock(Permissions.class);
+    expect(permissions.authorize(user)).andReturn(true);
+    replay(doc, objectStore, permissions);
+
+    FileAuthorizationHandler out = new FileAuthorizationHandler(null, null,
+        objectStore, true, new MockPermissionsFactory(permissions));
+
+    // The missing released version is not authorized, and not looked up
+    // individually.
+    assertEquals(
+        ImmutableList.of(new AuthorizationResponse(true, DOCID1),
+            new AuthorizationResponse(false, DOCID2)),
+        out.authorizeDocids(ImmutableList.of(DOCID1, DOCID2), user, false));
+    verify(doc, objectStore, permissions);
+  }
+
+  @Test
+  public void testAuthorizeDocids_fetchException()
+      throws RepositoryException {
+    IDocument doc = createNiceMock(IDocument.class);
+    IVersionSeries vs = createMock(IVersionSeries.class);
+    expect(vs.get_ReleasedVersion()).andReturn(doc);
+    IObjectStore objectStore = createMock(IObjectStore.class);
+    expect(objectStore.fetchReleasedVersions(
+            eq(ImmutableList.of(new Id(DOCID1))),
+            same(FileAuthorizationHandler.RELEASED_VERSION_MARKINGS_SELECT),
+            same(FileAuthorizationHandler.RELEASED_VERSION_MARKINGS_FILTER)))
+        .andThrow(new RepositoryException("pretend something bad happened"));
+    expect(objectStore.getObject(ClassNames.VERSION_SERIES, DOCID1))
+        .andReturn(vs);
+    expect(doc.get_ActiveMarkings()).andReturn(new ActiveMarkingListMock());
+    UserProfile user = new UserProfile(new UserMock("jdoe", "Jane Doe",
+        "cn=Jane Doe", "jdoe@example.com", ImmutableList.<Group>of()));
+    Permissions permissions = createMock(Permissions.class);
+    expect(permissions.authorize(user)).andReturn(true);
+    replay(doc, vs, objectStore, permissions);
+
+    FileAuthorizationHandler out = new FileAuthorizationHandler(null, null,
+        objectStore, true, new MockPermissionsFactory(permissions));
+
+    assertEquals(ImmutableList.of(new AuthorizationResponse(true, DOCID1)),
+        out.authorizeDocids(ImmutableList.of(DOCID1), user, true));
+    verify(doc, vs, objectStore, permissions);
+  }
+
+  @Test
+  public void testAuthorizeDocids_pages() throws RepositoryException {
+    List<String> docids = new ArrayList<String>();
+    for (int i = 0; i <= FileAuthorizationHandler.MAX_FETCH_SIZE; i++) {
+      docids.add(String.format("{AAAAAAAA-0000-0000-0000-%012d}", i));
+    }
+    IObjectStore objectStore = createMock(IObjectStore.class);
+    expect(objectStore.fetchReleasedVersions(isA(Collection.class),
+            isA(Collection.class), isA(PropertyFilter.class)))
+        .andReturn(ImmutableMap.<Id, IDocument>of()).times(2);
+    replay(objectStore);
+
+    FileAuthorizationHandler out = new FileAuthorizationHandler(null, null,
+        objectStore, true, null);
+
+    Collection<AuthorizationResponse> responses = out.authorizeDocids(docids,
+        new UserProfile(new UserMock("jdoe", "Jane Doe", "cn=Jane Doe",
+            "jdoe@example.com", ImmutableList.<Group>of())),
+        false);
+    assertEquals(docids.size(), responses.size());
+    for (AuthorizationResponse response : responses) {
+      assertFalse(response.isValid());
+    }
+    verify(objectStore);
   }
 
   @Test
@@ -233,12 +327,13 @@ public class FileAuthorizationHandlerTest {
 
     FileSession fs = (FileSession) connec.login();
     FileAuthorizationHandler out = fs.getFileAuthorizationHandler();
-    User user = out.getUser(new SimpleAuthenticationIdentity(
+    UserProfile user = out.getUser(new SimpleAuthenticationIdentity(
         TestConnection.adminUsername, TestConnection.adminPassword));
     IDocument doc = out.getReleasedVersion(TestConnection.docVsId1);
     ActiveMarkingList activeMarkingList = doc.get_ActiveMarkings();
 
-    assertEquals(true, out.authorizeMarking(user, activeMarkingList));
+    assertEquals(true,
+        out.authorizeMarking(user, activeMarkingList));
   }
 
   private static class MockPermissionsFactory implements Permissions.Factory {
@@ -29,16 +29,19 @@ import com.google.enterprise.connector.spi.Session;
 import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
 
 import com.filenet.api.security.Group;
-import com.filenet.api.security.User;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class FileAuthorizationManagerTest {
 
@@ -80,18 +83,36 @@ public class FileAuthorizationManagerTest {
 
     @Override public boolean hasMarkings() { return false; }
 
-    @Override public User getUser(AuthenticationIdentity identity) {
+    @Override public UserProfile getUser(AuthenticationIdentity identity) {
       String username = identity.getUsername();
-      return new UserMock(username, username, username, username,
-          ImmutableList.<Group>of());
+      return new UserProfile(new UserMock(username, username, username,
+          username, ImmutableList.<Group>of()));
     }
 
     @Override
-    public AuthorizationResponse authorizeDocid(String docid, User user,
+    public AuthorizationResponse authorizeDocid(String docid, UserProfile user,
         boolean checkMarkings) throws RepositoryException {
       threads.add(Thread.currentThread().getName());
       return new AuthorizationResponse(true, docid);
     }
+
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        Collection<String> docids, UserProfile user, boolean checkMarkings)
+        throws RepositoryException {
+      threads.add(Thread.currentThread().getName());
+      return authorizeAll(docids);
+    }
+
+    protected static Collection<AuthorizationResponse> authorizeAll(
+        Collection<String> docids) {
+      List<AuthorizationResponse> responses =
+          new ArrayList<AuthorizationResponse>();
+      for (String docid : docids) {
+        responses.add(new AuthorizationResponse(true, docid));
+      }
+      return responses;
+    }
   }
 
   /**
@@ -114,6 +135,150 @@ public class FileAuthorizationManagerTest {
         + " processors.", handler.threads.size() > 1);
   }
 
+  /** A mock that does not respond until it is released. */
+  private static class BlockingAuthorizationHandler
+      extends MockAuthorizationHandler {
+    public final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        Collection<String> docids, UserProfile user, boolean checkMarkings)
+        throws RepositoryException {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return super.authorizeDocids(docids, user, checkMarkings);
+    }
+  }
+
+  /**
+   * Tests that the docids are returned as indeterminate when the
+   * handler does not respond in time.
+   */
+  @Test
+  public void testTimeout() throws RepositoryException {
+    BlockingAuthorizationHandler handler = new BlockingAuthorizationHandler();
+    AuthorizationManager fam = new FileAuthorizationManager(handler,
+        FileAuthorizationManager.newExecutor(), 100L);
+
+    try {
+      List<String> docids = ImmutableList.of("1", "2", "3");
+      Collection<AuthorizationResponse> responses = fam.authorizeDocids(
+          docids, new SimpleAuthenticationIdentity("jdoe", null));
+
+      assertEquals(docids.size(), responses.size());
+      for (AuthorizationResponse response : responses) {
+        assertEquals(AuthorizationResponse.Status.INDETERMINATE,
+            response.getStatus());
+      }
+    } finally {
+      handler.release.countDown();
+    }
+  }
+
+  /** A mock that does not respond to the page with the given docid. */
+  private static class SlowPageAuthorizationHandler
+      extends BlockingAuthorizationHandler {
+    private final String slowDocid;
+
+    SlowPageAuthorizationHandler(String slowDocid) {
+      this.slowDocid = slowDocid;
+    }
+
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        Collection<String> docids, UserProfile user, boolean checkMarkings)
+        throws RepositoryException {
+      if (docids.contains(slowDocid)) {
+        return super.authorizeDocids(docids, user, checkMarkings);
+      } else {
+        return authorizeAll(docids);
+      }
+    }
+  }
+
+  /**
+   * Tests that the pages that are done before the timeout are returned,
+   * and only the slow page is indeterminate.
+   */
+  @Test
+  public void testTimeout_partialResults() throws RepositoryException {
+    SlowPageAuthorizationHandler handler =
+        new SlowPageAuthorizationHandler("150");
+    AuthorizationManager fam = new FileAuthorizationManager(handler,
+        FileAuthorizationManager.newExecutor(), 500L);
+
+    try {
+      List<String> docids = new ArrayList<String>();
+      for (int i = 0; i < 2 * FileAuthorizationHandler.MAX_FETCH_SIZE; i++) {
+        docids.add(String.valueOf(i));
+      }
+      Collection<AuthorizationResponse> responses = fam.authorizeDocids(
+          docids, new SimpleAuthenticationIdentity("jdoe", null));
+
+      assertEquals(docids.size(), responses.size());
+      int valid = 0;
+      for (AuthorizationResponse response : responses) {
+        if (response.getDocid().equals("150")) {
+          assertEquals(AuthorizationResponse.Status.INDETERMINATE,
+              response.getStatus());
+        } else if (response.isValid()) {
+          valid++;
+        }
+      }
+      // At most one page is indeterminate.
+      assertTrue(String.valueOf(valid),
+          valid >= FileAuthorizationHandler.MAX_FETCH_SIZE);
+    } finally {
+      handler.release.countDown();
+    }
+  }
+
+  /**
+   * Tests that the docids are returned as indeterminate when the
+   * executor is saturated, rather than authorized on this thread.
+   */
+  @Test
+  public void testRejected() throws Exception {
+    MockAuthorizationHandler handler = new MockAuthorizationHandler();
+    AuthorizationExecutor executor = new AuthorizationExecutor(1, 1);
+    AuthorizationManager fam =
+        new FileAuthorizationManager(handler, executor, 10000L);
+
+    // Occupy the thread and fill the queue.
+    final CountDownLatch release = new CountDownLatch(1);
+    Runnable blocker = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+    Future<?> running = executor.submit(blocker);
+    Future<?> queued = executor.submit(blocker);
+    try {
+      List<String> docids = ImmutableList.of("1", "2", "3");
+      Collection<AuthorizationResponse> responses = fam.authorizeDocids(
+          docids, new SimpleAuthenticationIdentity("jdoe", null));
+
+      assertEquals(docids.size(), responses.size());
+      for (AuthorizationResponse response : responses) {
+        assertEquals(AuthorizationResponse.Status.INDETERMINATE,
+            response.getStatus());
+      }
+      assertTrue(handler.threads.toString(), handler.threads.isEmpty());
+    } finally {
+      release.countDown();
+    }
+    running.get(10, TimeUnit.SECONDS);
+    queued.get(10, TimeUnit.SECONDS);
+  }
+
   private void testAuthorization(AuthorizationManager fam,
       Map<String, Boolean> expectedResults, String username)
       throws RepositoryException {
@@ -20,7 +20,14 @@ import static com.google.enterprise.connector.filenet4.ObjectMocks.mockDeletionE
 import static com.google.enterprise.connector.filenet4.ObjectMocks.mockDocument;
 import static com.google.enterprise.connector.filenet4.ObjectMocks.newId;
 import static com.google.enterprise.connector.filenet4.ObjectMocks.newObjectStore;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.isNull;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -32,6 +39,9 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.filenet4.Checkpoint.JsonField;
 import com.google.enterprise.connector.filenet4.EngineCollectionMocks.IndependentObjectSetMock;
+import com.google.enterprise.connector.filenet4.EngineCollectionMocks.PropertyDefinitionListMock;
+import com.google.enterprise.connector.filenet4.api.IBaseObject;
+import com.google.enterprise.connector.filenet4.api.IObjectFactory;
 import com.google.enterprise.connector.filenet4.api.IObjectStore;
 import com.google.enterprise.connector.filenet4.api.MockObjectStore;
 import com.google.enterprise.connector.spi.Document;
@@ -45,10 +55,13 @@ import com.google.enterprise.connector.spi.SpiConstants.ActionType;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.Value;
 
+import com.filenet.api.admin.PropertyDefinition;
 import com.filenet.api.collection.IndependentObjectSet;
 import com.filenet.api.constants.ClassNames;
 import com.filenet.api.constants.DatabaseType;
+import com.filenet.api.constants.PropertyNames;
 import com.filenet.api.core.IndependentObject;
+import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.util.Id;
 
 import org.json.JSONException;
@@ -63,10 +76,15 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 public class FileDocumentListTest {
@@ -239,12 +257,31 @@ public class FileDocumentListTest {
         getDeletionEvents(os, deEntries, true));
   }
 
+  /**
+   * Tests the natural ordering of SearchObjects. The object sets
+   * returned by the queries are sorted, and FileDocumentList relies
+   * on this ordering matching the ordering used by the database.
+   */
   private void testSorting(int[] expectedOrder, String[][] entries,
       DatabaseType dbType) throws Exception {
     MockObjectStore os = newObjectStore(dbType);
-    IndependentObjectSet documents = getDocuments(os, entries, true);
-    testSorting(expectedOrder, entries, os,
-        documents, new EmptyObjectSet(), new EmptyObjectSet());
+    List<SearchObject> objects = new ArrayList<>(entries.length);
+    for (String[] entry : entries) {
+      objects.add(new SearchObject(mockDocument(os, entry[0], entry[1], true),
+              dbType, SearchObject.Type.ADD));
+    }
+    Collections.sort(objects);
+
+    List<String> expected = new ArrayList<>(expectedOrder.length);
+    for (int index : expectedOrder) {
+      expected.add(newId(entries[index][0]).toString());
+    }
+    List<String> actual = new ArrayList<>(objects.size());
+    for (SearchObject object : objects) {
+      actual.add(object.get_Id().toString());
+    }
+    assertEquals("[" + dbType + "] Incorrect id sorting order",
+        expected, actual);
   }
 
   private void testSorting(int[] expectedOrder, String[][] entries,
@@ -551,6 +588,303 @@ public class FileDocumentListTest {
     }
   }
 
+  @Test
+  public void testFetchDocuments() throws Exception {
+    final List<List<Id>> fetches = new ArrayList<>();
+    final List<Collection<String>> selected = new ArrayList<>();
+    MockObjectStore os = new MockObjectStore(DatabaseType.MSSQL) {
+        @Override
+        public IBaseObject fetchObject(String type, Id id,
+            PropertyFilter filter) {
+          throw new AssertionError("Unexpected fetch of " + type + " " + id);
+        }
+
+        @Override
+        public Map<Id, IBaseObject> fetchObjects(String type,
+            Collection<Id> ids, Collection<String> propertyNames,
+            PropertyFilter filter) throws RepositoryException {
+          fetches.add(ImmutableList.copyOf(ids));
+          selected.add(propertyNames);
+          return super.fetchObjects(type, ids, propertyNames, filter);
+        }
+      };
+
+    DocumentList docList = getObjectUnderTest(os,
+        getDocuments(os, docEntries, true), new EmptyObjectSet(),
+        new EmptyObjectSet());
+    int count = 0;
+    for (Document doc = docList.nextDocument(); doc != null;
+         doc = docList.nextDocument()) {
+      assertNotNull(doc.findProperty(SpiConstants.PROPNAME_DOCID));
+      count++;
+    }
+    assertEquals(docEntries.length, count);
+    assertEquals(fetches.toString(), 1, fetches.size());
+    assertEquals(docEntries.length, fetches.get(0).size());
+
+    // The search only returns the selected properties, so it must
+    // select everything in the property filter that is on Document.
+    Set<String> expected = new HashSet<>(connec.getDocumentPropertyNames());
+    expected.removeAll(ImmutableSet.of(PropertyNames.VERSION_SERIES_ID,
+            PropertyNames.PERMISSION_TYPE, PropertyNames.PERMISSION_SOURCE));
+    assertEquals(expected, selected.get(0));
+  }
+
+  @Test
+  public void testFetchDocuments_searchFails() throws Exception {
+    final List<List<Id>> fetches = new ArrayList<>();
+    MockObjectStore os = new MockObjectStore(DatabaseType.MSSQL) {
+        @Override
+        public Map<Id, IBaseObject> fetchObjects(String type,
+            Collection<Id> ids, Collection<String> propertyNames,
+            PropertyFilter filter) throws RepositoryException {
+          fetches.add(ImmutableList.copyOf(ids));
+          throw new RepositoryException("Search failed");
+        }
+      };
+    String[][] entries = new String[150][];
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = new String[] {
+        String.format("AAAAAAAA-%04d", i), CHECKPOINT_TIMESTAMP };
+    }
+
+    DocumentList docList = getObjectUnderTest(os,
+        getDocuments(os, entries, true), new EmptyObjectSet(),
+        new EmptyObjectSet());
+    int count = 0;
+    while (docList.nextDocument() != null) {
+      count++;
+    }
+    assertEquals(entries.length, count);
+    // The second page is not searched after the first search failed.
+    assertEquals(1, fetches.size());
+  }
+
+  /**
+   * Traverses the documents with a Document class that has the given
+   * properties.
+   */
+  private void traverseDocuments(MockObjectStore os,
+      IndependentObjectSet docSet, Set<String> documentNames)
+      throws RepositoryException {
+    List<PropertyDefinition> definitions = new ArrayList<>();
+    for (String name : documentNames) {
+      PropertyDefinition definition = createMock(PropertyDefinition.class);
+      expect(definition.get_SymbolicName()).andReturn(name);
+      replay(definition);
+      definitions.add(definition);
+    }
+    IObjectFactory factory = createMock(IObjectFactory.class);
+    expect(factory.getPropertyDefinitions(isA(IObjectStore.class),
+            isA(Id.class), isNull(PropertyFilter.class)))
+        .andReturn(new PropertyDefinitionListMock(
+                definitions.toArray(new PropertyDefinition[0])));
+    replay(factory);
+
+    DocumentList docList = new FileDocumentList(docSet, new EmptyObjectSet(),
+        new EmptyObjectSet(), os, connec, getTraversalContext(),
+        new Checkpoint(CHECKPOINT), null, 0,
+        new MarkingSetCache(null, factory, os), AuthorizationCache.DISABLED);
+    int count = 0;
+    for (Document doc = docList.nextDocument(); doc != null;
+         doc = docList.nextDocument()) {
+      count++;
+    }
+    assertEquals(docEntries.length, count);
+    verify(factory);
+  }
+
+  @Test
+  public void testFetchDocuments_documentProperties() throws Exception {
+    connec.setIncluded_meta(ImmutableSet.of("DocumentTitle", "CustomProp"));
+    final List<Collection<String>> selected = new ArrayList<>();
+    MockObjectStore os = new MockObjectStore(DatabaseType.MSSQL) {
+        @Override
+        public Map<Id, IBaseObject> fetchObjects(String type,
+            Collection<Id> ids, Collection<String> propertyNames,
+            PropertyFilter filter) throws RepositoryException {
+          selected.add(propertyNames);
+          return super.fetchObjects(type, ids, propertyNames, filter);
+        }
+      };
+
+    // The definitions use a different case than the property filter.
+    Set<String> documentNames = new HashSet<>();
+    for (String name : connec.getDocumentPropertyNames()) {
+      documentNames.add(name.toLowerCase());
+    }
+    traverseDocuments(os, getDocuments(os, docEntries, true), documentNames);
+    assertEquals(1, selected.size());
+    assertTrue(selected.toString(), selected.get(0).contains("CustomProp"));
+    assertFalse(selected.toString(),
+        selected.get(0).contains(PropertyNames.VERSION_SERIES_ID));
+  }
+
+  @Test
+  public void testFetchDocuments_undefinedProperty() throws Exception {
+    connec.setIncluded_meta(ImmutableSet.of("DocumentTitle", "CustomProp"));
+    final List<Collection<String>> selected = new ArrayList<>();
+    MockObjectStore os = new MockObjectStore(DatabaseType.MSSQL) {
+        @Override
+        public Map<Id, IBaseObject> fetchObjects(String type,
+            Collection<Id> ids, Collection<String> propertyNames,
+            PropertyFilter filter) throws RepositoryException {
+          selected.add(propertyNames);
+          return super.fetchObjects(type, ids, propertyNames, filter);
+        }
+      };
+
+    // A search cannot select CustomProp, so each document is fetched.
+    Set<String> documentNames =
+        new HashSet<>(connec.getDocumentPropertyNames());
+    documentNames.remove("CustomProp");
+    traverseDocuments(os, getDocuments(os, docEntries, true), documentNames);
+    assertEquals(0, selected.size());
+  }
+
+  @Test
+  public void testFetchVersionSeries() throws Exception {
+    MockObjectStore os = newObjectStore(DatabaseType.MSSQL);
+    List<IndependentObject> events = new ArrayList<>();
+    events.add(mockDeletionEvent(os, "AAAAAAA1-AAAA", "AAAAAAA1-0000",
+            "2014-02-01T08:00:00.100", true));
+    events.add(mockDeletionEvent(os, "AAAAAAA2-AAAA", "AAAAAAA2-0000",
+            "2014-02-02T08:00:00.100", false));
+    events.add(mockDeletionEvent(os, "AAAAAAA3-AAAA", "AAAAAAA3-0000",
+            "2014-02-03T08:00:00.100", true));
+
+    FileDocumentList docList = (FileDocumentList) getObjectUnderTest(os,
+        new EmptyObjectSet(), new EmptyObjectSet(),
+        new IndependentObjectSetMock(events));
+    List<String> deleted = new ArrayList<>();
+    int skipped = 0;
+    while (true) {
+      try {
+        Document doc = docList.nextDocument();
+        if (doc == null) {
+          break;
+        }
+        deleted.add(Value.getSingleValueString(doc,
+                SpiConstants.PROPNAME_DOCID));
+      } catch (SkippedDocumentException expected) {
+        skipped++;
+      }
+    }
+    assertEquals(ImmutableList.of(newId("AAAAAAA1-AAAA").toString(),
+            newId("AAAAAAA3-AAAA").toString()), deleted);
+    assertEquals(1, skipped);
+    assertEquals(events.size(), docList.getAvoidedLookups());
+  }
+
+  @Test
+  public void testFetchVersionSeries_nullId() throws Exception {
+    final List<Collection<Id>> searches = new ArrayList<>();
+    MockObjectStore os = new MockObjectStore(DatabaseType.MSSQL) {
+        @Override
+        public Set<Id> findVersionSeries(Collection<Id> versionSeriesIds)
+            throws RepositoryException {
+          searches.add(ImmutableSet.copyOf(versionSeriesIds));
+          return super.findVersionSeries(versionSeriesIds);
+        }
+      };
+    List<IndependentObject> events = new ArrayList<>();
+    events.add(mockDeletionEvent(os, "AAAAAAA1-AAAA", "AAAAAAA1-0000",
+            "2014-02-01T08:00:00.100", true));
+    events.add(mockDeletionEvent(os, null, "AAAAAAA2-0000",
+            "2014-02-02T08:00:00.100", true));
+    events.add(mockDeletionEvent(os, "AAAAAAA3-AAAA", "AAAAAAA3-0000",
+            "2014-02-03T08:00:00.100", false));
+
+    FileDocumentList docList = (FileDocumentList) getObjectUnderTest(os,
+        new EmptyObjectSet(), new EmptyObjectSet(),
+        new IndependentObjectSetMock(events));
+    int deleted = 0;
+    int skipped = 0;
+    while (true) {
+      try {
+        if (docList.nextDocument() == null) {
+          break;
+        }
+        deleted++;
+      } catch (SkippedDocumentException expected) {
+        skipped++;
+      }
+    }
+    // The event without a version series ID looks up its own.
+    assertEquals(ImmutableList.of(ImmutableSet.of(newId("AAAAAAA1-AAAA"),
+                newId("AAAAAAA3-AAAA"))), searches);
+    assertEquals(2, deleted);
+    assertEquals(1, skipped);
+    assertEquals(2, docList.getAvoidedLookups());
+  }
+
+  @Test
+  public void testLazyMerge() throws Exception {
+    final List<List<Id>> fetches = new ArrayList<>();
+    MockObjectStore os = new MockObjectStore(DatabaseType.MSSQL) {
+        @Override
+        public Map<Id, IBaseObject> fetchObjects(String type,
+            Collection<Id> ids, Collection<String> propertyNames,
+            PropertyFilter filter) throws RepositoryException {
+          fetches.add(ImmutableList.copyOf(ids));
+          return super.fetchObjects(type, ids, propertyNames, filter);
+        }
+      };
+    String[][] entries = new String[150][];
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = new String[] {
+        String.format("AAAAAAAA-%04d", i), CHECKPOINT_TIMESTAMP };
+    }
+
+    DocumentList docList = getObjectUnderTest(os,
+        getDocuments(os, entries, true), new EmptyObjectSet(),
+        new EmptyObjectSet());
+    assertEquals(0, fetches.size());
+
+    assertNotNull(docList.nextDocument());
+    assertEquals(1, fetches.size());
+    assertEquals(100, fetches.get(0).size());
+
+    int count = 1;
+    while (docList.nextDocument() != null) {
+      count++;
+    }
+    assertEquals(entries.length, count);
+    assertEquals(2, fetches.size());
+    assertEquals(50, fetches.get(1).size());
+  }
+
+  @Test
+  public void testFetchAhead() throws Exception {
+    MockObjectStore os = newObjectStore(DatabaseType.MSSQL);
+    String[][] entries = new String[10][];
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = new String[] {
+        String.format("AAAAAAAA-%04d", i), CHECKPOINT_TIMESTAMP };
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      DocumentList docList = new FileDocumentList(
+          getDocuments(os, entries, true), new EmptyObjectSet(),
+          new EmptyObjectSet(), null, os, connec, getTraversalContext(),
+          new Checkpoint(CHECKPOINT), executor, 4);
+      for (String[] entry : entries) {
+        Document doc = docList.nextDocument();
+        assertNotNull(doc);
+        assertEquals(newId(entry[0]).toString(),
+            Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+      }
+      assertNull(docList.nextDocument());
+
+      Checkpoint checkpoint = new Checkpoint(docList.checkpoint());
+      assertEquals(newId(entries[entries.length - 1][0]).toString(),
+          checkpoint.getString(JsonField.UUID));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void testExcludedMimeType() throws Exception {
     MockObjectStore os = newObjectStore(DatabaseType.MSSQL);
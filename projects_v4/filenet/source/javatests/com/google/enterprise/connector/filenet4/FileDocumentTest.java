@@ -49,7 +49,6 @@ import com.filenet.api.util.UserContext;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -67,11 +66,6 @@ public class FileDocumentTest {
   public void setUp() throws Exception {
     assumeTrue(TestConnection.isLiveConnection());
 
-    // Clear the statically cached hasMarkings state.
-    Field field = FileDocument.class.getDeclaredField("hasMarkings");
-    field.setAccessible(true);
-    field.set(null, null);
-
     connec = new FileConnector();
     connec.setUsername(TestConnection.adminUsername);
     connec.setPassword(TestConnection.adminPassword);
@@ -21,22 +21,29 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 
 import com.google.common.collect.ImmutableList;
 import com.google.enterprise.connector.filenet4.Checkpoint.JsonField;
 import com.google.enterprise.connector.filenet4.EngineCollectionMocks.IndependentObjectSetMock;
 import com.google.enterprise.connector.filenet4.api.MockObjectStore;
+import com.google.enterprise.connector.filenet4.api.SearchWrapper;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
 
+import com.filenet.api.collection.IndependentObjectSet;
 import com.filenet.api.constants.DatabaseType;
+import com.filenet.api.constants.GuidConstants;
 import com.filenet.api.constants.PermissionSource;
 import com.filenet.api.core.IndependentObject;
+import com.filenet.api.exception.EngineRuntimeException;
+import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.util.Id;
 
 import org.easymock.Capture;
@@ -45,6 +52,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -190,6 +199,110 @@ public class FileDocumentTraverserTest extends TraverserFactoryFixture {
     verifyAll();
   }
 
+  /**
+   * Records the thread that executes each query, and fails the
+   * deletion event queries if requested.
+   */
+  private static class ThreadSearchMock extends SearchMock {
+    private final List<String> threadNames =
+        Collections.synchronizedList(new ArrayList<String>());
+    private final boolean failDeletionEvents;
+
+    ThreadSearchMock(boolean failDeletionEvents) {
+      this.failDeletionEvents = failDeletionEvents;
+    }
+
+    @Override
+    public IndependentObjectSet fetchObjects(String query, Integer pageSize,
+        PropertyFilter filter, Boolean continuable) {
+      threadNames.add(Thread.currentThread().getName());
+      if (failDeletionEvents && query.contains(
+              GuidConstants.Class_DeletionEvent.toString())) {
+        throw new EngineRuntimeException();
+      }
+      return new EmptyObjectSet();
+    }
+
+    List<String> getThreadNames() {
+      return threadNames;
+    }
+  }
+
+  @Test
+  public void testGetDocumentList_parallelQueries() throws Exception {
+    connec.setDelete_additional_where_clause("and 1=1");
+    connec.setParallelQueries(true);
+
+    MockObjectStore objectStore = newObjectStore(DatabaseType.ORACLE);
+    ThreadSearchMock search = new ThreadSearchMock(false);
+    Traverser traverser =
+        getFileDocumentTraverser(connec, objectStore, search);
+    DocumentList docList = traverser.getDocumentList(new Checkpoint());
+    assertNull(docList);
+    List<String> threadNames = search.getThreadNames();
+    assertEquals(threadNames.toString(), 3, threadNames.size());
+    for (String threadName : threadNames) {
+      assertTrue(threadName,
+          threadName.startsWith("FileDocumentTraverser-query-"));
+    }
+    verifyAll();
+  }
+
+  @Test
+  public void testGetDocumentList_sequentialQueries() throws Exception {
+    connec.setDelete_additional_where_clause("and 1=1");
+
+    MockObjectStore objectStore = newObjectStore(DatabaseType.ORACLE);
+    ThreadSearchMock search = new ThreadSearchMock(false);
+    Traverser traverser =
+        getFileDocumentTraverser(connec, objectStore, search);
+    assertNull(traverser.getDocumentList(new Checkpoint()));
+    String threadName = Thread.currentThread().getName();
+    assertEquals(ImmutableList.of(threadName, threadName, threadName),
+        search.getThreadNames());
+    verifyAll();
+  }
+
+  @Test
+  public void testGetDocumentList_parallelQueryFails() throws Exception {
+    connec.setDelete_additional_where_clause("and 1=1");
+    connec.setParallelQueries(true);
+
+    MockObjectStore objectStore = newObjectStore(DatabaseType.ORACLE);
+    ThreadSearchMock search = new ThreadSearchMock(true);
+    Traverser traverser =
+        getFileDocumentTraverser(connec, objectStore, search);
+    try {
+      traverser.getDocumentList(new Checkpoint());
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+      assertTrue(String.valueOf(expected.getCause()),
+          expected.getCause() instanceof EngineRuntimeException);
+    }
+    verifyAll();
+  }
+
+  @Test
+  public void testGetDocumentList_filters() throws Exception {
+    connec.setDelete_additional_where_clause("and 1=1");
+
+    MockObjectStore objectStore = newObjectStore(DatabaseType.ORACLE);
+    Capture<String> capture = new Capture<>(CaptureType.ALL);
+    Capture<PropertyFilter> filterCapture = new Capture<>(CaptureType.ALL);
+    Traverser traverser = getFileDocumentTraverser(connec, objectStore,
+        new EmptyObjectSet(), capture, filterCapture);
+    assertNull(traverser.getDocumentList(new Checkpoint()));
+    List<PropertyFilter> filters = filterCapture.getValues();
+    assertEquals(filters.toString(), 3, filters.size());
+
+    // Only the delete queries dereference object properties.
+    assertSame(FileDocumentTraverser.ADD_FILTER, filters.get(0));
+    assertEquals(Integer.valueOf(0), filters.get(0).getMaxRecursion());
+    assertSame(SearchWrapper.dereferenceObjects, filters.get(1));
+    assertSame(SearchWrapper.dereferenceObjects, filters.get(2));
+    verifyAll();
+  }
+
   private String prefix(String whereClause) {
     return whereClause.substring(0, whereClause.indexOf('{'));
   }
@@ -206,7 +319,8 @@ public class FileDocumentTraverserTest extends TraverserFactoryFixture {
    * instead.
    */
   private void testGetCheckpointClause(JsonField dateField, JsonField uuidField,
-      boolean useIdForChangeDetection, String whereClause) throws Exception {
+      boolean useIdForChangeDetection, KeysetQuery query, String whereClause)
+      throws Exception {
     String expectedId = "{AAAAAAAA-0000-0000-0000-000000000000}";
 
     // Dates in the query string are in the local time zone, which
@@ -226,27 +340,28 @@ public class FileDocumentTraverserTest extends TraverserFactoryFixture {
         .replace("{0}", expectedDateString)
         .replace("{1}", expectedId)
         .replace("''", "'"),
-        traverser.getCheckpointClause(cp, dateField, uuidField,
-            useIdForChangeDetection ? whereClause : "",
-            useIdForChangeDetection ? "" : whereClause));
+        traverser.getCheckpointClause(cp, dateField, uuidField, query));
   }
 
   @Test
   public void testGetCheckpointClause() throws Exception {
     testGetCheckpointClause(JsonField.LAST_MODIFIED_TIME,
-        JsonField.UUID, true, FileDocumentTraverser.WHERE_CLAUSE);
+        JsonField.UUID, true, FileDocumentTraverser.ADD_QUERY,
+        FileDocumentTraverser.WHERE_CLAUSE);
   }
 
   @Test
   public void testGetCheckpointClause_onlyDate() throws Exception {
     testGetCheckpointClause(JsonField.LAST_MODIFIED_TIME,
-        JsonField.UUID, false, FileDocumentTraverser.WHERE_CLAUSE_ONLY_DATE);
+        JsonField.UUID, false, FileDocumentTraverser.ADD_QUERY,
+        FileDocumentTraverser.WHERE_CLAUSE_ONLY_DATE);
   }
 
   @Test
   public void testGetCheckpointClauseToDeleteDocs() throws Exception {
     testGetCheckpointClause(JsonField.LAST_CUSTOM_DELETION_TIME,
         JsonField.UUID_CUSTOM_DELETED_DOC, true,
+        FileDocumentTraverser.DELETE_DOCS_QUERY,
         FileDocumentTraverser.WHERE_CLAUSE_TO_DELETE_DOCS);
   }
 
@@ -254,6 +369,7 @@ public class FileDocumentTraverserTest extends TraverserFactoryFixture {
   public void testGetCheckpointClauseToDeleteDocs_onlyDate() throws Exception {
     testGetCheckpointClause(JsonField.LAST_CUSTOM_DELETION_TIME,
         JsonField.UUID_CUSTOM_DELETED_DOC, false,
+        FileDocumentTraverser.DELETE_DOCS_QUERY,
         FileDocumentTraverser.WHERE_CLAUSE_TO_DELETE_DOCS_ONLY_DATE);
   }
 
@@ -261,6 +377,7 @@ public class FileDocumentTraverserTest extends TraverserFactoryFixture {
   public void testGetCheckpointClauseToDelete() throws Exception {
     testGetCheckpointClause(JsonField.LAST_DELETION_EVENT_TIME,
         JsonField.UUID_DELETION_EVENT, true,
+        FileDocumentTraverser.DELETION_EVENT_QUERY,
         FileDocumentTraverser.WHERE_CLAUSE_TO_DELETE);
   }
 
@@ -268,6 +385,7 @@ public class FileDocumentTraverserTest extends TraverserFactoryFixture {
   public void testGetCheckpointClauseToDelete_onlyDate() throws Exception {
     testGetCheckpointClause(JsonField.LAST_DELETION_EVENT_TIME,
         JsonField.UUID_DELETION_EVENT, false,
+        FileDocumentTraverser.DELETION_EVENT_QUERY,
         FileDocumentTraverser.WHERE_CLAUSE_TO_DELETE_ONLY_DATE);
   }
 }
@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.filenet4;
 
 import static com.google.enterprise.connector.filenet4.SpiMocks.mockDocument;
+import static com.google.enterprise.connector.filenet4.SpiMocks.mockDocumentList;
 import static com.google.enterprise.connector.filenet4.SpiMocks.mockTraverser;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
@@ -22,7 +23,12 @@ import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.filenet4.api.IConnection;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.RepositoryException;
@@ -30,10 +36,18 @@ import com.google.enterprise.connector.spi.SimpleTraversalContext;
 import com.google.enterprise.connector.spi.TraversalManager;
 import com.google.enterprise.connector.util.EmptyDocumentList;
 
+import com.filenet.api.util.UserContext;
+
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
 
 public class FileTraversalManagerTest {
   private static final DocumentList EMPTY_LIST = new EmptyDocumentList("");
@@ -152,4 +166,172 @@ public class FileTraversalManagerTest {
     assertEquals(traverserCount * batchHint, count);
     assertEquals("list 2", docList.checkpoint());
   }
+
+  private DocumentList readAll(DocumentList docList)
+      throws RepositoryException {
+    while (docList.nextDocument() != null) {
+    }
+    return docList;
+  }
+
+  @Test
+  public void testReadAhead_matchingCheckpoint() throws RepositoryException {
+    DocumentList first = mockDocumentList(
+        ImmutableList.of(mockDocument()), "{\"batch\":1}");
+    DocumentList second = mockDocumentList(
+        ImmutableList.of(mockDocument()), "{\"batch\":2}");
+    Traverser traverser = createMock(Traverser.class);
+    expect(traverser.getDocumentList(isA(Checkpoint.class)))
+        .andReturn(first).andReturn(second);
+    replay(traverser);
+
+    FileTraversalManager traversalMgr = new FileTraversalManager(traverser);
+    traversalMgr.setReadAhead(true);
+
+    String checkpoint = readAll(traversalMgr.resumeTraversal("{}"))
+        .checkpoint();
+    assertEquals("{\"batch\":1}", checkpoint);
+    DocumentList docList = traversalMgr.resumeTraversal(checkpoint);
+    assertEquals("{\"batch\":2}", docList.checkpoint());
+    verify(traverser);
+  }
+
+  @Test
+  public void testReadAhead_otherCheckpoint() throws RepositoryException {
+    DocumentList first = mockDocumentList(
+        ImmutableList.of(mockDocument()), "{\"batch\":1}");
+    DocumentList discarded = mockDocumentList(
+        ImmutableList.of(mockDocument()), "{\"batch\":2}");
+    DocumentList second = mockDocumentList(
+        ImmutableList.of(mockDocument()), "{\"batch\":3}");
+    Traverser traverser = createMock(Traverser.class);
+    expect(traverser.getDocumentList(isA(Checkpoint.class)))
+        .andReturn(first).andReturn(discarded).andReturn(second);
+    replay(traverser);
+
+    FileTraversalManager traversalMgr = new FileTraversalManager(traverser);
+    traversalMgr.setReadAhead(true);
+
+    readAll(traversalMgr.resumeTraversal("{}"));
+    DocumentList docList = traversalMgr.resumeTraversal("{\"batch\":0}");
+    assertEquals("{\"batch\":3}", docList.checkpoint());
+    verify(traverser);
+  }
+
+  @Test
+  public void testReadAhead_otherThread() throws Exception {
+    Subject subject = new Subject();
+    IConnection connection = createMock(IConnection.class);
+    expect(connection.getSubject()).andReturn(subject).anyTimes();
+    final List<Subject> subjects = new ArrayList<>();
+    DocumentList first = mockDocumentList(
+        ImmutableList.of(mockDocument()), "{\"batch\":1}");
+    DocumentList second = new DocumentList() {
+        @Override
+        public Document nextDocument() {
+          subjects.add(UserContext.get().getSubject());
+          return mockDocument();
+        }
+
+        @Override
+        public String checkpoint() {
+          return "{\"batch\":2}";
+        }
+      };
+    Traverser traverser = createMock(Traverser.class);
+    expect(traverser.getDocumentList(isA(Checkpoint.class)))
+        .andReturn(first).andReturn(second);
+    replay(connection, traverser);
+
+    final FileTraversalManager traversalMgr =
+        new FileTraversalManager(connection, traverser);
+    traversalMgr.setReadAhead(true);
+    final String checkpoint = readAll(traversalMgr.resumeTraversal("{}"))
+        .checkpoint();
+
+    // Use the document list that was read ahead on a new thread, which
+    // has never had a subject pushed.
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Subject after = executor.submit(new Callable<Subject>() {
+          @Override
+          public Subject call() throws RepositoryException {
+            assertNotNull(
+                traversalMgr.resumeTraversal(checkpoint).nextDocument());
+            return UserContext.get().getSubject();
+          }
+        }).get(10, TimeUnit.SECONDS);
+      assertNotSame(subject, after);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, subjects.size());
+    assertSame(subject, subjects.get(0));
+    verify(connection, traverser);
+  }
+
+  @Test
+  public void testAdaptiveBatchSize() throws RepositoryException {
+    DocumentList first = mockDocumentList(
+        ImmutableList.of(mockDocument()), "{\"batch\":1}");
+    DocumentList second = mockDocumentList(
+        ImmutableList.of(mockDocument()), "{\"batch\":2}");
+    Traverser traverser = createMock(Traverser.class);
+    traverser.setBatchHint(500);
+    expect(traverser.getDocumentList(isA(Checkpoint.class))).andReturn(first);
+    // The documents are returned quickly, so the batch size doubles.
+    traverser.setBatchHint(1000);
+    expect(traverser.getDocumentList(isA(Checkpoint.class)))
+        .andReturn(second);
+    replay(traverser);
+
+    FileTraversalManager traversalMgr = new FileTraversalManager(traverser);
+    traversalMgr.setAdaptiveBatchSize(
+        new AdaptiveBatchSize(10, 2000, 10, TimeUnit.SECONDS));
+    traversalMgr.setBatchHint(500);
+
+    String checkpoint = readAll(traversalMgr.resumeTraversal("{}"))
+        .checkpoint();
+    assertEquals("{\"batch\":1}", checkpoint);
+    DocumentList docList = traversalMgr.resumeTraversal(checkpoint);
+    assertEquals("{\"batch\":2}", docList.checkpoint());
+    verify(traverser);
+  }
+
+  /**
+   * Tests that the time spent using the documents between calls to
+   * nextDocument, as when properties and content are fetched lazily,
+   * counts towards the batch time.
+   */
+  @Test
+  public void testAdaptiveBatchSize_elapsedTime() throws Exception {
+    DocumentList first = mockDocumentList(
+        ImmutableList.of(mockDocument(), mockDocument()), "{\"batch\":1}");
+    DocumentList second = mockDocumentList(
+        ImmutableList.of(mockDocument()), "{\"batch\":2}");
+    Traverser traverser = createMock(Traverser.class);
+    traverser.setBatchHint(100);
+    expect(traverser.getDocumentList(isA(Checkpoint.class))).andReturn(first);
+    // The first document takes longer than the target time, so the
+    // batch size is halved.
+    traverser.setBatchHint(50);
+    expect(traverser.getDocumentList(isA(Checkpoint.class)))
+        .andReturn(second);
+    replay(traverser);
+
+    FileTraversalManager traversalMgr = new FileTraversalManager(traverser);
+    traversalMgr.setAdaptiveBatchSize(
+        new AdaptiveBatchSize(10, 2000, 100, TimeUnit.MILLISECONDS));
+    traversalMgr.setBatchHint(100);
+
+    // Stop after the first document without reading the whole list.
+    DocumentList docList = traversalMgr.resumeTraversal("{}");
+    assertNotNull(docList.nextDocument());
+    Thread.sleep(200);
+    String checkpoint = docList.checkpoint();
+    assertEquals("{\"batch\":1}", checkpoint);
+    docList = traversalMgr.resumeTraversal(checkpoint);
+    assertEquals("{\"batch\":2}", docList.checkpoint());
+    verify(traverser);
+  }
 }
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.enterprise.connector.filenet4;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.spi.Principal;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SimpleProperty;
@@ -20,6 +21,9 @@ import com.google.enterprise.connector.spi.SpiConstants.CaseSensitivityType;
 import com.google.enterprise.connector.spi.SpiConstants.PrincipalType;
 import com.google.enterprise.connector.spi.Value;
 
+import com.filenet.api.constants.PropertyNames;
+import com.filenet.api.property.PropertyFilter;
+
 import junit.framework.TestCase;
 
 import java.text.ParseException;
@@ -162,4 +166,86 @@ public class FileUtilTest extends TestCase {
     assertEquals("Jane Smith@example.com",
         FileUtil.convertDn("cn=Jane Smith,ou=users,dc=example,dc=com"));
   }
-}
\ No newline at end of file
+
+  public void testGetTrimmedDocumentPropertyNames_pushAcls() {
+    Set<String> names = FileUtil.getTrimmedDocumentPropertyNames(
+        ImmutableSet.of("DocumentTitle", "Creator", "ReleasedVersion"),
+        ImmutableSet.of("Creator"), true, false);
+    assertTrue(names.toString(), names.contains("DocumentTitle"));
+    assertFalse(names.toString(), names.contains("Creator"));
+    assertTrue(names.toString(), names.contains("ReleasedVersion"));
+    assertTrue(names.toString(), names.contains(PropertyNames.PERMISSIONS));
+    assertTrue(names.toString(), names.contains(PropertyNames.OWNER));
+    assertFalse(names.toString(),
+        names.contains(PropertyNames.ACTIVE_MARKINGS));
+  }
+
+  public void testGetTrimmedDocumentPropertyNames_noAcls() {
+    Set<String> names = FileUtil.getTrimmedDocumentPropertyNames(
+        ImmutableSet.of("DocumentTitle"), ImmutableSet.<String>of(), false,
+        true);
+    assertEquals(ImmutableSet.of("DocumentTitle", PropertyNames.ID,
+            PropertyNames.CLASS_DESCRIPTION, PropertyNames.CONTENT_ELEMENTS,
+            PropertyNames.CONTENT_SIZE, PropertyNames.DATE_LAST_MODIFIED,
+            PropertyNames.MIME_TYPE, PropertyNames.VERSION_SERIES),
+        names);
+  }
+
+  public void testGetTrimmedDocumentPropertyNames_checkMarking() {
+    Set<String> names = FileUtil.getTrimmedDocumentPropertyNames(
+        ImmutableSet.<String>of(), ImmutableSet.<String>of(), true, true);
+    assertTrue(names.toString(),
+        names.contains(PropertyNames.ACTIVE_MARKINGS));
+    assertFalse(names.toString(),
+        names.contains(PropertyNames.RELEASED_VERSION));
+  }
+
+  public void testGetDocumentSelectNames() {
+    Set<String> filterNames = FileUtil.getDocumentPropertyNames(
+        ImmutableSet.of("DocumentTitle"));
+    Set<String> names = FileUtil.getDocumentSelectNames(filterNames, null);
+    assertTrue(names.toString(), names.contains("DocumentTitle"));
+    assertTrue(names.toString(), names.contains(PropertyNames.PERMISSIONS));
+    assertFalse(names.toString(),
+        names.contains(PropertyNames.VERSION_SERIES_ID));
+    assertFalse(names.toString(),
+        names.contains(PropertyNames.PERMISSION_TYPE));
+    assertFalse(names.toString(),
+        names.contains(PropertyNames.PERMISSION_SOURCE));
+  }
+
+  public void testGetDocumentSelectNames_trimmed() {
+    Set<String> filterNames = FileUtil.getTrimmedDocumentPropertyNames(
+        ImmutableSet.of("DocumentTitle"), ImmutableSet.<String>of(), true,
+        false);
+    Set<String> names = FileUtil.getDocumentSelectNames(filterNames, null);
+    assertFalse(names.toString(),
+        names.contains(PropertyNames.PERMISSION_TYPE));
+    assertTrue(names.toString(), names.contains(PropertyNames.OWNER));
+  }
+
+  public void testGetDocumentSelectNames_undefined() {
+    Set<String> filterNames = ImmutableSet.of(PropertyNames.ID,
+        PropertyNames.PERMISSION_TYPE, "CustomProp");
+    assertEquals(ImmutableSet.of(PropertyNames.ID, "CustomProp"),
+        FileUtil.getDocumentSelectNames(filterNames,
+            ImmutableSet.of(PropertyNames.ID, "CustomProp")));
+    assertNull(FileUtil.getDocumentSelectNames(filterNames,
+            ImmutableSet.of(PropertyNames.ID)));
+  }
+
+  public void testGetDocumentPropertyFilter_cached() {
+    FileConnector connector = new FileConnector();
+    connector.setIncluded_meta(ImmutableSet.of("DocumentTitle"));
+    PropertyFilter filter = connector.getDocumentPropertyFilter();
+    assertSame(filter, connector.getDocumentPropertyFilter());
+
+    connector.setIncluded_meta(ImmutableSet.of("DocumentTitle", "Creator"));
+    PropertyFilter newFilter = connector.getDocumentPropertyFilter();
+    assertNotSame(filter, newFilter);
+    assertSame(newFilter, connector.getDocumentPropertyFilter());
+
+    connector.setTrimPropertyFilter(true);
+    assertNotSame(newFilter, connector.getDocumentPropertyFilter());
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.text.MessageFormat;
+
+public class KeysetQueryTest {
+  private static final String DATE = "2014-01-01T20:00:00.000-0800";
+  private static final String ID = "{AAAAAAAA-0000-0000-0000-000000000000}";
+
+  private static final KeysetQuery QUERY = new KeysetQuery("Id,Name",
+      "Document", " WHERE VersionStatus=1 ",
+      " AND ((DateLastModified={0} AND (''{1}''<Id)) OR DateLastModified>{0})",
+      " AND DateLastModified>={0}", " ORDER BY DateLastModified,Id");
+
+  @Test
+  public void testGetKeysetClause() {
+    assertEquals(" AND ((DateLastModified=" + DATE + " AND ('" + ID
+        + "'<Id)) OR DateLastModified>" + DATE + ")",
+        QUERY.getKeysetClause(DATE, ID));
+  }
+
+  @Test
+  public void testGetKeysetClause_onlyDate() {
+    assertEquals(" AND DateLastModified>=" + DATE,
+        QUERY.getKeysetClause(DATE, ""));
+    assertEquals(" AND DateLastModified>=" + DATE,
+        QUERY.getKeysetClause(DATE, null));
+  }
+
+  @Test
+  public void testGetKeysetClause_messageFormat() {
+    String pattern = FileDocumentTraverser.WHERE_CLAUSE_TO_DELETE_DOCS;
+    assertEquals(MessageFormat.format(pattern, DATE, ID),
+        FileDocumentTraverser.DELETE_DOCS_QUERY.getKeysetClause(DATE, ID));
+  }
+
+  @Test
+  public void testBuild() {
+    assertEquals("SELECT TOP 42 Id,Name FROM Document WHERE VersionStatus=1 "
+        + "AND 1=1 AND DateLastModified>=" + DATE
+        + " ORDER BY DateLastModified,Id",
+        QUERY.build(42, "AND 1=1", QUERY.getKeysetClause(DATE, null)));
+  }
+
+  @Test
+  public void testBuild_noKeyset() {
+    assertEquals("SELECT TOP 42 Id,Name FROM Document WHERE VersionStatus=1 "
+        + " ORDER BY DateLastModified,Id",
+        QUERY.build(42, null, ""));
+  }
+
+  @Test
+  public void testBuild_customSelect() {
+    String custom = "select Id,DateLastModified from Document where 1=1";
+    String expected = "SELECT TOP 42  Id,DateLastModified from Document "
+        + "where 1=1 ORDER BY DateLastModified,Id";
+    assertEquals(expected, QUERY.build(42, custom, ""));
+
+    // The cached check must not leak into a different clause.
+    assertEquals("SELECT TOP 42 Id,Name FROM Document WHERE VersionStatus=1 "
+        + "AND 1=1 ORDER BY DateLastModified,Id",
+        QUERY.build(42, "AND 1=1", ""));
+    assertEquals(expected, QUERY.build(42, custom, ""));
+  }
+
+  @Test
+  public void testWithProjection() {
+    assertEquals("SELECT TOP 7 Id FROM Document WHERE VersionStatus=1 "
+        + " ORDER BY DateLastModified,Id",
+        QUERY.withProjection("Id").build(7, "", ""));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testQuotedText() {
+    new KeysetQuery("*", "Document", "", "'{0}'", "", "");
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.isNull;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.connector.filenet4.EngineCollectionMocks.PropertyDefinitionListMock;
+import com.google.enterprise.connector.filenet4.api.IObjectFactory;
+import com.google.enterprise.connector.filenet4.api.IObjectStore;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import com.filenet.api.admin.PropertyDefinitionString;
+import com.filenet.api.property.PropertyFilter;
+import com.filenet.api.security.MarkingSet;
+import com.filenet.api.util.Id;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class MarkingSetCacheTest {
+  /** Holds the refresh tasks until they are run by the test. */
+  private static class ManualExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+
+  private final ManualExecutor executor = new ManualExecutor();
+
+  /** Expects one read of the property definitions, with the marking set. */
+  private void expectRead(IObjectFactory factory, MarkingSet markingSet)
+      throws RepositoryException {
+    PropertyDefinitionString property =
+        createMock(PropertyDefinitionString.class);
+    expect(property.get_MarkingSet()).andReturn(markingSet);
+    replay(property);
+    expect(factory.getPropertyDefinitions(isNull(IObjectStore.class),
+            isA(Id.class), isNull(PropertyFilter.class)))
+        .andReturn(new PropertyDefinitionListMock(property));
+  }
+
+  @Test
+  public void testCached() throws RepositoryException {
+    IObjectFactory factory = createMock(IObjectFactory.class);
+    expectRead(factory, createMock(MarkingSet.class));
+    replay(factory);
+
+    MarkingSetCache cache = new MarkingSetCache(null, factory, null,
+        1, TimeUnit.HOURS, executor);
+    assertTrue(cache.hasMarkings());
+    assertTrue(cache.hasMarkings());
+    assertEquals(0, executor.tasks.size());
+    verify(factory);
+  }
+
+  @Test
+  public void testRefresh() throws RepositoryException {
+    IObjectFactory factory = createMock(IObjectFactory.class);
+    expectRead(factory, createMock(MarkingSet.class));
+    expectRead(factory, null);
+    replay(factory);
+
+    MarkingSetCache cache = new MarkingSetCache(null, factory, null,
+        0, TimeUnit.SECONDS, executor);
+    assertTrue(cache.hasMarkings());
+
+    // The expired value is returned while a single refresh is pending.
+    assertTrue(cache.hasMarkings());
+    assertTrue(cache.hasMarkings());
+    assertEquals(1, executor.tasks.size());
+
+    executor.runAll();
+    assertFalse(cache.hasMarkings());
+    verify(factory);
+  }
+
+  @Test
+  public void testException() throws RepositoryException {
+    IObjectFactory factory = createMock(IObjectFactory.class);
+    expect(factory.getPropertyDefinitions(isNull(IObjectStore.class),
+            isA(Id.class), isNull(PropertyFilter.class)))
+        .andThrow(new RepositoryException("pretend something bad happened"));
+    replay(factory);
+
+    MarkingSetCache cache = new MarkingSetCache(null, factory, null,
+        1, TimeUnit.HOURS, executor);
+    assertTrue(cache.hasMarkings());
+    verify(factory);
+  }
+}
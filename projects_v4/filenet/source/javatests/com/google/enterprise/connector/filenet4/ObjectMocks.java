@@ -119,10 +119,11 @@ class ObjectMocks {
 
   public static DeletionEvent mockDeletionEvent(MockObjectStore objectStore,
       String vsId, String eventId, String timeStr, boolean isReleasedVersion) {
+    Id versionSeriesId = (vsId == null) ? null : newId(vsId);
     VersionSeries vs = createMock(VersionSeries.class);
-    expect(vs.get_Id()).andStubReturn(newId(vsId));
+    expect(vs.get_Id()).andStubReturn(versionSeriesId);
     ObjectStore os = createMock(ObjectStore.class);
-    expect(os.fetchObject(ClassNames.VERSION_SERIES, newId(vsId), null));
+    expect(os.fetchObject(ClassNames.VERSION_SERIES, versionSeriesId, null));
     if (isReleasedVersion) {
       expectLastCall().andStubThrow(new EngineRuntimeException());
     } else {
@@ -130,11 +131,14 @@ class ObjectMocks {
     }
     DeletionEvent event = createMock(DeletionEvent.class);
     expect(event.get_Id()).andStubReturn(newId(eventId));
-    expect(event.get_VersionSeriesId()).andStubReturn(newId(vsId));
+    expect(event.get_VersionSeriesId()).andStubReturn(versionSeriesId);
     expect(event.get_DateCreated()).andStubReturn(parseTime(timeStr));
     expect(event.getObjectStore()).andStubReturn(os);
-    expect(event.get_SourceObjectId()).andStubReturn(newId(vsId));
+    expect(event.get_SourceObjectId()).andStubReturn(versionSeriesId);
     replay(vs, os, event);
+    if (!isReleasedVersion) {
+      objectStore.addObject(vs);
+    }
     return event;
   }
 
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.filenet4;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.filenet4.EngineCollectionMocks.AccessPermissionListMock;
 
 import com.filenet.api.constants.AccessLevel;
@@ -249,6 +250,35 @@ public class PermissionsTest extends TestCase {
     assertFalse(testPermsDenyGroup.authorize(user));
   }
 
+  @SuppressWarnings({"unchecked"})
+  public void testAuthorizeManyUsers() {
+    User jsmith = SecurityPrincipalMocks.createUserWithShortName("jsmith");
+    User invalidUser = SecurityPrincipalMocks.createBlankUser();
+
+    AccessPermissionMock permAllow =
+        new AccessPermissionMock(PermissionSource.SOURCE_DIRECT);
+    permAllow.set_AccessType(AccessType.ALLOW);
+    permAllow.set_AccessMask(VIEW_ACCESS_RIGHTS);
+    permAllow.set_GranteeType(SecurityPrincipalType.GROUP);
+    permAllow.set_GranteeName(Permissions.AUTHENTICATED_USERS);
+    perms.add(permAllow);
+
+    AccessPermissionMock permDeny =
+        new AccessPermissionMock(PermissionSource.SOURCE_DIRECT);
+    permDeny.set_AccessType(AccessType.DENY);
+    permDeny.set_AccessMask(AccessRight.READ_AS_INT);
+    permDeny.set_GranteeType(SecurityPrincipalType.USER);
+    permDeny.set_GranteeName(user.get_Name().toUpperCase());
+    perms.add(permDeny);
+
+    // The same permissions are compiled once, and used for each user.
+    Permissions testPerms = new Permissions(perms);
+    assertFalse(testPerms.authorize(new UserProfile(user)));
+    assertTrue(testPerms.authorize(new UserProfile(jsmith)));
+    assertTrue(testPerms.authorize(new UserProfile(invalidUser)));
+    assertFalse(testPerms.authorize(new UserProfile(user)));
+  }
+
   /*
    * TODO(jlacey): This is copied from FileAuthenticationManager, and
    * could be moved to FileUtil and shared.
@@ -470,6 +500,55 @@ public class PermissionsTest extends TestCase {
         PermissionSource.SOURCE_PARENT.toString() + " deny group ", 5);
   }
 
+  public void testDuplicateGrantees() {
+    addAces(3, AccessType.ALLOW, SecurityPrincipalType.USER,
+        AccessLevel.VIEW_AS_INT, 0, PermissionSource.SOURCE_DIRECT);
+    addAces(2, AccessType.ALLOW, SecurityPrincipalType.USER,
+        AccessLevel.VIEW_AS_INT, 1, PermissionSource.SOURCE_DIRECT);
+    Permissions.Acl testPerms = new Permissions(perms).getAcl();
+    Set<String> directAllowUsers =
+        testPerms.getAllowUsers(PermissionSource.SOURCE_DIRECT);
+    assertEquals(3, directAllowUsers.size());
+    assertSetContains(directAllowUsers,
+        PermissionSource.SOURCE_DIRECT.toString() + " allow user ", 3);
+    assertEquals(directAllowUsers, testPerms.getAllowUsers());
+  }
+
+  public void testGranteesFromAllSources() {
+    addAce(PermissionSource.SOURCE_DIRECT, SecurityPrincipalType.GROUP,
+        AccessType.DENY, VIEW_ACCESS_RIGHTS, 0, "group");
+    addAce(PermissionSource.SOURCE_PARENT, SecurityPrincipalType.GROUP,
+        AccessType.DENY, VIEW_ACCESS_RIGHTS, 0, "group");
+    addAce(PermissionSource.SOURCE_TEMPLATE, SecurityPrincipalType.GROUP,
+        AccessType.DENY, VIEW_ACCESS_RIGHTS, 0, "other group");
+    Permissions.Acl testPerms = new Permissions(perms).getAcl();
+    assertEquals(ImmutableSet.of("group"),
+        testPerms.getDenyGroups(PermissionSource.SOURCE_DIRECT));
+    assertEquals(ImmutableSet.of("group"),
+        testPerms.getDenyGroups(PermissionSource.SOURCE_PARENT));
+    assertEquals(ImmutableSet.of("group", "other group"),
+        testPerms.getDenyGroups());
+    assertFalse(testPerms.getDenyGroups(PermissionSource.SOURCE_DIRECT)
+        .contains("other group"));
+  }
+
+  public void testAclIsImmutable() {
+    populateAces(2, true, true, true, true, PermissionSource.SOURCE_PARENT);
+    Permissions.Acl testPerms = new Permissions(perms).getAcl();
+    try {
+      testPerms.getAllowUsers(PermissionSource.SOURCE_PARENT).add("user");
+      fail("Expected an UnsupportedOperationException");
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      testPerms.getDenyGroups().clear();
+      fail("Expected an UnsupportedOperationException");
+    } catch (UnsupportedOperationException expected) {
+    }
+    assertEquals(2, testPerms.getAllowUsers().size());
+    assertEquals(2, testPerms.getDenyGroups().size());
+  }
+
   // Calculate constraint mask for rights that are unchecked in the marking.
   private int constraintMask(AccessRight... allowRights) {
     int mask = 0;
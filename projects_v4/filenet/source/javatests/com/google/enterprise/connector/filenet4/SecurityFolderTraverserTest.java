@@ -25,9 +25,11 @@ import static org.junit.Assume.assumeTrue;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.enterprise.connector.filenet4.Checkpoint.JsonField;
 import com.google.enterprise.connector.filenet4.EngineCollectionMocks.DocumentSetMock;
 import com.google.enterprise.connector.filenet4.EngineCollectionMocks.FolderSetMock;
+import com.google.enterprise.connector.filenet4.api.SearchWrapper;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.Property;
@@ -39,11 +41,13 @@ import com.google.enterprise.connector.spiimpl.PrincipalValue;
 import com.filenet.api.collection.AccessPermissionList;
 import com.filenet.api.collection.DocumentSet;
 import com.filenet.api.collection.FolderSet;
+import com.filenet.api.collection.IndependentObjectSet;
 import com.filenet.api.constants.AccessRight;
 import com.filenet.api.constants.AccessType;
 import com.filenet.api.constants.PermissionSource;
 import com.filenet.api.constants.SecurityPrincipalType;
 import com.filenet.api.core.Folder;
+import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.security.AccessPermission;
 import com.filenet.api.util.Id;
 
@@ -52,8 +56,12 @@ import org.junit.Test;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class SecurityFolderTraverserTest extends TraverserFactoryFixture {
   private static final Date Jan_1_1970 = new Date(72000000L);
@@ -77,6 +85,13 @@ public class SecurityFolderTraverserTest extends TraverserFactoryFixture {
 
   private FileConnector connector;
 
+  /**
+   * Whether the contained documents and subfolders are returned in a
+   * different order by each iterator, as FileNet does not guarantee
+   * their order.
+   */
+  private boolean reorder = false;
+
   @Before
   public void setUp() {
     this.connector = TestObjectFactory.newFileConnector();
@@ -192,6 +207,139 @@ public class SecurityFolderTraverserTest extends TraverserFactoryFixture {
     testAclCollection(folderTree, expectedDocids);
   }
 
+  @Test
+  public void testRecursiveAclCollection_folderThreads() throws Exception {
+    connector.setFolderThreads(2);
+    testRecursiveAclCollection();
+  }
+
+  @Test
+  public void testRecursiveAclCollection_resume() throws Exception {
+    testResume();
+  }
+
+  @Test
+  public void testRecursiveAclCollection_resumeWithFolderThreads()
+      throws Exception {
+    connector.setFolderThreads(2);
+    testResume();
+  }
+
+  @Test
+  public void testFolderQueries_resume() throws Exception {
+    connector.setFolderQueries(true);
+    int docsPerFolder = 4;
+    Folder root = createMock(Folder.class);
+    expect(root.get_Id()).andReturn(new Id(FOLDERS[0][0])).atLeastOnce();
+    expect(root.get_DateLastModified())
+        .andReturn(DATE_PARSER.parse(FOLDERS[0][1])).atLeastOnce();
+    replayAndSave(root);
+    ImmutableList.Builder<com.filenet.api.core.Document> docs =
+        ImmutableList.builder();
+    for (int i = 0; i < FOLDERS.length; i++) {
+      docs.addAll(getChildDocumentList(i, docsPerFolder));
+    }
+    SubtreeSearchMock searcher = new SubtreeSearchMock(
+        new FolderSetMock(ImmutableList.of(root)), docs.build());
+    Traverser traverser = getSecurityFolderTraverser(connector, searcher);
+
+    testResume(traverser, docsPerFolder);
+    for (String query : searcher.queries) {
+      if (query.contains(" INSUBFOLDER ")) {
+        assertTrue(query, query.startsWith("SELECT Id,Permissions FROM "));
+      }
+    }
+  }
+
+  @Test
+  public void testRecursiveAclCollection_resumeReordered() throws Exception {
+    reorder = true;
+    testResume();
+  }
+
+  @Test
+  public void testRecursiveAclCollection_resumeReorderedWithFolderThreads()
+      throws Exception {
+    connector.setFolderThreads(2);
+    reorder = true;
+    testResume();
+  }
+
+  /** Returns the documents in reverse order from every other iterator. */
+  private static class ReorderingDocumentSet extends DocumentSetMock {
+    private final List<com.filenet.api.core.Document> values;
+    private int iterators = 0;
+
+    ReorderingDocumentSet(List<com.filenet.api.core.Document> values) {
+      super(values);
+      this.values = values;
+    }
+
+    @Override
+    public Iterator<?> iterator() {
+      return (iterators++ % 2 == 0)
+          ? values.iterator() : Lists.reverse(values).iterator();
+    }
+  }
+
+  /** Returns the folders in reverse order from every other iterator. */
+  private static class ReorderingFolderSet extends FolderSetMock {
+    private final List<Folder> values;
+    private int iterators = 0;
+
+    ReorderingFolderSet(List<Folder> values) {
+      super(values);
+      this.values = values;
+    }
+
+    @Override
+    public Iterator<?> iterator() {
+      return (iterators++ % 2 == 0)
+          ? values.iterator() : Lists.reverse(values).iterator();
+    }
+  }
+
+  private void testResume() throws Exception {
+    int docsPerFolder = 4;
+    FolderSetMock folderTree = getNestedFolderSet(docsPerFolder);
+    Traverser traverser = getSecurityFolderTraverser(connector, folderTree);
+    testResume(traverser, docsPerFolder);
+  }
+
+  /**
+   * Traverses the 5 folders in batches of 6 documents, which end in the
+   * middle of folders 1 and 4.
+   */
+  private void testResume(Traverser traverser, int docsPerFolder)
+      throws Exception {
+    traverser.setBatchHint(6);
+
+    ImmutableList.Builder<String> actualDocids = ImmutableList.builder();
+    Checkpoint checkpoint = new Checkpoint();
+    int batches = 0;
+    do {
+      DocumentList docList = traverser.getDocumentList(checkpoint);
+      assertNotNull(docList);
+      Document doc;
+      while ((doc = docList.nextDocument()) != null) {
+        testAclDocument(doc);
+        actualDocids.add(
+            Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+      }
+      checkpoint = new Checkpoint(docList.checkpoint());
+      batches++;
+    } while (!checkpoint.isNull(JsonField.FOLDER_PATH));
+
+    assertEquals(4, batches);
+    assertEquals(getExpectedDocids(FOLDERS.length, docsPerFolder),
+        actualDocids.build());
+    assertEquals(FOLDERS[0][1],
+        checkpoint.getString(JsonField.LAST_FOLDER_TIME));
+    assertEquals(FOLDERS[0][0], checkpoint.getString(JsonField.UUID_FOLDER));
+    assertTrue(checkpoint.isNull(JsonField.UUID_FOLDER_DOCUMENT));
+    verifyAll();
+  }
+
   /**
    * Creates a hierarchical folder set from FOLDERS structured like:
    *     0
@@ -205,14 +353,19 @@ public class SecurityFolderTraverserTest extends TraverserFactoryFixture {
     assertEquals("FOLDERS is unexpected size", 5, FOLDERS.length);
     return new FolderSetMock(ImmutableList.<Folder>of(
         getFolder(0, docsPerFolder,
-            new FolderSetMock(ImmutableList.<Folder>of(
+            getSubfolders(ImmutableList.<Folder>of(
                 getFolder(1, docsPerFolder, EMPTY_SET),
                 getFolder(2, docsPerFolder,
-                   new FolderSetMock(ImmutableList.<Folder>of(
+                   getSubfolders(ImmutableList.<Folder>of(
                        getFolder(3, docsPerFolder, EMPTY_SET),
                        getFolder(4, docsPerFolder, EMPTY_SET)))))))));
   }
 
+  private FolderSetMock getSubfolders(List<Folder> folders) {
+    return reorder
+        ? new ReorderingFolderSet(folders) : new FolderSetMock(folders);
+  }
+
   private FolderSetMock getFolderSet(int docsPerFolder) throws Exception {
     ImmutableList.Builder<Folder> folders = ImmutableList.builder();
     for (int i = 0; i < FOLDERS.length; i++) {
@@ -237,6 +390,14 @@ public class SecurityFolderTraverserTest extends TraverserFactoryFixture {
   }
 
   private DocumentSet getChildDocuments(int folderNum, int docCount) {
+    List<com.filenet.api.core.Document> docs =
+        getChildDocumentList(folderNum, docCount);
+    return reorder
+        ? new ReorderingDocumentSet(docs) : new DocumentSetMock(docs);
+  }
+
+  private List<com.filenet.api.core.Document> getChildDocumentList(
+      int folderNum, int docCount) {
     // Document collides with the SPI class of the same name.
     ImmutableList.Builder<com.filenet.api.core.Document> docs =
         ImmutableList.builder();
@@ -250,7 +411,7 @@ public class SecurityFolderTraverserTest extends TraverserFactoryFixture {
       replayAndSave(doc);
       docs.add(doc);
     }
-    return new DocumentSetMock(docs.build());
+    return docs.build();
   }
 
   private List<String> getExpectedDocids(int numFolders, int docsPerFolder) {
@@ -387,4 +548,42 @@ public class SecurityFolderTraverserTest extends TraverserFactoryFixture {
     }
     assertEquals(expectedCount, count);
   }
+
+  /**
+   * Returns the folders for folder queries, and the documents with IDs
+   * after the ID in the query, if any, for subtree searches.
+   */
+  private static class SubtreeSearchMock extends SearchWrapper {
+    private static final Pattern ID_CLAUSE =
+        Pattern.compile(" Id > (\\{[-0-9A-F]{36}\\})");
+
+    private final FolderSet folders;
+    private final List<com.filenet.api.core.Document> documents;
+    public final List<String> queries = new ArrayList<>();
+
+    public SubtreeSearchMock(FolderSet folders,
+        List<com.filenet.api.core.Document> documents) {
+      this.folders = folders;
+      this.documents = documents;
+    }
+
+    @Override
+    public IndependentObjectSet fetchObjects(String query, Integer pageSize,
+        PropertyFilter filter, Boolean continuable) {
+      queries.add(query);
+      if (!query.contains(" INSUBFOLDER ")) {
+        return folders;
+      }
+      Matcher matcher = ID_CLAUSE.matcher(query);
+      String after = matcher.find() ? matcher.group(1) : "";
+      ImmutableList.Builder<com.filenet.api.core.Document> results =
+          ImmutableList.builder();
+      for (com.filenet.api.core.Document doc : documents) {
+        if (doc.get_Id().toString().compareTo(after) > 0) {
+          results.add(doc);
+        }
+      }
+      return new DocumentSetMock(results.build());
+    }
+  }
 }
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.filenet4;
 
+import static org.easymock.EasyMock.and;
 import static org.easymock.EasyMock.anyBoolean;
 import static org.easymock.EasyMock.anyInt;
 import static org.easymock.EasyMock.capture;
@@ -50,6 +51,7 @@ import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.security.AccessPermission;
 
 import org.easymock.Capture;
+import org.easymock.CaptureType;
 import org.junit.After;
 import org.junit.Before;
 
@@ -105,17 +107,23 @@ public class TraverserFactoryFixture {
       + PropertyNames.RELEASED_VERSION + " varchar, "
       + PropertyNames.SECURITY_FOLDER + " varchar, "
       + PropertyNames.SECURITY_POLICY + " varchar, "
+      + PropertyNames.VERSION_SERIES + " varchar, "
       + PropertyNames.VERSION_STATUS + " int)";
 
   private static final String CREATE_TABLE_FOLDER =
       "create table Folder("
       + PropertyNames.ID + " varchar, "
-      + PropertyNames.DATE_LAST_MODIFIED + " timestamp)";
+      + PropertyNames.DATE_LAST_MODIFIED + " timestamp, "
+      + PropertyNames.FOLDER_NAME + " varchar, "
+      + PropertyNames.SUB_FOLDERS + " varchar, "
+      + PropertyNames.CONTAINED_DOCUMENTS + " varchar)";
 
   private static final String CREATE_TABLE_SECURITY_POLICY =
       "create table SecurityPolicy("
       + PropertyNames.ID + " varchar, "
-      + PropertyNames.DATE_LAST_MODIFIED + " timestamp)";
+      + PropertyNames.DATE_LAST_MODIFIED + " timestamp, "
+      + PropertyNames.NAME + " varchar, "
+      + PropertyNames.SECURITY_TEMPLATES + " varchar)";
 
   protected JdbcFixture jdbcFixture = new JdbcFixture();
 
@@ -135,6 +143,14 @@ public class TraverserFactoryFixture {
       FileConnector connector, MockObjectStore os,
       IndependentObjectSet objectSet, Capture<String> capture)
       throws RepositoryException {
+    return getFileDocumentTraverser(connector, os, objectSet, capture,
+        new Capture<PropertyFilter>(CaptureType.NONE));
+  }
+
+  protected FileDocumentTraverser getFileDocumentTraverser(
+      FileConnector connector, MockObjectStore os,
+      IndependentObjectSet objectSet, Capture<String> capture,
+      Capture<PropertyFilter> filterCapture) throws RepositoryException {
     IConnection connection = createNiceMock(IConnection.class);
 
     // The first search result is for added and update documents, and
@@ -142,7 +158,8 @@ public class TraverserFactoryFixture {
     // deleted documents.
     SearchWrapper searcher = createMock(SearchWrapper.class);
     expect(searcher.fetchObjects(capture(capture), anyInt(),
-            isA(PropertyFilter.class), anyBoolean()))
+            and(isA(PropertyFilter.class), capture(filterCapture)),
+            anyBoolean()))
         .andReturn(objectSet).andReturn(new EmptyObjectSet()).times(1, 2);
 
     IObjectFactory objectFactory = createMock(IObjectFactory.class);
@@ -152,13 +169,29 @@ public class TraverserFactoryFixture {
     return new FileDocumentTraverser(connection, objectFactory, os, connector);
   }
 
+  protected FileDocumentTraverser getFileDocumentTraverser(
+      FileConnector connector, MockObjectStore os, SearchWrapper searcher)
+      throws RepositoryException {
+    IConnection connection = createNiceMock(IConnection.class);
+    IObjectFactory objectFactory = createMock(IObjectFactory.class);
+    expect(objectFactory.getSearch(os)).andReturn(searcher);
+    replayAndSave(connection, objectFactory);
+
+    return new FileDocumentTraverser(connection, objectFactory, os, connector);
+  }
+
   protected SecurityFolderTraverser getSecurityFolderTraverser(
       FileConnector connector, FolderSet folderSet)
       throws RepositoryException {
+    return getSecurityFolderTraverser(connector,
+        new SearchMock(ImmutableMap.of("Folder", folderSet)));
+  }
+
+  protected SecurityFolderTraverser getSecurityFolderTraverser(
+      FileConnector connector, SearchWrapper searcher)
+      throws RepositoryException {
     IConnection connection = createNiceMock(IConnection.class);
     IObjectStore os = createNiceMock(IObjectStore.class);
-    SearchWrapper searcher =
-        new SearchMock(ImmutableMap.of("Folder", folderSet));
     IObjectFactory objectFactory = createMock(IObjectFactory.class);
     expect(objectFactory.getSearch(os)).andReturn(searcher).atLeastOnce();
     replayAndSave(connection, os, objectFactory);
@@ -0,0 +1,152 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.filenet4.api.IConnection;
+import com.google.enterprise.connector.filenet4.api.IUserContext;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.RepositoryLoginException;
+
+import com.filenet.api.security.Group;
+import com.filenet.api.security.User;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UserCacheTest {
+  /** Counts the lookups, which wait until they are released. */
+  private static class BlockingUserContext implements IUserContext {
+    final AtomicInteger lookups = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public String getName() {
+      return null;
+    }
+
+    @Override
+    public User authenticate(String username, String password)
+        throws RepositoryLoginException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public User lookupUser(String username) throws RepositoryException {
+      lookups.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return new UserMock(username, username, username, username,
+          ImmutableList.<Group>of());
+    }
+  }
+
+  private IConnection getConnection(IUserContext uc) {
+    IConnection conn = createMock(IConnection.class);
+    expect(conn.getUserContext()).andReturn(uc);
+    replay(conn);
+    return conn;
+  }
+
+  @Test
+  public void testCached() throws RepositoryException {
+    IUserContext uc = createMock(IUserContext.class);
+    expect(uc.lookupUser("jsmith")).andReturn(new UserMock("jsmith",
+        "jsmith", "jsmith", "jsmith", ImmutableList.<Group>of()));
+    replay(uc);
+    IConnection conn = getConnection(uc);
+
+    UserCache cache = new UserCache(conn, 10, 1, TimeUnit.HOURS);
+    UserProfile first = cache.get("jsmith");
+    assertSame(first, cache.get("jsmith"));
+    verify(uc, conn);
+  }
+
+  @Test
+  public void testAuthenticatedUser() throws RepositoryException {
+    UserCache cache = new UserCache(null, 10, 1, TimeUnit.HOURS);
+    UserProfile first = cache.get("jsmith", new UserMock("jsmith",
+        "jsmith", "jsmith", "jsmith", ImmutableList.<Group>of()));
+    assertEquals("jsmith", first.getName());
+    assertSame(first, cache.get("jsmith"));
+  }
+
+  @Test
+  public void testConcurrentLookups() throws Exception {
+    BlockingUserContext uc = new BlockingUserContext();
+    IConnection conn = getConnection(uc);
+    final UserCache cache = new UserCache(conn, 10, 1, TimeUnit.HOURS);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Callable<UserProfile> lookup = new Callable<UserProfile>() {
+          @Override
+          public UserProfile call() throws RepositoryException {
+            return cache.get("jsmith");
+          }
+        };
+      Future<UserProfile> first = executor.submit(lookup);
+      assertTrue(uc.started.await(10, TimeUnit.SECONDS));
+      Future<UserProfile> second = executor.submit(lookup);
+
+      uc.release.countDown();
+      assertSame(first.get(10, TimeUnit.SECONDS),
+          second.get(10, TimeUnit.SECONDS));
+      assertEquals(1, uc.lookups.get());
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(conn);
+  }
+
+  @Test
+  public void testRepositoryException() throws RepositoryException {
+    IUserContext uc = createMock(IUserContext.class);
+    expect(uc.lookupUser("jsmith")).andThrow(
+        new RepositoryException("User not found"));
+    replay(uc);
+    IConnection conn = getConnection(uc);
+
+    UserCache cache = new UserCache(conn, 10, 1, TimeUnit.HOURS);
+    try {
+      cache.get("jsmith");
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+      assertEquals("User not found", expected.getMessage());
+    }
+    verify(uc, conn);
+  }
+}
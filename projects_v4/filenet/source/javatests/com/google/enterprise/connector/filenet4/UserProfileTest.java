@@ -0,0 +1,84 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import com.filenet.api.security.Group;
+
+import org.junit.Test;
+
+public class UserProfileTest {
+  private final UserProfile profile = new UserProfile(new UserMock("jdoe",
+      "jdoe@example.com", "cn=jdoe,dc=example,dc=com", "Jane.Doe@example.com",
+      ImmutableList.<Group>of(new GroupMock("Engineering@example.com",
+          "engineering", "cn=engineering,dc=example,dc=com"))));
+
+  @Test
+  public void testGetName() {
+    assertEquals("jdoe@example.com", profile.getName());
+  }
+
+  @Test
+  public void testGetNamesAsRead() {
+    assertEquals("Jane.Doe@example.com", profile.getEmail());
+    assertEquals("cn=jdoe,dc=example,dc=com", profile.getDistinguishedName());
+    assertEquals(ImmutableSet.of("Engineering@example.com"),
+        profile.getGroupNames());
+  }
+
+  @Test
+  public void testMatchesUser() {
+    assertTrue(profile.matchesUser("jdoe@example.com"));
+    assertTrue(profile.matchesUser("JDOE@EXAMPLE.COM"));
+    assertTrue(profile.matchesUser("CN=jdoe,DC=example,DC=com"));
+    assertTrue(profile.matchesUser("jane.doe@example.com"));
+    assertFalse(profile.matchesUser("jdoe"));
+    assertFalse(profile.matchesUser("engineering@example.com"));
+    assertFalse(profile.matchesUser(null));
+  }
+
+  @Test
+  public void testMatchesGroup() {
+    assertTrue(profile.matchesGroup("engineering@example.com"));
+    assertTrue(profile.matchesGroup("CN=Engineering,DC=Example,DC=Com"));
+    assertTrue(profile.matchesGroup(Permissions.AUTHENTICATED_USERS));
+    assertTrue(profile.matchesGroup("#authenticated-users"));
+    assertFalse(profile.matchesGroup("jdoe@example.com"));
+    assertFalse(profile.matchesGroup(null));
+  }
+
+  @Test
+  public void testNullNames() {
+    UserProfile noEmail = new UserProfile(new UserMock("jdoe",
+        "jdoe@example.com", null, null, ImmutableList.<Group>of()));
+    assertTrue(noEmail.matchesUser("jdoe@example.com"));
+    assertFalse(noEmail.matchesUser("cn=jdoe,dc=example,dc=com"));
+  }
+
+  @Test
+  public void testFold() {
+    // A capital sigma and a final sigma are equal ignoring case, but
+    // not when only converted to lower case.
+    assertTrue("\u03a3".equalsIgnoreCase("\u03c2"));
+    assertEquals(UserProfile.fold("\u03a3"), UserProfile.fold("\u03c2"));
+    assertEquals(UserProfile.fold("MiXeD"), UserProfile.fold("mixed"));
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4.api;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+
+import com.filenet.api.constants.ClassNames;
+import com.filenet.api.constants.PropertyNames;
+import com.filenet.api.util.Id;
+
+import org.junit.Test;
+
+/** Tests the queries of FnObjectStore, without a live connection. */
+public class FnObjectStoreQueryTest {
+  private static final Id ID1 =
+      new Id("{AAAAAAAA-0000-0000-0000-000000000001}");
+  private static final Id ID2 =
+      new Id("{AAAAAAAA-0000-0000-0000-000000000002}");
+
+  @Test
+  public void testGetQuery() {
+    assertEquals("SELECT Id,DocumentTitle,Permissions FROM Document WHERE "
+        + "(Id={AAAAAAAA-0000-0000-0000-000000000001} OR "
+        + "Id={AAAAAAAA-0000-0000-0000-000000000002})",
+        FnObjectStore.getQuery(ClassNames.DOCUMENT,
+            ImmutableList.of(PropertyNames.ID, "DocumentTitle",
+                PropertyNames.PERMISSIONS),
+            null, PropertyNames.ID, ImmutableList.of(ID1, ID2)));
+  }
+
+  @Test
+  public void testGetQuery_condition() {
+    assertEquals("SELECT Id,VersionSeries FROM Document WHERE "
+        + "IsCurrentVersion=TRUE AND "
+        + "(VersionSeries={AAAAAAAA-0000-0000-0000-000000000001})",
+        FnObjectStore.getQuery(ClassNames.DOCUMENT,
+            ImmutableList.of(PropertyNames.VERSION_SERIES),
+            PropertyNames.IS_CURRENT_VERSION + "=TRUE",
+            PropertyNames.VERSION_SERIES, ImmutableList.of(ID1)));
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.filenet4.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.filenet.api.constants.PropertyNames;
+import com.filenet.api.property.FilterElement;
+import com.filenet.api.property.PropertyFilter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class FnUserContextTest {
+  private Set<String> getIncludedNames(PropertyFilter filter) {
+    Set<String> names = new HashSet<String>();
+    for (FilterElement element : filter.getIncludeProperties()) {
+      names.addAll(Arrays.asList(element.getValue().split(" ")));
+    }
+    return names;
+  }
+
+  @Test
+  public void testUserFilter() {
+    assertEquals(Integer.valueOf(1),
+        FnUserContext.USER_FILTER.getMaxRecursion());
+    Set<String> names = getIncludedNames(FnUserContext.USER_FILTER);
+    assertTrue(names.toString(),
+        names.contains(PropertyNames.MEMBER_OF_GROUPS));
+    assertTrue(names.toString(), names.contains(PropertyNames.NAME));
+  }
+
+  /** Tests that refreshing the connection does not fetch the groups. */
+  @Test
+  public void testNameFilter() {
+    assertEquals(Integer.valueOf(0),
+        FnUserContext.NAME_FILTER.getMaxRecursion());
+    assertEquals(new HashSet<String>(Arrays.asList(PropertyNames.NAME)),
+        getIncludedNames(FnUserContext.NAME_FILTER));
+  }
+}
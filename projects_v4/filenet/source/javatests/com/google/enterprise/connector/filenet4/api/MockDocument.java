@@ -63,6 +63,11 @@ public class MockDocument implements IDocument {
     return null;
   }
 
+  @Override
+  public Date get_DateLastModified() {
+    return doc.get_DateLastModified();
+  }
+
   @Override
   public InputStream getContent() {
     return new ByteArrayInputStream(
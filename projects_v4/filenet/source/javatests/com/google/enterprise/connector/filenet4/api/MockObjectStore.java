@@ -15,18 +15,30 @@
 package com.google.enterprise.connector.filenet4.api;
 
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
 
 import com.filenet.api.constants.ClassNames;
 import com.filenet.api.constants.DatabaseType;
+import com.filenet.api.constants.PropertyNames;
 import com.filenet.api.core.Document;
+import com.filenet.api.core.VersionSeries;
 import com.filenet.api.property.PropertyFilter;
 import com.filenet.api.util.Id;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class MockObjectStore implements IObjectStore {
+  private static final String[] NON_DOCUMENT_PROPERTY_NAMES = {
+    PropertyNames.VERSION_SERIES_ID, PropertyNames.PERMISSION_TYPE,
+    PropertyNames.PERMISSION_SOURCE };
+
   private final DatabaseType dbType;
   private final HashMap<Id, Document> objects = new HashMap<>();
+  private final HashMap<Id, VersionSeries> versionSeries = new HashMap<>();
 
   public MockObjectStore(DatabaseType databaseType) {
     this.dbType = databaseType;
@@ -39,6 +51,15 @@ public class MockObjectStore implements IObjectStore {
     objects.put(object.get_Id(), object);
   }
 
+  /**
+   * Adds a version series to the store. Only the version series of
+   * unreleased deletion events are added, so that bulk lookups agree
+   * with the mock DeletionEvents.
+   */
+  public void addObject(VersionSeries object) {
+    versionSeries.put(object.get_Id(), object);
+  }
+
   /** Verifies that the given object is in the store. */
   public boolean containsObject(String type, Id id)
       throws RepositoryDocumentException {
@@ -77,6 +98,49 @@ public class MockObjectStore implements IObjectStore {
     }
   }
 
+  @Override
+  public Map<Id, IBaseObject> fetchObjects(String type, Collection<Id> ids,
+      Collection<String> propertyNames, PropertyFilter filter)
+      throws RepositoryException {
+    if (ClassNames.DOCUMENT.equals(type)) {
+      // Like a search, fail on properties that are not on Document.
+      for (String name : NON_DOCUMENT_PROPERTY_NAMES) {
+        if (propertyNames.contains(name)) {
+          throw new RepositoryException("Unable to select " + name);
+        }
+      }
+      Map<Id, IBaseObject> results = new HashMap<>();
+      for (Id id : ids) {
+        Document obj = objects.get(id);
+        if (obj != null) {
+          results.put(id, new MockDocument(obj));
+        }
+      }
+      return results;
+    } else {
+      throw new AssertionError("Unexpected type " + type);
+    }
+  }
+
+  @Override
+  public Map<Id, IDocument> fetchReleasedVersions(
+      Collection<Id> versionSeriesIds, Collection<String> propertyNames,
+      PropertyFilter filter) throws RepositoryException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Set<Id> findVersionSeries(Collection<Id> versionSeriesIds)
+      throws RepositoryException {
+    Set<Id> results = new HashSet<>();
+    for (Id id : versionSeriesIds) {
+      if (versionSeries.containsKey(id)) {
+        results.add(id);
+      }
+    }
+    return results;
+  }
+
   @Override
   public DatabaseType get_DatabaseType() {
     return this.dbType;